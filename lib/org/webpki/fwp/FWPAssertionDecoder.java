@@ -17,14 +17,28 @@
 package org.webpki.fwp;
 
 
+import java.time.DateTimeException;
+import java.time.LocalDate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
+import java.util.List;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.webpki.cbor.CBORArray;
 import org.webpki.cbor.CBORDecoder;
 import org.webpki.cbor.CBORMap;
 import org.webpki.cbor.CBORObject;
 
+import org.webpki.crypto.AsymSignatureAlgorithms;
+
 import org.webpki.util.ISODateTime;
 
 /**
@@ -54,56 +68,77 @@ public class FWPAssertionDecoder {
     
     private PlatformNameVersion operatingSystem;
     public PlatformNameVersion getOperatingSystem() {
+        lazyDecode(FWPElements.PLATFORM_DATA);
         return operatingSystem;
     }
     
     private PlatformNameVersion userAgent;
     public PlatformNameVersion getUserAgent() {
+        lazyDecode(FWPElements.PLATFORM_DATA);
         return userAgent;
     }
 
+    private String timeStampString;
+    private long timeStampMillis;
+    public long getTimeStampMillis() {
+        lazyDecode(FWPElements.TIME_STAMP);
+        return timeStampMillis;
+    }
+
     private GregorianCalendar timeStamp;
     public GregorianCalendar getTimeStamp() {
+        lazyDecode(FWPElements.TIME_STAMP);
+        // Only needed for presentation (keeps the original time zone).
+        if (timeStamp == null) {
+            timeStamp = ISODateTime.decode(timeStampString, ISODateTime.COMPLETE);
+        }
         return timeStamp;
     }
     
     private CBORObject networkOptions;
     public CBORObject getnetworkOptions() {
+        lazyDecode(FWPElements.NETWORK_OPTIONS);
         return networkOptions;
     }
     
     private FWPPaymentRequest paymentRequest;
     public FWPPaymentRequest getPaymentRequest() {
+        lazyDecode(FWPElements.PAYMENT_REQUEST);
         return paymentRequest;
     }
     
     private String payeeHost;
     public String getPayeeHost() {
+        lazyDecode(FWPElements.PAYEE_HOST);
         return payeeHost;
     }
     
     private String accountId;
     public String getAccountId() {
+        lazyDecode(FWPElements.ACCOUNT_ID);
         return accountId;
     }
 
     private String serialNumber;
     public String getSerialNumber() {
+        lazyDecode(FWPElements.SERIAL_NUMBER);
         return serialNumber;
     }
 
     private String paymentNetwork;
     public String getPaymentNetwork() {
+        lazyDecode(FWPElements.PAYMENT_NETWORK_ID);
         return paymentNetwork;
     }
 
     private double[] location;
     public double[] getLocation() {
+        lazyDecode(FWPElements.LOCATION);
         return location;
     }
 
     public void verifyClaimedPaymentRequest(FWPPaymentRequest claimedPaymentRequest) {
-        if (!paymentRequest.equals(claimedPaymentRequest)) {
+        if (!getPaymentRequest().equals(claimedPaymentRequest)) {
             throw new FWPException("Claimed:\n" + claimedPaymentRequest.toString() +
                                       "Actual:\n" + paymentRequest.toString());
         }
@@ -123,69 +158,427 @@ public class FWPAssertionDecoder {
         return userValidation;
     }
     
+    // Lazy mode only: declared and (so far) decoded elements.
+    private EnumSet<FWPElements> declaredElements;
+    private EnumSet<FWPElements> decodedElements;
+
+    private void lazyDecode(FWPElements element) {
+        if (declaredElements == null) {
+            // Eager mode, everything is already decoded.
+            return;
+        }
+        if (!declaredElements.contains(element)) {
+            throw new FWPException("Undeclared element: " + element.toString());
+        }
+        if (!decodedElements.contains(element)) {
+            decodeElement(element);
+            // Only after success, failures are reported again on the next access.
+            decodedElements.add(element);
+        }
+    }
+
+    private void decodeElement(FWPElements element) {
+        switch (element) {
+            case PAYMENT_REQUEST:
+                // Payment Request (PRCD)
+                paymentRequest = new FWPPaymentRequest(fwpAssertion.get(element.cborLabel));
+                break;
+
+            case ACCOUNT_ID:
+                // Account.
+                accountId = getString(element);
+                break;
+
+            case PAYMENT_NETWORK_ID:
+                // For usage with the following payment network.
+                paymentNetwork = getString(element);
+                break;
+
+            case SERIAL_NUMBER:
+                // Serial number of payment credential. Note: this is unrelated to the
+                // FIDO "credentialId" (which only used locally by the wallet).
+                serialNumber = getString(element);
+                break;
+
+            case PLATFORM_DATA:
+                // Platform Data
+                CBORMap platformData = fwpAssertion.get(element.cborLabel).getMap();
+                operatingSystem = new PlatformNameVersion(
+                        platformData.get(FWPElements.CBOR_PD_OPERATING_SYSTEM));
+                userAgent = new PlatformNameVersion(
+                        platformData.get(FWPElements.CBOR_PD_USER_AGENT));
+                break;
+
+            case TIME_STAMP:
+                // Time Stamp
+                timeStampString = getString(element);
+                timeStampMillis = parseTimeStamp(timeStampString);
+                break;
+
+            case PAYEE_HOST:
+                // Payee Host information from the browser
+                payeeHost = getString(element);
+                break;
+
+            case NETWORK_OPTIONS:
+                // Optional Network Data.
+                if (fwpAssertion.containsKey(element.cborLabel)) {
+                    // There is such data, get it!  It can be any CBOR data
+                    // that has a 1-2-1 translation to JSON.
+                    networkOptions = fwpAssertion.get(element.cborLabel);
+                    // We mark it as "read" to not get a problem with checkForUnread().
+                    networkOptions.scan();
+                }
+                break;
+
+            case LOCATION:
+                // Optional location.
+                if (fwpAssertion.containsKey(element.cborLabel)) {
+                    // There is a location, get it!
+                    CBORArray cborLocation = fwpAssertion.get(element.cborLabel).getArray();
+                    location = new double[2];
+                    for (int i = 0; i < 2; i++) {
+                        location[i] = cborLocation.get(i).getFloat64();
+                    }
+                }
+                break;
+
+            default:
+                // The authorization is always processed.
+        }
+    }
+
+    private static int getDigits(String string, int offset, int length) {
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = string.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
+    /**
+     * Decode an ISO 8601 time stamp into epoch milliseconds.
+     * 
+     * The common "yyyy-mm-ddThh:mm:ss[.s*](Z|&plusmn;hh:mm)" form is decoded
+     * directly.  Anything else is handed over to {@link ISODateTime}.
+     * 
+     * @param timeStamp Time stamp
+     * @return Milliseconds since the epoch
+     */
+    static long parseTimeStamp(String timeStamp) {
+        int length = timeStamp.length();
+        if (length >= 20 &&
+            timeStamp.charAt(4) == '-' && timeStamp.charAt(7) == '-' &&
+            timeStamp.charAt(10) == 'T' &&
+            timeStamp.charAt(13) == ':' && timeStamp.charAt(16) == ':') {
+            int year = getDigits(timeStamp, 0, 4);
+            int month = getDigits(timeStamp, 5, 2);
+            int day = getDigits(timeStamp, 8, 2);
+            int hour = getDigits(timeStamp, 11, 2);
+            int minute = getDigits(timeStamp, 14, 2);
+            int second = getDigits(timeStamp, 17, 2);
+            int i = 19;
+            int millis = 0;
+            boolean valid = year >= 0 && month >= 0 && day >= 0 &&
+                            hour >= 0 && hour < 24 &&
+                            minute >= 0 && minute < 60 &&
+                            second >= 0 && second < 60;
+            if (valid && timeStamp.charAt(i) == '.') {
+                int start = ++i;
+                for (int scale = 100; i < length && getDigits(timeStamp, i, 1) >= 0; i++) {
+                    millis += getDigits(timeStamp, i, 1) * scale;
+                    scale /= 10;
+                }
+                valid = i > start;
+            }
+            int offsetMinutes = 0;
+            if (valid && !(i == length - 1 && timeStamp.charAt(i) == 'Z')) {
+                if (i == length - 6 && timeStamp.charAt(i + 3) == ':' &&
+                    (timeStamp.charAt(i) == '+' || timeStamp.charAt(i) == '-')) {
+                    int offsetHour = getDigits(timeStamp, i + 1, 2);
+                    int offsetMinute = getDigits(timeStamp, i + 4, 2);
+                    valid = offsetHour >= 0 && offsetHour < 24 &&
+                            offsetMinute >= 0 && offsetMinute < 60;
+                    offsetMinutes = (offsetHour * 60 + offsetMinute) *
+                            (timeStamp.charAt(i) == '+' ? 1 : -1);
+                } else {
+                    valid = false;
+                }
+            }
+            if (valid) {
+                try {
+                    long days = LocalDate.of(year, month, day).toEpochDay();
+                    return ((days * 86400 + hour * 3600 + (minute - offsetMinutes) * 60 +
+                            second) * 1000) + millis;
+                } catch (DateTimeException e) {
+                    // Let ISODateTime report the error.
+                }
+            }
+        }
+        return ISODateTime.decode(timeStamp, ISODateTime.COMPLETE).getTimeInMillis();
+    }
+
+    /**
+     * Unverified view of a SAD object.
+     * 
+     * Makes it possible rejecting obviously invalid authorizations before
+     * the signature validation.  Must never be used for accepting authorizations.
+     */
+    public static class UnverifiedClaims {
+
+        CBORMap claims;
+        byte[] signedFwpAssertion;
+
+        public UnverifiedClaims(byte[] signedFwpAssertion) {
+            this.signedFwpAssertion = signedFwpAssertion;
+            claims = CBORDecoder.decode(signedFwpAssertion).getMap();
+        }
+
+        private String getString(FWPElements element) {
+            return claims.get(element.cborLabel).getString();
+        }
+
+        public long getTimeStampMillis() {
+            return parseTimeStamp(getString(FWPElements.TIME_STAMP));
+        }
+
+        public String getPayeeHost() {
+            return getString(FWPElements.PAYEE_HOST);
+        }
+
+        public FWPPaymentRequest getPaymentRequest() {
+            return new FWPPaymentRequest(claims.get(FWPElements.PAYMENT_REQUEST.cborLabel));
+        }
+    }
+
+    // Ed25519 signature waiting for batch validation.
+    private FWPCrypto.FidoSignature deferredSignature;
+
     public FWPAssertionDecoder(byte[] signedFwpAssertion) {
-        // Convert SAD binary into CBOR objects.
-        this(CBORDecoder.decode(signedFwpAssertion).getMap());
+        this(signedFwpAssertion, false);
     }
         
     public FWPAssertionDecoder(CBORMap signedFwpAssertion) {
-        fwpAssertion = signedFwpAssertion;
-        
-        // Payment Request (PRCD)
-        paymentRequest = new FWPPaymentRequest(
-                fwpAssertion.get(FWPElements.PAYMENT_REQUEST.cborLabel));
+        this(signedFwpAssertion, null, false);
+    }
+
+    /**
+     * Decode a SAD object that has already been decoded as unverified claims.
+     *
+     * The CBOR map of the claims is reused (and consumed) by the decoder.
+     *
+     * @param unverifiedClaims Claims of a SAD object
+     */
+    public FWPAssertionDecoder(UnverifiedClaims unverifiedClaims) {
+        this(unverifiedClaims.claims,
+             FWPSignedData.locate(unverifiedClaims.signedFwpAssertion),
+             false);
+    }
 
-        // Account.
-        accountId = getString(FWPElements.ACCOUNT_ID);
+    private FWPAssertionDecoder(byte[] signedFwpAssertion, boolean deferEd25519) {
+        // Convert SAD binary into CBOR objects.
+        // The binary is kept for signature validation.
+        this(CBORDecoder.decode(signedFwpAssertion).getMap(),
+             FWPSignedData.locate(signedFwpAssertion),
+             deferEd25519);
+    }
+
+    private FWPAssertionDecoder(CBORMap signedFwpAssertion,
+                                FWPSignedData signedData,
+                                boolean deferEd25519) {
+        fwpAssertion = signedFwpAssertion;
         
-        // For usage with the following payment network.
-        paymentNetwork = getString(FWPElements.PAYMENT_NETWORK_ID);
-
-        // Serial number of payment credential. Note: this is unrelated to the
-        // FIDO "credentialId" (which only used locally by the wallet).
-        serialNumber = getString(FWPElements.SERIAL_NUMBER);
-
-        // Platform Data
-        CBORMap platformData = fwpAssertion.get(
-                FWPElements.PLATFORM_DATA.cborLabel).getMap();
-        operatingSystem = new PlatformNameVersion(
-                platformData.get(FWPElements.CBOR_PD_OPERATING_SYSTEM));
-        userAgent = new PlatformNameVersion(
-                platformData.get(FWPElements.CBOR_PD_USER_AGENT));
-
-        // Time Stamp
-        timeStamp = ISODateTime.decode(getString(FWPElements.TIME_STAMP),
-                                       ISODateTime.COMPLETE);
-
-        // Payee Host information from the browser
-        payeeHost = getString(FWPElements.PAYEE_HOST);
-
-        // Optional Network Data.
-        if (fwpAssertion.containsKey(FWPElements.NETWORK_OPTIONS.cborLabel)) {
-            // There is such data, get it!  It can be any CBOR data
-            // that has a 1-2-1 translation to JSON.
-            networkOptions = fwpAssertion.get(FWPElements.NETWORK_OPTIONS.cborLabel);
-            // We mark it as "read" to not get a problem with checkForUnread().
-            networkOptions.scan();
-        }
-
-        // Optional location.
-        if (fwpAssertion.containsKey(FWPElements.LOCATION.cborLabel)) {
-            // There is a location, get it!
-            CBORArray cborLocation = 
-                    fwpAssertion.get(FWPElements.LOCATION.cborLabel).getArray();
-            location = new double[2];
-            for (int i = 0; i < 2; i++) {
-                location[i] = cborLocation.get(i).getFloat64();
-            }
+        for (FWPElements element : FWPElements.values()) {
+            decodeElement(element);
         }
         
         // Finally, the authorization signature.
-        // Note: this must be the last step since it modifies the fwpAssertion.
-        publicKey = FWPCrypto.validateFwpSignature(fwpAssertion, userValidation);
+        // Note: this must be the last step since it may modify the fwpAssertion.
+        FWPCrypto.FidoSignature fidoSignature = 
+                FWPCrypto.decodeFwpSignature(fwpAssertion, signedData, userValidation);
+        if (deferEd25519 && fidoSignature.algorithm == AsymSignatureAlgorithms.ED25519) {
+            deferredSignature = fidoSignature;
+        } else {
+            fidoSignature.validate();
+        }
+        publicKey = fidoSignature.rawCosePublicKey;
 
         // Check that we didn't forgot anything or that there is "other" data.
         fwpAssertion.checkForUnread();
     }
-}
 
+    /**
+     * Lazy (projection) mode decoding.
+     * 
+     * Only the declared elements are made available and they are decoded on
+     * first access.  Accessing an undeclared element throws an exception.
+     * The authorization signature is always validated.  Instead of 
+     * checkForUnread(), a structural check of the top level elements is performed.
+     * 
+     * Note: in this mode decoders must not be shared between threads.
+     * 
+     * @param signedFwpAssertion SAD in binary format
+     * @param declaredElements Elements needed by the caller
+     */
+    public FWPAssertionDecoder(byte[] signedFwpAssertion, FWPElements... declaredElements) {
+        fwpAssertion = CBORDecoder.decode(signedFwpAssertion).getMap();
+        this.declaredElements = EnumSet.noneOf(FWPElements.class);
+        this.declaredElements.addAll(Arrays.asList(declaredElements));
+        decodedElements = EnumSet.noneOf(FWPElements.class);
+
+        // The structural check requires the original (deterministic) layout.
+        FWPSignedData signedData = FWPSignedData.locate(signedFwpAssertion);
+        if (signedData == null) {
+            throw new FWPException("Unexpected SAD layout");
+        }
+        if (signedData.unknownElements) {
+            throw new FWPException("Unknown element(s) in SAD");
+        }
+        for (FWPElements element : FWPElements.values()) {
+            // NETWORK_OPTIONS and LOCATION are optional.
+            if (!signedData.hasElement(element) &&
+                element != FWPElements.NETWORK_OPTIONS &&
+                element != FWPElements.LOCATION) {
+                throw new FWPException("Missing element: " + element.toString());
+            }
+        }
+
+        // The authorization signature.
+        publicKey = FWPCrypto.validateFwpSignature(fwpAssertion, signedData, userValidation);
+
+        // The authorization container is always fully decoded.
+        fwpAssertion.get(FWPElements.AUTHORIZATION.cborLabel).checkForUnread();
+    }
+
+    /**
+     * Batch decoding result.
+     * 
+     * Holds either a successfully decoded (and verified) assertion
+     * or the reason why the assertion was rejected.
+     */
+    public static class DecodingResult {
+
+        FWPAssertionDecoder decoder;
+        Exception failure;
+
+        DecodingResult(FWPAssertionDecoder decoder, Exception failure) {
+            this.decoder = decoder;
+            this.failure = failure;
+        }
+
+        public boolean isValid() {
+            return decoder != null;
+        }
+
+        public FWPAssertionDecoder getDecoder() {
+            return decoder;
+        }
+
+        public Exception getFailure() {
+            return failure;
+        }
+    }
+
+    /**
+     * Decode and verify a batch of SAD objects using the common fork/join pool.
+     * 
+     * @param signedFwpAssertions List of SAD objects
+     * @return List of results in the same order as the input
+     */
+    public static List<DecodingResult> decodeAll(List<byte[]> signedFwpAssertions) {
+        return decodeAll(signedFwpAssertions, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decode and verify a batch of SAD objects in parallel.
+     * 
+     * A failing SAD object does not affect the other members of the batch.
+     * Ed25519 signatures are verified in (randomized) batches.  Only if a
+     * batch fails, its signatures are verified one by one.
+     * 
+     * @param signedFwpAssertions List of SAD objects
+     * @param executor Pool performing the actual work
+     * @return List of results in the same order as the input
+     */
+    public static List<DecodingResult> decodeAll(List<byte[]> signedFwpAssertions,
+                                                 ExecutorService executor) {
+        ArrayList<Future<FWPAssertionDecoder>> futures = 
+                new ArrayList<>(signedFwpAssertions.size());
+        for (byte[] signedFwpAssertion : signedFwpAssertions) {
+            futures.add(executor.submit(() -> new FWPAssertionDecoder(signedFwpAssertion, true)));
+        }
+        ArrayList<DecodingResult> results = new ArrayList<>(futures.size());
+        ArrayList<DecodingResult> deferred = new ArrayList<>();
+        for (Future<FWPAssertionDecoder> future : futures) {
+            DecodingResult result = getResult(future);
+            if (result.isValid() && result.decoder.deferredSignature != null) {
+                deferred.add(result);
+            }
+            results.add(result);
+        }
+
+        // Ed25519 signatures are verified in batches.
+        ArrayList<Future<?>> batches = new ArrayList<>();
+        for (int i = 0; i < deferred.size(); i += FWPEd25519BatchVerifier.MAX_BATCH) {
+            List<DecodingResult> batch = deferred.subList(
+                    i, Math.min(deferred.size(), i + FWPEd25519BatchVerifier.MAX_BATCH));
+            batches.add(executor.submit(() -> validateBatch(batch)));
+        }
+        for (Future<?> batch : batches) {
+            try {
+                batch.get();
+            } catch (ExecutionException e) {
+                // Not expected, but unverified signatures must never pass.
+                throw new FWPException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FWPException(e);
+            }
+        }
+        return results;
+    }
+
+    private static void validateBatch(List<DecodingResult> batch) {
+        ArrayList<FWPCrypto.FidoSignature> signatures = new ArrayList<>(batch.size());
+        for (DecodingResult result : batch) {
+            signatures.add(result.decoder.deferredSignature);
+        }
+        // A single signature is not worth a batch.
+        boolean valid;
+        try {
+            valid = signatures.size() > 1 && FWPEd25519BatchVerifier.verify(signatures);
+        } catch (Exception e) {
+            valid = false;
+        }
+        for (DecodingResult result : batch) {
+            if (!valid) {
+                // Find the culprit(s).
+                try {
+                    result.decoder.deferredSignature.validate();
+                } catch (Exception e) {
+                    result.decoder = null;
+                    result.failure = e;
+                    continue;
+                }
+            }
+            result.decoder.deferredSignature = null;
+        }
+    }
+
+    private static DecodingResult getResult(Future<FWPAssertionDecoder> future) {
+        try {
+            return new DecodingResult(future.get(), null);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            return new DecodingResult(null, 
+                    cause instanceof Exception ? (Exception) cause : e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FWPException(e);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.fwp;
+
+import java.util.Arrays;
+
+import org.webpki.json.JSONObjectReader;
+import org.webpki.json.JSONParser;
+
+import org.webpki.util.UTF8;
+
+/**
+ * Single pass clientDataJSON validator.
+ *
+ * Checks "challenge", "type" and "origin" directly on the clientDataJSON
+ * bytes without creating JSON objects or strings.  Other properties are
+ * skipped.  The rare case where one of the checked properties contains
+ * escape sequences is handed over to the standard JSON parser.
+ *
+ * Duplicates of the checked properties are rejected.  Unlike the JSON parser,
+ * duplicates of skipped properties are not detected since they cannot affect
+ * the outcome of the validation.
+ */
+class FWPClientDataValidator {
+
+    private FWPClientDataValidator() {}
+
+    static final byte[] CHALLENGE_KEY   = UTF8.encode(FWPCrypto.CHALLENGE);
+    static final byte[] TYPE_KEY        = UTF8.encode(FWPCrypto.CDJ_TYPE);
+    static final byte[] ORIGIN_KEY      = UTF8.encode(FWPCrypto.CDJ_ORIGIN);
+    static final byte[] GET_ARGUMENT    = UTF8.encode(FWPCrypto.CDJ_GET_ARGUMENT);
+
+    static final int MAX_NESTING        = 20;
+
+    static final byte[] BASE64URL_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(BASE64URL_VALUES, (byte) -1);
+        String alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64URL_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class EscapedData extends Exception {
+        EscapedData() {
+            super(null, null, false, false);
+        }
+    }
+
+    static final EscapedData ESCAPED_DATA = new EscapedData();
+
+    /**
+     * Validate clientDataJSON.
+     *
+     * @param clientDataJSON FIDO application data
+     * @param challenge Expected challenge (SHA-256 of the signed data)
+     * @param allowedOrigins UTF-8 encoded origins or <code>null</code> (=any origin)
+     */
+    static void validate(byte[] clientDataJSON, byte[] challenge, byte[][] allowedOrigins) {
+        try {
+            new Scanner(clientDataJSON).validate(challenge, allowedOrigins);
+        } catch (EscapedData e) {
+            validateParsed(JSONParser.parse(clientDataJSON), challenge, allowedOrigins);
+        }
+    }
+
+    static void validateParsed(JSONObjectReader clientData,
+                               byte[] challenge,
+                               byte[][] allowedOrigins) {
+        if (!Arrays.equals(challenge, clientData.getBinary(FWPCrypto.CHALLENGE))) {
+            throw FWPRejection.get(FWPRejection.Code.CLIENT_DATA_MISMATCH);
+        }
+        if (!clientData.getString(FWPCrypto.CDJ_TYPE).equals(FWPCrypto.CDJ_GET_ARGUMENT)) {
+            throw FWPRejection.get(FWPRejection.Code.CLIENT_DATA_MISMATCH);
+        }
+        String origin = clientData.getString(FWPCrypto.CDJ_ORIGIN);
+        byte[] rawOrigin = UTF8.encode(origin);
+        if (!originAllowed(rawOrigin, 0, rawOrigin.length, allowedOrigins)) {
+            throw FWPRejection.get(FWPRejection.Code.CLIENT_DATA_MISMATCH);
+        }
+    }
+
+    static boolean originAllowed(byte[] data, int start, int end, byte[][] allowedOrigins) {
+        if (allowedOrigins == null) {
+            return true;
+        }
+        for (byte[] allowedOrigin : allowedOrigins) {
+            if (Arrays.equals(data, start, end, allowedOrigin, 0, allowedOrigin.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static class Scanner {
+
+        byte[] json;
+        int pos;
+
+        // Position of the last scanned string (excluding quotes).
+        int stringStart;
+        int stringEnd;
+        boolean escaped;
+
+        Scanner(byte[] json) {
+            this.json = json;
+        }
+
+        FWPRejection syntaxError() {
+            return FWPRejection.get(FWPRejection.Code.CLIENT_DATA_MALFORMED);
+        }
+
+        int next() {
+            if (pos >= json.length) {
+                throw syntaxError();
+            }
+            return json[pos++];
+        }
+
+        static boolean isWhiteSpace(int c) {
+            return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+        }
+
+        int nextNonWhiteSpace() {
+            int c;
+            do {
+                c = next();
+            } while (isWhiteSpace(c));
+            return c;
+        }
+
+        void expect(int expected) {
+            if (nextNonWhiteSpace() != expected) {
+                throw syntaxError();
+            }
+        }
+
+        // Called after the leading quote.
+        void scanString() {
+            stringStart = pos;
+            escaped = false;
+            while (true) {
+                int c = next();
+                if (c == '"') {
+                    break;
+                }
+                if (c == '\\') {
+                    escaped = true;
+                    if (next() == 'u') {
+                        advance(4);
+                    }
+                } else if (c >= 0 && c < ' ') {
+                    throw syntaxError();
+                }
+            }
+            stringEnd = pos - 1;
+        }
+
+        void advance(int length) {
+            if (length > json.length - pos) {
+                throw syntaxError();
+            }
+            pos += length;
+        }
+
+        boolean stringEquals(byte[] expected) {
+            return Arrays.equals(json, stringStart, stringEnd, expected, 0, expected.length);
+        }
+
+        void scanStringValue() throws EscapedData {
+            if (nextNonWhiteSpace() != '"') {
+                throw syntaxError();
+            }
+            scanString();
+            if (escaped) {
+                throw ESCAPED_DATA;
+            }
+        }
+
+        // Skips any JSON value.  The value is not validated in detail.
+        void skipValue(int nesting) {
+            if (nesting > MAX_NESTING) {
+                throw syntaxError();
+            }
+            int c = nextNonWhiteSpace();
+            switch (c) {
+                case '"':
+                    scanString();
+                    return;
+
+                case '{':
+                case '[':
+                    int end = c == '{' ? '}' : ']';
+                    int oneOf = nextNonWhiteSpace();
+                    if (oneOf == end) {
+                        return;
+                    }
+                    pos--;
+                    do {
+                        if (c == '{') {
+                            expect('"');
+                            scanString();
+                            expect(':');
+                        }
+                        skipValue(nesting + 1);
+                        oneOf = nextNonWhiteSpace();
+                    } while (oneOf == ',');
+                    if (oneOf != end) {
+                        throw syntaxError();
+                    }
+                    return;
+
+                default:
+                    // Numbers and literals.
+                    int start = pos - 1;
+                    while (pos < json.length) {
+                        c = json[pos];
+                        if (c == ',' || c == '}' || c == ']' || isWhiteSpace(c)) {
+                            break;
+                        }
+                        pos++;
+                    }
+                    if (!validPrimitive(start)) {
+                        throw syntaxError();
+                    }
+            }
+        }
+
+        boolean validPrimitive(int start) {
+            int c = json[start];
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                for (int i = start + 1; i < pos; i++) {
+                    c = json[i];
+                    if (!((c >= '0' && c <= '9') ||
+                          c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-')) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            int length = pos - start;
+            return (length == 4 && (Arrays.equals(json, start, pos, TRUE, 0, 4) ||
+                                    Arrays.equals(json, start, pos, NULL, 0, 4))) ||
+                   (length == 5 && Arrays.equals(json, start, pos, FALSE, 0, 5));
+        }
+
+        static final byte[] TRUE  = {'t', 'r', 'u', 'e'};
+        static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+        static final byte[] NULL  = {'n', 'u', 'l', 'l'};
+
+        // Compares a base64url encoded string with binary data.
+        boolean base64UrlEquals(byte[] expected) {
+            int length = stringEnd - stringStart;
+            // Unpadded base64url.
+            if (length != (expected.length * 4 + 2) / 3) {
+                return false;
+            }
+            int bits = 0;
+            int bitCount = 0;
+            int q = 0;
+            for (int i = stringStart; i < stringEnd; i++) {
+                int c = json[i];
+                int value = c < 0 ? -1 : BASE64URL_VALUES[c];
+                if (value < 0) {
+                    return false;
+                }
+                bits = (bits << 6) | value;
+                bitCount += 6;
+                if (bitCount >= 8) {
+                    bitCount -= 8;
+                    if ((byte)(bits >>> bitCount) != expected[q++]) {
+                        return false;
+                    }
+                    bits &= (1 << bitCount) - 1;
+                }
+            }
+            // Trailing bits must be zero (canonical encoding).
+            return bits == 0;
+        }
+
+        void validate(byte[] challenge, byte[][] allowedOrigins) throws EscapedData {
+            boolean challengeFound = false;
+            boolean typeFound = false;
+            boolean originFound = false;
+            expect('{');
+            int c = nextNonWhiteSpace();
+            if (c != '}') {
+                pos--;
+                do {
+                    expect('"');
+                    scanString();
+                    if (escaped) {
+                        // Could be any of the properties we are looking for.
+                        throw ESCAPED_DATA;
+                    }
+                    expect(':');
+                    if (stringEquals(CHALLENGE_KEY)) {
+                        if (challengeFound) {
+                            throw syntaxError();
+                        }
+                        challengeFound = true;
+                        scanStringValue();
+                        if (!base64UrlEquals(challenge)) {
+                            throw FWPRejection.get(FWPRejection.Code.CLIENT_DATA_MISMATCH);
+                        }
+                    } else if (stringEquals(TYPE_KEY)) {
+                        if (typeFound) {
+                            throw syntaxError();
+                        }
+                        typeFound = true;
+                        scanStringValue();
+                        if (!stringEquals(GET_ARGUMENT)) {
+                            throw FWPRejection.get(FWPRejection.Code.CLIENT_DATA_MISMATCH);
+                        }
+                    } else if (stringEquals(ORIGIN_KEY)) {
+                        if (originFound) {
+                            throw syntaxError();
+                        }
+                        originFound = true;
+                        scanStringValue();
+                        if (!originAllowed(json, stringStart, stringEnd, allowedOrigins)) {
+                            // The origin is not echoed since it is attacker controlled.
+                            throw FWPRejection.get(FWPRejection.Code.CLIENT_DATA_MISMATCH);
+                        }
+                    } else {
+                        skipValue(0);
+                    }
+                    c = nextNonWhiteSpace();
+                } while (c == ',');
+                if (c != '}') {
+                    throw syntaxError();
+                }
+            }
+            // Nothing but white space may follow.
+            while (pos < json.length) {
+                if (!isWhiteSpace(json[pos++])) {
+                    throw syntaxError();
+                }
+            }
+            if (!challengeFound || !typeFound || !originFound) {
+                throw syntaxError();
+            }
+        }
+    }
+}
@@ -24,6 +24,8 @@ import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
 
 import java.security.interfaces.ECKey;
 import java.security.interfaces.RSAKey;
@@ -46,7 +48,6 @@ import org.webpki.crypto.SignatureWrapper;
 
 import org.webpki.json.JSONObjectWriter;
 import org.webpki.json.JSONOutputFormats;
-import org.webpki.json.JSONParser;
 
 import org.webpki.util.UTF8;
 
@@ -111,15 +112,68 @@ public class FWPCrypto {
     
     public enum UserValidation {PRESENT, VERIFIED};
 
+    // Converted public keys.  Setting it to null disables caching.
+    static volatile FWPPublicKeyCache publicKeyCache = 
+            new FWPPublicKeyCache(FWPPublicKeyCache.DEFAULT_MAX_ENTRIES,
+                                  FWPPublicKeyCache.DEFAULT_TIME_TO_LIVE);
+
+    public static void setPublicKeyCache(FWPPublicKeyCache publicKeyCache) {
+        FWPCrypto.publicKeyCache = publicKeyCache;
+    }
+
+    public static FWPPublicKeyCache getPublicKeyCache() {
+        return publicKeyCache;
+    }
+
+    // Optional ES256 engine for hot keys.  null means that JCA is used for all keys.
+    static volatile FWPP256Engine p256Engine;
+
+    public static void setP256Engine(FWPP256Engine p256Engine) {
+        FWPCrypto.p256Engine = p256Engine;
+    }
+
+    public static FWPP256Engine getP256Engine() {
+        return p256Engine;
+    }
+
+    // Allowed clientDataJSON origins (UTF-8).  null means any origin.
+    static volatile byte[][] allowedOrigins;
+
+    /**
+     * Set allowed clientDataJSON origins.
+     * 
+     * @param origins Origins like "https://mybank.com" or <code>null</code> (=any origin)
+     */
+    public static void setAllowedOrigins(String... origins) {
+        if (origins == null) {
+            allowedOrigins = null;
+            return;
+        }
+        byte[][] encodedOrigins = new byte[origins.length][];
+        for (int i = 0; i < origins.length; i++) {
+            encodedOrigins[i] = UTF8.encode(origins[i]);
+        }
+        allowedOrigins = encodedOrigins;
+    }
+
+    static FWPPublicKeyCache.CachedKey getCachedKey(CBORObject cborPublicKey,
+                                                    byte[] rawCosePublicKey) {
+        FWPPublicKeyCache currentCache = publicKeyCache;
+        if (currentCache == null) {
+            return new FWPPublicKeyCache.CachedKey(CBORPublicKey.convert(cborPublicKey), 0);
+        }
+        return currentCache.get(cborPublicKey, rawCosePublicKey);
+    }
+
 
     public static byte[] addSignature(byte[] unsignedFwpAssertion,
                                       byte[] clientDataJSON,
                                       byte[] authenticatorData,
                                       byte[] signature) {
-        if (clientDataJSON != null && 
-            !Arrays.equals(HashAlgorithms.SHA256.digest(unsignedFwpAssertion),
-                JSONParser.parse(clientDataJSON).getBinary(CHALLENGE))) {
-            throw new CryptoException("Message hash mismatch");
+        if (clientDataJSON != null) {
+            FWPClientDataValidator.validate(clientDataJSON,
+                                            HashAlgorithms.SHA256.digest(unsignedFwpAssertion),
+                                            allowedOrigins);
         }
         CBORMap cborFwpAssertion = CBORDecoder.decode(unsignedFwpAssertion).getMap();
         CBORMap authorization = cborFwpAssertion.get(FWP_AUTHORIZATION_LABEL).getMap();
@@ -176,7 +230,7 @@ public class FWPCrypto {
         }
 
         CBORMap appendSignatureObject() {
-            int coseAlgorithm = publicKey2CoseSignatureAlgorithm(CBORPublicKey.convert(publicKey));
+            int coseAlgorithm = getCachedKey(publicKey, publicKey.encode()).coseAlgorithm;
 
             // Add the authorization container map including the members that
             // also are signed.
@@ -229,7 +283,15 @@ public class FWPCrypto {
     }
     
     private static void algorithmComplianceTest(PublicKey publicKey, int coseAlgorithm) {
-        if (publicKey2CoseSignatureAlgorithm(publicKey) != coseAlgorithm) {
+        algorithmComplianceTest(publicKey, 
+                                publicKey2CoseSignatureAlgorithm(publicKey), 
+                                coseAlgorithm);
+    }
+
+    private static void algorithmComplianceTest(PublicKey publicKey,
+                                                int keyCoseAlgorithm,
+                                                int coseAlgorithm) {
+        if (keyCoseAlgorithm != coseAlgorithm) {
             throw new CryptoException("Algorithm ("  + coseAlgorithm + 
                     ") does not match public key type: " + publicKey.getAlgorithm());
         }
@@ -249,43 +311,156 @@ public class FWPCrypto {
                                              byte[] authenticatorData,
                                              byte[] clientData,
                                              byte[] signature) {
+        FWPVerifierPool.Engines engines = FWPVerifierPool.acquire();
         try {
-            if (!new SignatureWrapper(algorithm, publicKey)
-                // Weird, FIDO does not use the same ECDSA signature format as COSE and JOSE
-                .ecdsaAsn1SignatureEncoding(true)
-                .update(authenticatorData)
-                // Creating clientDataHash
-                .update(HashAlgorithms.SHA256.digest(clientData))
-                .verify(signature)) {
-                throw new GeneralSecurityException("Signature validation failed");
+            // Creating clientDataHash
+            validateFidoSignatureWithHash(algorithm,
+                                          publicKey,
+                                          authenticatorData,
+                                          engines.sha256(clientData),
+                                          signature);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException(e);
+        } finally {
+            FWPVerifierPool.release(engines);
+        }
+    }
+
+    static void validateFidoSignatureWithHash(AsymSignatureAlgorithms algorithm, 
+                                              PublicKey publicKey,
+                                              byte[] authenticatorData,
+                                              byte[] clientDataHash,
+                                              byte[] signature) {
+        boolean valid;
+        try {
+            if (algorithm == AsymSignatureAlgorithms.ECDSA_SHA256) {
+                FWPP256Engine currentEngine = p256Engine;
+                FWPP256Engine.KeyTable keyTable = currentEngine == null ?
+                        null : currentEngine.getKeyTable(publicKey);
+                if (keyTable != null) {
+                    if (!keyTable.verify(authenticatorData, clientDataHash, signature)) {
+                        throw FWPRejection.get(FWPRejection.Code.SIGNATURE_INVALID);
+                    }
+                    return;
+                }
+            }
+            // Verifiers are reused since JCA lookups are costly.
+            // Weird, FIDO does not use the same ECDSA signature format as COSE and JOSE,
+            // but ASN.1 is what JCA expects so signatures can be used as is.
+            FWPVerifierPool.Engines engines = FWPVerifierPool.acquire();
+            try {
+                Signature verifier = engines.getVerifier(algorithm);
+                verifier.initVerify(publicKey);
+                verifier.update(authenticatorData);
+                verifier.update(clientDataHash);
+                valid = verifier.verify(signature);
+            } finally {
+                FWPVerifierPool.release(engines);
             }
+        } catch (SignatureException e) {
+            // Malformed signature.
+            valid = false;
         } catch (GeneralSecurityException e) {
             throw new CryptoException(e);
         }
+        if (!valid) {
+            throw FWPRejection.get(FWPRejection.Code.SIGNATURE_INVALID);
+        }
     }
     
+    /**
+     * Core FIDO signature of an FWP assertion.
+     * 
+     * Makes it possible to defer (batch) the signature validation.
+     */
+    static class FidoSignature {
+
+        AsymSignatureAlgorithms algorithm;
+        PublicKey publicKey;
+        byte[] authenticatorData;
+        byte[] clientDataJSON;  // null in the ctap2 mode
+        byte[] signedDataHash;  // clientDataHash in the ctap2 mode
+        byte[] signature;
+        byte[] rawCosePublicKey;
+
+        byte[] getClientDataHash() {
+            return clientDataJSON == null ? 
+                    signedDataHash : HashAlgorithms.SHA256.digest(clientDataJSON);
+        }
+
+        void validate() {
+            if (clientDataJSON == null) {
+                validateFidoSignatureWithHash(algorithm,
+                                              publicKey,
+                                              authenticatorData,
+                                              signedDataHash,
+                                              signature);
+            } else {
+                validateFidoSignature(algorithm,
+                                      publicKey,
+                                      authenticatorData,
+                                      clientDataJSON,
+                                      signature);
+            }
+        }
+    }
+
     /**
      * Validate FWP assertion with respect to crypto.
      *
      * Exclusively called by FWPAssertionDecoder
      * @param fwpAssertion FWP assertion
+     * @param signedData Signed data of the binary assertion or <code>null</code>
      * @param userValidationFlags From the authenticator
      * @return Public key in COSE format
      */
     static byte[] validateFwpSignature(CBORMap fwpAssertion,
+                                       FWPSignedData signedData,
                                        HashSet<UserValidation> userValidationFlags) {
+        FidoSignature fidoSignature = 
+                decodeFwpSignature(fwpAssertion, signedData, userValidationFlags);
+        fidoSignature.validate();
+        return fidoSignature.rawCosePublicKey;
+    }
+
+    /**
+     * Validate FWP assertion with respect to crypto, except for the core FIDO signature.
+     *
+     * @param fwpAssertion FWP assertion
+     * @param signedData Signed data of the binary assertion or <code>null</code>
+     * @param userValidationFlags From the authenticator
+     * @return FIDO signature to validate
+     */
+    static FidoSignature decodeFwpSignature(CBORMap fwpAssertion,
+                                            FWPSignedData signedData,
+                                            HashSet<UserValidation> userValidationFlags) {
         // Retrieve the authorization object.
         CBORMap authorization = fwpAssertion.get(FWP_AUTHORIZATION_LABEL).getMap();
         
-        // Fetch the core FIDO assertion elements. Remove them
-        // from the FWP assertion as well since they are not a
-        // part of the FIDO "challenge" data.
-        byte[] authenticatorData = authorization.remove(AS_AUTHENTICATOR_DATA).getBytes();
         // Note that the ctap2 option removes "clientDataJSON" from FWP assertions.
         boolean ctap2 = !authorization.containsKey(AS_CLIENT_DATA_JSON);
-        byte[] clientDataJSON = 
-                ctap2 ? null : authorization.remove(AS_CLIENT_DATA_JSON).getBytes();
-        byte[] signature = authorization.remove(AS_SIGNATURE).getBytes();
+
+        // If the binary assertion is available, the signed data is described
+        // as byte ranges of the original assertion, making re-encoding redundant.
+
+        // Fetch the core FIDO assertion elements.
+        byte[] authenticatorData;
+        byte[] clientDataJSON;
+        byte[] signature;
+        if (signedData == null) {
+            // Remove them from the FWP assertion as well since they are not a
+            // part of the FIDO "challenge" data.
+            authenticatorData = authorization.remove(AS_AUTHENTICATOR_DATA).getBytes();
+            clientDataJSON = ctap2 ? null : authorization.remove(AS_CLIENT_DATA_JSON).getBytes();
+            signature = authorization.remove(AS_SIGNATURE).getBytes();
+        } else {
+            if (signedData.ctap2 != ctap2) {
+                throw new CryptoException("Inconsistent authorization data");
+            }
+            authenticatorData = authorization.get(AS_AUTHENTICATOR_DATA).getBytes();
+            clientDataJSON = ctap2 ? null : authorization.get(AS_CLIENT_DATA_JSON).getBytes();
+            signature = authorization.get(AS_SIGNATURE).getBytes();
+        }
         
         // Collect authenticator data that may be useful in disputes.
         // Note that possible extension data (ED) is ignored.
@@ -299,30 +474,48 @@ public class FWPCrypto {
         // The public key must be available and be in COSE format.
         // Here it is converted to the Java format since this
         // is necessary for validation using Java standard tools.
+        // Recurring keys are fetched from the public key cache.
         CBORObject cborPublicKey = authorization.get(AS_PUBLIC_KEY);
-        PublicKey publicKey = CBORPublicKey.convert(cborPublicKey);
+        byte[] rawCosePublicKey = cborPublicKey.encode();
+        FWPPublicKeyCache.CachedKey cachedKey = getCachedKey(cborPublicKey, rawCosePublicKey);
+        PublicKey publicKey = cachedKey.publicKey;
+        // Cached keys are not converted, so we mark the key as "read"
+        // to not get a problem with checkForUnread().
+        cborPublicKey.scan();
         
         // The mandatory COSE signature algorithm.
         int coseAlgorithm = authorization.get(AS_ALGORITHM).getInt32();
         
         // Does the algorithm match the public key?
-        algorithmComplianceTest(publicKey, coseAlgorithm);
+        algorithmComplianceTest(publicKey, cachedKey.coseAlgorithm, coseAlgorithm);
         
+        // The hash of the signed data is computed once.
+        byte[] signedDataHash;
+        try {
+            signedDataHash = signedData == null ?
+                HashAlgorithms.SHA256.digest(fwpAssertion.encode()) : signedData.digest();
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException(e);
+        }
+
         // This is not WebAuthn, this is FIDO Web Pay: 
-        if (!ctap2 && !Arrays.equals(HashAlgorithms.SHA256.digest(fwpAssertion.encode()),
-                                     JSONParser.parse(clientDataJSON).getBinary(CHALLENGE))) {
-            throw new CryptoException("Message hash mismatch");
+        if (!ctap2) {
+            FWPClientDataValidator.validate(clientDataJSON, signedDataHash, allowedOrigins);
         }
         
-        // Everything is good so far, now take on the core FIDO signature.
-        validateFidoSignature(getWebPkiAlgorithm(coseAlgorithm),
-                              publicKey,
-                              authenticatorData,
-                              ctap2 ? fwpAssertion.encode() : clientDataJSON,
-                              signature);
-
-        // Return the "raw" public key for looking up in an RP database.
-        return cborPublicKey.encode();
+        // Everything is good so far, what remains is the core FIDO signature.
+        // In the ctap2 mode the signed data hash is used as clientDataHash.
+        FidoSignature fidoSignature = new FidoSignature();
+        fidoSignature.algorithm = getWebPkiAlgorithm(coseAlgorithm);
+        fidoSignature.publicKey = publicKey;
+        fidoSignature.authenticatorData = authenticatorData;
+        fidoSignature.clientDataJSON = clientDataJSON;
+        fidoSignature.signedDataHash = signedDataHash;
+        fidoSignature.signature = signature;
+
+        // The "raw" public key for looking up in an RP database.
+        fidoSignature.rawCosePublicKey = rawCosePublicKey;
+        return fidoSignature;
     }
     
     /**
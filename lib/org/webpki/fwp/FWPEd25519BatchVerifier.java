@@ -0,0 +1,444 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.fwp;
+
+import java.math.BigInteger;
+
+import java.nio.ByteBuffer;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Randomized batch verification of Ed25519 signatures.
+ *
+ * For signatures (R<sub>i</sub>, S<sub>i</sub>) by keys A<sub>i</sub> with
+ * k<sub>i</sub> = SHA-512(R<sub>i</sub> || A<sub>i</sub> || M<sub>i</sub>)
+ * and random 128-bit z<sub>i</sub> the following equation is checked:
+ * <pre>
+ *   8 * ((-&sum;z<sub>i</sub>S<sub>i</sub>)B + &sum;z<sub>i</sub>R<sub>i</sub> + &sum;(z<sub>i</sub>k<sub>i</sub>)A<sub>i</sub>) = 0
+ * </pre>
+ * The multi-scalar multiplication shares doublings between all terms
+ * which is what makes batches cheaper than individual validations.
+ * Signatures by the same key are combined into a single term.
+ *
+ * Note that batch verification uses the cofactored equation while single
+ * signatures are verified by JCA (which is cofactorless).  The two only agree
+ * for points in the prime order subgroup which is why R and A encodings with a
+ * small order component are rejected.  A batch that fails (or contains such
+ * data) must be checked per signature, which also identifies the culprits.
+ *
+ * The implementation is not constant time which is fine since only public
+ * data is involved.
+ */
+class FWPEd25519BatchVerifier {
+
+    private FWPEd25519BatchVerifier() {}
+
+    // Largest number of signatures in a single multi-scalar multiplication.
+    static final int MAX_BATCH = 64;
+
+    static final int ED25519_SPKI_LENGTH = 44;
+
+    static final BigInteger L = BigInteger.ONE.shiftLeft(252)
+            .add(new BigInteger("27742317777372353535851937790883648493"));
+
+    static final byte[] L_DIGITS = slide(L);
+
+    static final int[] D;
+    static final int[] D2;
+    static final int[] SQRT_M1;
+    static final Point BASE;
+    static final CachedPoint[] BASE_TABLE;
+
+    static {
+        BigInteger p = FWPField25519.P;
+        BigInteger d = BigInteger.valueOf(-121665)
+                .multiply(BigInteger.valueOf(121666).modInverse(p)).mod(p);
+        D = FWPField25519.create();
+        FWPField25519.fromBigInteger(D, d);
+        D2 = FWPField25519.create();
+        FWPField25519.add(D2, D, D);
+        SQRT_M1 = FWPField25519.create();
+        FWPField25519.fromBigInteger(SQRT_M1, BigInteger.TWO.modPow(
+                p.subtract(BigInteger.ONE).shiftRight(2), p));
+        // The base point has y = 4/5 and a positive x.
+        int[] y = FWPField25519.create();
+        FWPField25519.fromBigInteger(y, BigInteger.valueOf(4)
+                .multiply(BigInteger.valueOf(5).modInverse(p)));
+        BASE = decode(FWPField25519.toBytes(y), 0);
+        BASE_TABLE = BASE.oddMultiples();
+    }
+
+    static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Point in extended coordinates (x = X/Z, y = Y/Z, x * y = T/Z).
+     */
+    static class Point {
+        int[] x = FWPField25519.create();
+        int[] y = FWPField25519.create();
+        int[] z = FWPField25519.create();
+        int[] t = FWPField25519.create();
+
+        // Temporary storage.
+        int[] a = FWPField25519.create();
+        int[] b = FWPField25519.create();
+        int[] c = FWPField25519.create();
+        int[] d = FWPField25519.create();
+
+        static Point identity() {
+            Point identity = new Point();
+            FWPField25519.one(identity.y);
+            FWPField25519.one(identity.z);
+            return identity;
+        }
+
+        // dbl-2008-hwcd
+        void twice() {
+            FWPField25519.square(a, x);
+            FWPField25519.square(b, y);
+            FWPField25519.square(c, z);
+            FWPField25519.add(c, c, c);
+            FWPField25519.add(d, x, y);
+            FWPField25519.square(d, d);
+            // H = A + B, E = H - (X + Y)^2, G = A - B, F = C + G
+            FWPField25519.add(t, a, b);             // H
+            FWPField25519.sub(d, t, d);             // E
+            FWPField25519.sub(a, a, b);             // G
+            FWPField25519.add(c, c, a);             // F
+            FWPField25519.mul(x, d, c);
+            FWPField25519.mul(y, a, t);
+            FWPField25519.mul(t, d, t);
+            FWPField25519.mul(z, c, a);
+        }
+
+        // add-2008-hwcd-3 with a cached second operand
+        void add(CachedPoint q, boolean subtract) {
+            FWPField25519.sub(a, y, x);
+            FWPField25519.mul(a, a, subtract ? q.yPlusX : q.yMinusX);
+            FWPField25519.add(b, y, x);
+            FWPField25519.mul(b, b, subtract ? q.yMinusX : q.yPlusX);
+            FWPField25519.mul(c, t, q.t2d);
+            if (subtract) {
+                FWPField25519.negate(c, c);
+            }
+            FWPField25519.mul(d, z, q.z2);
+            // E = B - A, F = D - C, G = D + C, H = B + A
+            FWPField25519.sub(x, b, a);             // E
+            FWPField25519.add(y, b, a);             // H
+            FWPField25519.sub(z, d, c);             // F
+            FWPField25519.add(d, d, c);             // G
+            FWPField25519.mul(t, x, y);
+            FWPField25519.mul(x, x, z);
+            FWPField25519.mul(y, d, y);
+            FWPField25519.mul(z, z, d);
+        }
+
+        boolean isIdentity() {
+            return FWPField25519.isZero(x) && FWPField25519.equals(y, z);
+        }
+
+        CachedPoint cached() {
+            return new CachedPoint(this);
+        }
+
+        // P, 3P, 5P,... 15P
+        CachedPoint[] oddMultiples() {
+            CachedPoint[] multiples = new CachedPoint[8];
+            multiples[0] = cached();
+            Point doubled = copy();
+            doubled.twice();
+            CachedPoint cachedDouble = doubled.cached();
+            Point sum = copy();
+            for (int i = 1; i < multiples.length; i++) {
+                sum.add(cachedDouble, false);
+                multiples[i] = sum.cached();
+            }
+            return multiples;
+        }
+
+        Point copy() {
+            Point copy = new Point();
+            FWPField25519.copy(copy.x, x);
+            FWPField25519.copy(copy.y, y);
+            FWPField25519.copy(copy.z, z);
+            FWPField25519.copy(copy.t, t);
+            return copy;
+        }
+    }
+
+    /**
+     * Point in a form suitable for additions (Y + X, Y - X, 2Z, 2dT).
+     */
+    static class CachedPoint {
+        int[] yPlusX = FWPField25519.create();
+        int[] yMinusX = FWPField25519.create();
+        int[] z2 = FWPField25519.create();
+        int[] t2d = FWPField25519.create();
+
+        CachedPoint(Point p) {
+            FWPField25519.add(yPlusX, p.y, p.x);
+            FWPField25519.sub(yMinusX, p.y, p.x);
+            FWPField25519.add(z2, p.z, p.z);
+            FWPField25519.mul(t2d, p.t, D2);
+        }
+    }
+
+    /**
+     * Decode a point in the prime order subgroup.
+     *
+     * @return Point or <code>null</code> if the encoding is invalid, non-canonical
+     * or if the point has a small order component
+     */
+    static Point decode(byte[] encoded, int offset) {
+        Point point = decodeUnchecked(encoded, offset);
+        if (point == null) {
+            return null;
+        }
+        // [L]P is the identity only if P lacks a torsion component.
+        Point check = multiScalarMultiply(Collections.singletonList(point.oddMultiples()),
+                                          Collections.singletonList(L_DIGITS));
+        return check.isIdentity() ? point : null;
+    }
+
+    /**
+     * Decode a point according to RFC 8032, 5.1.3.
+     *
+     * @return Point or <code>null</code> if the encoding is invalid or non-canonical
+     */
+    static Point decodeUnchecked(byte[] encoded, int offset) {
+        Point point = new Point();
+        FWPField25519.fromBytes(point.y, encoded, offset);
+        byte[] canonical = FWPField25519.toBytes(point.y);
+        canonical[31] |= encoded[offset + 31] & 0x80;
+        if (!Arrays.equals(canonical, 0, 32, encoded, offset, offset + 32)) {
+            return null;
+        }
+        FWPField25519.one(point.z);
+        // u = y^2 - 1, v = d * y^2 + 1
+        int[] u = FWPField25519.create();
+        int[] v = FWPField25519.create();
+        FWPField25519.square(u, point.y);
+        FWPField25519.mul(v, u, D);
+        FWPField25519.sub(u, u, point.z);
+        FWPField25519.add(v, v, point.z);
+        // x = u * v^3 * (u * v^7)^((p - 5) / 8)
+        int[] v3 = FWPField25519.create();
+        FWPField25519.square(v3, v);
+        FWPField25519.mul(v3, v3, v);
+        int[] x = point.x;
+        FWPField25519.square(x, v3);
+        FWPField25519.mul(x, x, v);
+        FWPField25519.mul(x, x, u);
+        FWPField25519.pow22523(x, x);
+        FWPField25519.mul(x, x, v3);
+        FWPField25519.mul(x, x, u);
+        // Check v * x^2 = +/-u.
+        int[] check = FWPField25519.create();
+        FWPField25519.square(check, x);
+        FWPField25519.mul(check, check, v);
+        if (!FWPField25519.equals(check, u)) {
+            FWPField25519.negate(u, u);
+            if (!FWPField25519.equals(check, u)) {
+                return null;
+            }
+            FWPField25519.mul(x, x, SQRT_M1);
+        }
+        boolean negative = (encoded[offset + 31] & 0x80) != 0;
+        if (negative && FWPField25519.isZero(x)) {
+            return null;
+        }
+        if (FWPField25519.isNegative(x) != negative) {
+            FWPField25519.negate(x, x);
+        }
+        FWPField25519.mul(point.t, x, point.y);
+        return point;
+    }
+
+    static BigInteger decodeScalar(byte[] data, int offset, int length) {
+        byte[] bigEndian = new byte[length + 1];
+        for (int i = 0; i < length; i++) {
+            bigEndian[length - i] = data[offset + i];
+        }
+        return new BigInteger(bigEndian);
+    }
+
+    static byte[] encodeScalar(BigInteger scalar) {
+        byte[] bigEndian = scalar.toByteArray();
+        byte[] littleEndian = new byte[32];
+        for (int i = 0; i < bigEndian.length && i < 32; i++) {
+            littleEndian[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return littleEndian;
+    }
+
+    /**
+     * Signed sliding window recoding with odd digits in [-15, 15].
+     *
+     * @param scalar Scalar less than 2^255
+     * @return Digits
+     */
+    static byte[] slide(BigInteger scalar) {
+        byte[] a = encodeScalar(scalar);
+        byte[] r = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            r[i] = (byte) (1 & (a[i >> 3] >> (i & 7)));
+        }
+        for (int i = 0; i < 256; i++) {
+            if (r[i] == 0) {
+                continue;
+            }
+            for (int b = 1; b <= 6 && i + b < 256; b++) {
+                if (r[i + b] == 0) {
+                    continue;
+                }
+                if (r[i] + (r[i + b] << b) <= 15) {
+                    r[i] += r[i + b] << b;
+                    r[i + b] = 0;
+                } else if (r[i] - (r[i + b] << b) >= -15) {
+                    r[i] -= r[i + b] << b;
+                    for (int k = i + b; k < 256; k++) {
+                        if (r[k] == 0) {
+                            r[k] = 1;
+                            break;
+                        }
+                        r[k] = 0;
+                    }
+                } else {
+                    break;
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Computes &sum;scalar<sub>i</sub>P<sub>i</sub> (Straus' method).
+     */
+    static Point multiScalarMultiply(List<CachedPoint[]> tables, List<byte[]> digits) {
+        int top = 255;
+        while (top >= 0) {
+            boolean found = false;
+            for (byte[] digit : digits) {
+                if (digit[top] != 0) {
+                    found = true;
+                    break;
+                }
+            }
+            if (found) {
+                break;
+            }
+            top--;
+        }
+        Point result = Point.identity();
+        for (int i = top; i >= 0; i--) {
+            result.twice();
+            for (int j = 0; j < digits.size(); j++) {
+                int digit = digits.get(j)[i];
+                if (digit > 0) {
+                    result.add(tables.get(j)[digit >> 1], false);
+                } else if (digit < 0) {
+                    result.add(tables.get(j)[(-digit) >> 1], true);
+                }
+            }
+        }
+        return result;
+    }
+
+    static BigInteger randomScalar() {
+        BigInteger z;
+        do {
+            z = new BigInteger(128, random);
+        } while (z.signum() == 0);
+        return z;
+    }
+
+    /**
+     * Verify Ed25519 signatures as a batch.
+     *
+     * @param signatures Signatures to verify (at most MAX_BATCH)
+     * @return <code>true</code> if all signatures are valid, <code>false</code>
+     * means that at least one signature is invalid or could not be batched
+     */
+    static boolean verify(List<FWPCrypto.FidoSignature> signatures) {
+        try {
+            MessageDigest sha512 = MessageDigest.getInstance("SHA-512");
+            BigInteger baseScalar = BigInteger.ZERO;
+            ArrayList<CachedPoint[]> tables = new ArrayList<>();
+            ArrayList<byte[]> digits = new ArrayList<>();
+            // Signatures by the same key share a term.
+            LinkedHashMap<ByteBuffer, BigInteger> keyScalars = new LinkedHashMap<>();
+            for (FWPCrypto.FidoSignature fidoSignature : signatures) {
+                byte[] signature = fidoSignature.signature;
+                byte[] spki = fidoSignature.publicKey.getEncoded();
+                if (signature.length != 64 || spki.length != ED25519_SPKI_LENGTH) {
+                    return false;
+                }
+                BigInteger s = decodeScalar(signature, 32, 32);
+                if (s.compareTo(L) >= 0) {
+                    return false;
+                }
+                Point r = decode(signature, 0);
+                if (r == null) {
+                    return false;
+                }
+                sha512.update(signature, 0, 32);
+                sha512.update(spki, ED25519_SPKI_LENGTH - 32, 32);
+                sha512.update(fidoSignature.authenticatorData);
+                sha512.update(fidoSignature.getClientDataHash());
+                BigInteger k = decodeScalar(sha512.digest(), 0, 64).mod(L);
+                BigInteger z = randomScalar();
+                baseScalar = baseScalar.add(z.multiply(s));
+                tables.add(r.oddMultiples());
+                digits.add(slide(z));
+                ByteBuffer publicKey =
+                        ByteBuffer.wrap(spki, ED25519_SPKI_LENGTH - 32, 32).slice();
+                BigInteger keyScalar = keyScalars.get(publicKey);
+                keyScalars.put(publicKey, z.multiply(k).add(
+                        keyScalar == null ? BigInteger.ZERO : keyScalar).mod(L));
+            }
+            for (ByteBuffer publicKey : keyScalars.keySet()) {
+                byte[] encoded = new byte[32];
+                publicKey.duplicate().get(encoded);
+                Point a = decode(encoded, 0);
+                if (a == null) {
+                    return false;
+                }
+                tables.add(a.oddMultiples());
+                digits.add(slide(keyScalars.get(publicKey)));
+            }
+            tables.add(BASE_TABLE);
+            digits.add(slide(L.subtract(baseScalar.mod(L)).mod(L)));
+            Point result = multiScalarMultiply(tables, digits);
+            // Multiply by the cofactor.
+            for (int i = 0; i < 3; i++) {
+                result.twice();
+            }
+            return result.isIdentity();
+        } catch (GeneralSecurityException e) {
+            throw new FWPException(e);
+        }
+    }
+}
@@ -40,4 +40,14 @@ public class FWPException extends RuntimeException {
     public FWPException(String message) {
         super(message);
     }
+
+    /**
+     * Constructor for preallocated exceptions.
+     * 
+     * @param message
+     * @param writableStackTrace
+     */
+    FWPException(String message, boolean writableStackTrace) {
+        super(message, null, false, writableStackTrace);
+    }
 }
@@ -0,0 +1,348 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.fwp;
+
+import java.math.BigInteger;
+
+/**
+ * Arithmetic in GF(2^255 - 19).
+ *
+ * Elements are represented by ten signed limbs in radix 2^25.5 (alternating
+ * 26 and 25 bits) which permits products to be accumulated in longs.  All
+ * operations return carried (reduced) limbs so that results can be used as
+ * input to any other operation.
+ *
+ * Note: the implementation is <i>not</i> constant time and must
+ * only be used with public data like in signature validation.
+ */
+class FWPField25519 {
+
+    private FWPField25519() {}
+
+    static final int LIMBS = 10;
+
+    static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+
+    static int[] create() {
+        return new int[LIMBS];
+    }
+
+    static int[] create(long value) {
+        int[] h = create();
+        fromBigInteger(h, BigInteger.valueOf(value));
+        return h;
+    }
+
+    // Bit position of a limb.
+    static int limbOffset(int i) {
+        return 26 * ((i + 1) >> 1) + 25 * (i >> 1);
+    }
+
+    static int limbBits(int i) {
+        return (i & 1) == 0 ? 26 : 25;
+    }
+
+    /**
+     * Decode 32 little-endian bytes.  The most significant bit is ignored.
+     */
+    static void fromBytes(int[] h, byte[] s, int offset) {
+        for (int i = 0; i < LIMBS; i++) {
+            int start = limbOffset(i);
+            long value = 0;
+            for (int b = 0; b < 5; b++) {
+                int index = (start >> 3) + b;
+                if (index < 32) {
+                    value |= (long)(s[offset + index] & 0xff) << (8 * b);
+                }
+            }
+            h[i] = (int)((value >>> (start & 7)) & ((1L << limbBits(i)) - 1));
+        }
+    }
+
+    static void fromBigInteger(int[] h, BigInteger value) {
+        byte[] bigEndian = value.mod(P).toByteArray();
+        byte[] s = new byte[32];
+        for (int i = 0; i < bigEndian.length && i < 32; i++) {
+            s[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        fromBytes(h, s, 0);
+    }
+
+    /**
+     * Canonical (fully reduced) 32 byte little-endian encoding.
+     */
+    static byte[] toBytes(int[] f) {
+        long[] h = new long[LIMBS];
+        for (int i = 0; i < LIMBS; i++) {
+            h[i] = f[i];
+        }
+        // Compute q = floor(h / p), which is either 0 or 1.
+        long q = (19 * h[9] + (1L << 24)) >> 25;
+        for (int i = 0; i < LIMBS; i++) {
+            q = (h[i] + q) >> limbBits(i);
+        }
+        // h - q * p = h + 19 * q - q * 2^255.
+        h[0] += 19 * q;
+        for (int i = 0; i < LIMBS - 1; i++) {
+            long carry = h[i] >> limbBits(i);
+            h[i + 1] += carry;
+            h[i] -= carry << limbBits(i);
+        }
+        h[9] &= (1L << 25) - 1;
+        byte[] s = new byte[32];
+        long accumulator = 0;
+        int accumulatorBits = 0;
+        int k = 0;
+        for (int i = 0; i < LIMBS; i++) {
+            accumulator |= h[i] << accumulatorBits;
+            accumulatorBits += limbBits(i);
+            while (accumulatorBits >= 8) {
+                s[k++] = (byte) accumulator;
+                accumulator >>>= 8;
+                accumulatorBits -= 8;
+            }
+        }
+        s[k] = (byte) accumulator;
+        return s;
+    }
+
+    static boolean isZero(int[] f) {
+        for (byte b : toBytes(f)) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isNegative(int[] f) {
+        return (toBytes(f)[0] & 1) != 0;
+    }
+
+    static boolean equals(int[] f, int[] g) {
+        int[] difference = create();
+        sub(difference, f, g);
+        return isZero(difference);
+    }
+
+    static void copy(int[] h, int[] f) {
+        System.arraycopy(f, 0, h, 0, LIMBS);
+    }
+
+    static void one(int[] h) {
+        h[0] = 1;
+        for (int i = 1; i < LIMBS; i++) {
+            h[i] = 0;
+        }
+    }
+
+    static void zero(int[] h) {
+        for (int i = 0; i < LIMBS; i++) {
+            h[i] = 0;
+        }
+    }
+
+    static void carry(int[] h,
+                      long h0, long h1, long h2, long h3, long h4,
+                      long h5, long h6, long h7, long h8, long h9) {
+        long carry;
+        carry = (h0 + (1L << 25)) >> 26; h1 += carry; h0 -= carry << 26;
+        carry = (h4 + (1L << 25)) >> 26; h5 += carry; h4 -= carry << 26;
+        carry = (h1 + (1L << 24)) >> 25; h2 += carry; h1 -= carry << 25;
+        carry = (h5 + (1L << 24)) >> 25; h6 += carry; h5 -= carry << 25;
+        carry = (h2 + (1L << 25)) >> 26; h3 += carry; h2 -= carry << 26;
+        carry = (h6 + (1L << 25)) >> 26; h7 += carry; h6 -= carry << 26;
+        carry = (h3 + (1L << 24)) >> 25; h4 += carry; h3 -= carry << 25;
+        carry = (h7 + (1L << 24)) >> 25; h8 += carry; h7 -= carry << 25;
+        carry = (h4 + (1L << 25)) >> 26; h5 += carry; h4 -= carry << 26;
+        carry = (h8 + (1L << 25)) >> 26; h9 += carry; h8 -= carry << 26;
+        carry = (h9 + (1L << 24)) >> 25; h0 += carry * 19; h9 -= carry << 25;
+        carry = (h0 + (1L << 25)) >> 26; h1 += carry; h0 -= carry << 26;
+        h[0] = (int) h0;
+        h[1] = (int) h1;
+        h[2] = (int) h2;
+        h[3] = (int) h3;
+        h[4] = (int) h4;
+        h[5] = (int) h5;
+        h[6] = (int) h6;
+        h[7] = (int) h7;
+        h[8] = (int) h8;
+        h[9] = (int) h9;
+    }
+
+    static void add(int[] h, int[] f, int[] g) {
+        carry(h, (long)f[0] + g[0], (long)f[1] + g[1], (long)f[2] + g[2],
+                 (long)f[3] + g[3], (long)f[4] + g[4], (long)f[5] + g[5],
+                 (long)f[6] + g[6], (long)f[7] + g[7], (long)f[8] + g[8],
+                 (long)f[9] + g[9]);
+    }
+
+    static void sub(int[] h, int[] f, int[] g) {
+        carry(h, (long)f[0] - g[0], (long)f[1] - g[1], (long)f[2] - g[2],
+                 (long)f[3] - g[3], (long)f[4] - g[4], (long)f[5] - g[5],
+                 (long)f[6] - g[6], (long)f[7] - g[7], (long)f[8] - g[8],
+                 (long)f[9] - g[9]);
+    }
+
+    static void negate(int[] h, int[] f) {
+        for (int i = 0; i < LIMBS; i++) {
+            h[i] = -f[i];
+        }
+    }
+
+    static void mul(int[] h, int[] f, int[] g) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4],
+             f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4],
+             g5 = g[5], g6 = g[6], g7 = g[7], g8 = g[8], g9 = g[9];
+        long h0 = f0 * g0 +
+                  f1 * g9 * 38 + f2 * g8 * 19 + f3 * g7 * 38 +
+                  f4 * g6 * 19 + f5 * g5 * 38 + f6 * g4 * 19 +
+                  f7 * g3 * 38 + f8 * g2 * 19 + f9 * g1 * 38;
+        long h1 = f0 * g1 +
+                  f1 * g0 + f2 * g9 * 19 + f3 * g8 * 19 +
+                  f4 * g7 * 19 + f5 * g6 * 19 + f6 * g5 * 19 +
+                  f7 * g4 * 19 + f8 * g3 * 19 + f9 * g2 * 19;
+        long h2 = f0 * g2 +
+                  f1 * g1 * 2 + f2 * g0 + f3 * g9 * 38 +
+                  f4 * g8 * 19 + f5 * g7 * 38 + f6 * g6 * 19 +
+                  f7 * g5 * 38 + f8 * g4 * 19 + f9 * g3 * 38;
+        long h3 = f0 * g3 +
+                  f1 * g2 + f2 * g1 + f3 * g0 +
+                  f4 * g9 * 19 + f5 * g8 * 19 + f6 * g7 * 19 +
+                  f7 * g6 * 19 + f8 * g5 * 19 + f9 * g4 * 19;
+        long h4 = f0 * g4 +
+                  f1 * g3 * 2 + f2 * g2 + f3 * g1 * 2 +
+                  f4 * g0 + f5 * g9 * 38 + f6 * g8 * 19 +
+                  f7 * g7 * 38 + f8 * g6 * 19 + f9 * g5 * 38;
+        long h5 = f0 * g5 +
+                  f1 * g4 + f2 * g3 + f3 * g2 +
+                  f4 * g1 + f5 * g0 + f6 * g9 * 19 +
+                  f7 * g8 * 19 + f8 * g7 * 19 + f9 * g6 * 19;
+        long h6 = f0 * g6 +
+                  f1 * g5 * 2 + f2 * g4 + f3 * g3 * 2 +
+                  f4 * g2 + f5 * g1 * 2 + f6 * g0 +
+                  f7 * g9 * 38 + f8 * g8 * 19 + f9 * g7 * 38;
+        long h7 = f0 * g7 +
+                  f1 * g6 + f2 * g5 + f3 * g4 +
+                  f4 * g3 + f5 * g2 + f6 * g1 +
+                  f7 * g0 + f8 * g9 * 19 + f9 * g8 * 19;
+        long h8 = f0 * g8 +
+                  f1 * g7 * 2 + f2 * g6 + f3 * g5 * 2 +
+                  f4 * g4 + f5 * g3 * 2 + f6 * g2 +
+                  f7 * g1 * 2 + f8 * g0 + f9 * g9 * 38;
+        long h9 = f0 * g9 +
+                  f1 * g8 + f2 * g7 + f3 * g6 +
+                  f4 * g5 + f5 * g4 + f6 * g3 +
+                  f7 * g2 + f8 * g1 + f9 * g0;
+        carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    static void square(int[] h, int[] f) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4],
+             f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        long h0 = f0 * f0 +
+                  f1 * f9 * 76 + f2 * f8 * 38 + f3 * f7 * 76 +
+                  f4 * f6 * 38 + f5 * f5 * 38;
+        long h1 = f0 * f1 * 2 +
+                  f2 * f9 * 38 + f3 * f8 * 38 + f4 * f7 * 38 +
+                  f5 * f6 * 38;
+        long h2 = f0 * f2 * 2 +
+                  f1 * f1 * 2 + f3 * f9 * 76 + f4 * f8 * 38 +
+                  f5 * f7 * 76 + f6 * f6 * 19;
+        long h3 = f0 * f3 * 2 +
+                  f1 * f2 * 2 + f4 * f9 * 38 + f5 * f8 * 38 +
+                  f6 * f7 * 38;
+        long h4 = f0 * f4 * 2 +
+                  f1 * f3 * 4 + f2 * f2 + f5 * f9 * 76 +
+                  f6 * f8 * 38 + f7 * f7 * 38;
+        long h5 = f0 * f5 * 2 +
+                  f1 * f4 * 2 + f2 * f3 * 2 + f6 * f9 * 38 +
+                  f7 * f8 * 38;
+        long h6 = f0 * f6 * 2 +
+                  f1 * f5 * 4 + f2 * f4 * 2 + f3 * f3 * 2 +
+                  f7 * f9 * 76 + f8 * f8 * 19;
+        long h7 = f0 * f7 * 2 +
+                  f1 * f6 * 2 + f2 * f5 * 2 + f3 * f4 * 2 +
+                  f8 * f9 * 38;
+        long h8 = f0 * f8 * 2 +
+                  f1 * f7 * 4 + f2 * f6 * 2 + f3 * f5 * 4 +
+                  f4 * f4 + f9 * f9 * 38;
+        long h9 = f0 * f9 * 2 +
+                  f1 * f8 * 2 + f2 * f7 * 2 + f3 * f6 * 2 +
+                  f4 * f5 * 2;
+        carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    static void square(int[] h, int[] f, int times) {
+        square(h, f);
+        for (int i = 1; i < times; i++) {
+            square(h, h);
+        }
+    }
+
+    // Returns z^(2^250 - 1) and sets z11 to z^11.
+    private static int[] pow2250(int[] z, int[] z11) {
+        int[] t0 = create();
+        int[] t1 = create();
+        square(t0, z);                  // 2
+        square(t1, t0, 2);              // 8
+        mul(t1, z, t1);                 // 9
+        mul(z11, t0, t1);               // 11
+        square(t0, z11);                // 22
+        mul(t0, t1, t0);                // 2^5 - 1
+        square(t1, t0, 5);
+        mul(t0, t1, t0);                // 2^10 - 1
+        int[] z10 = create();
+        copy(z10, t0);
+        square(t1, t0, 10);
+        mul(t1, t1, t0);                // 2^20 - 1
+        int[] t2 = create();
+        square(t2, t1, 20);
+        mul(t1, t2, t1);                // 2^40 - 1
+        square(t1, t1, 10);
+        mul(t0, t1, z10);               // 2^50 - 1
+        int[] z50 = create();
+        copy(z50, t0);
+        square(t1, t0, 50);
+        mul(t1, t1, t0);                // 2^100 - 1
+        square(t2, t1, 100);
+        mul(t1, t2, t1);                // 2^200 - 1
+        square(t1, t1, 50);
+        mul(t1, t1, z50);               // 2^250 - 1
+        return t1;
+    }
+
+    /**
+     * h = z^(p - 2) = 1 / z.
+     */
+    static void invert(int[] h, int[] z) {
+        int[] z11 = create();
+        int[] t = pow2250(z, z11);
+        square(t, t, 5);                // 2^255 - 32
+        mul(h, t, z11);                 // 2^255 - 21
+    }
+
+    /**
+     * h = z^((p - 5) / 8) = z^(2^252 - 3).
+     */
+    static void pow22523(int[] h, int[] z) {
+        int[] t = pow2250(z, create());
+        square(t, t, 2);                // 2^252 - 4
+        mul(h, t, z);                   // 2^252 - 3
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.fwp;
+
+import java.math.BigInteger;
+
+/**
+ * Arithmetic in the P-256 prime field.
+ *
+ * Elements are represented by four 64-bit (unsigned) limbs in Montgomery form
+ * (x * 2^256 mod p) and are always fully reduced.
+ *
+ * Note: the implementation is <i>not</i> constant time and must
+ * only be used with public data like in signature validation.
+ */
+class FWPFieldP256 {
+
+    private FWPFieldP256() {}
+
+    static final int LIMBS = 4;
+
+    static final BigInteger P = new BigInteger(
+            "ffffffff00000001000000000000000000000000ffffffffffffffffffffffff", 16);
+
+    static final long P0 = 0xffffffffffffffffL;
+    static final long P1 = 0x00000000ffffffffL;
+    static final long P2 = 0x0000000000000000L;
+    static final long P3 = 0xffffffff00000001L;
+
+    // 2^512 mod p for conversions into Montgomery form.
+    static final long[] R2 = toLimbs(BigInteger.ONE.shiftLeft(512).mod(P));
+
+    static long[] create() {
+        return new long[LIMBS];
+    }
+
+    static long[] toLimbs(BigInteger value) {
+        long[] limbs = create();
+        for (int i = 0; i < LIMBS; i++) {
+            limbs[i] = value.shiftRight(64 * i).longValue();
+        }
+        return limbs;
+    }
+
+    static BigInteger fromLimbs(long[] limbs) {
+        BigInteger value = BigInteger.ZERO;
+        for (int i = LIMBS - 1; i >= 0; i--) {
+            value = value.shiftLeft(64).or(new BigInteger(Long.toUnsignedString(limbs[i])));
+        }
+        return value;
+    }
+
+    /**
+     * Convert an integer into Montgomery form.
+     */
+    static long[] fromBigInteger(BigInteger value) {
+        long[] r = toLimbs(value.mod(P));
+        mul(r, r, R2);
+        return r;
+    }
+
+    /**
+     * Convert an element in Montgomery form into an integer.
+     */
+    static BigInteger toBigInteger(long[] a) {
+        long[] r = create();
+        long[] one = {1, 0, 0, 0};
+        mul(r, a, one);
+        return fromLimbs(r);
+    }
+
+    static void copy(long[] r, long[] a) {
+        System.arraycopy(a, 0, r, 0, LIMBS);
+    }
+
+    static boolean isZero(long[] a) {
+        return (a[0] | a[1] | a[2] | a[3]) == 0;
+    }
+
+    static boolean equals(long[] a, long[] b) {
+        return a[0] == b[0] && a[1] == b[1] && a[2] == b[2] && a[3] == b[3];
+    }
+
+    // Final conditional subtraction of p from t (t < 2p).
+    private static void reduce(long[] r, long t0, long t1, long t2, long t3, long t4) {
+        long d0 = t0 - P0;
+        long borrow = Long.compareUnsigned(t0, P0) < 0 ? 1 : 0;
+        long d1 = t1 - P1 - borrow;
+        borrow = Long.compareUnsigned(t1, P1) < 0 || 
+                 (borrow != 0 && t1 == P1) ? 1 : 0;
+        long d2 = t2 - P2 - borrow;
+        borrow = Long.compareUnsigned(t2, P2) < 0 || 
+                 (borrow != 0 && t2 == P2) ? 1 : 0;
+        long d3 = t3 - P3 - borrow;
+        borrow = Long.compareUnsigned(t3, P3) < 0 || 
+                 (borrow != 0 && t3 == P3) ? 1 : 0;
+        if (t4 != 0 || borrow == 0) {
+            r[0] = d0;
+            r[1] = d1;
+            r[2] = d2;
+            r[3] = d3;
+        } else {
+            r[0] = t0;
+            r[1] = t1;
+            r[2] = t2;
+            r[3] = t3;
+        }
+    }
+
+    static void add(long[] r, long[] a, long[] b) {
+        long t0 = a[0] + b[0];
+        long carry = Long.compareUnsigned(t0, a[0]) < 0 ? 1 : 0;
+        long t1 = a[1] + b[1] + carry;
+        carry = Long.compareUnsigned(t1, a[1]) < 0 || (carry != 0 && t1 == a[1]) ? 1 : 0;
+        long t2 = a[2] + b[2] + carry;
+        carry = Long.compareUnsigned(t2, a[2]) < 0 || (carry != 0 && t2 == a[2]) ? 1 : 0;
+        long t3 = a[3] + b[3] + carry;
+        carry = Long.compareUnsigned(t3, a[3]) < 0 || (carry != 0 && t3 == a[3]) ? 1 : 0;
+        reduce(r, t0, t1, t2, t3, carry);
+    }
+
+    static void sub(long[] r, long[] a, long[] b) {
+        long t0 = a[0] - b[0];
+        long borrow = Long.compareUnsigned(a[0], b[0]) < 0 ? 1 : 0;
+        long t1 = a[1] - b[1] - borrow;
+        borrow = Long.compareUnsigned(a[1], b[1]) < 0 || (borrow != 0 && a[1] == b[1]) ? 1 : 0;
+        long t2 = a[2] - b[2] - borrow;
+        borrow = Long.compareUnsigned(a[2], b[2]) < 0 || (borrow != 0 && a[2] == b[2]) ? 1 : 0;
+        long t3 = a[3] - b[3] - borrow;
+        borrow = Long.compareUnsigned(a[3], b[3]) < 0 || (borrow != 0 && a[3] == b[3]) ? 1 : 0;
+        if (borrow != 0) {
+            // Add p.
+            long s0 = t0 + P0;
+            long carry = Long.compareUnsigned(s0, t0) < 0 ? 1 : 0;
+            long s1 = t1 + P1 + carry;
+            carry = Long.compareUnsigned(s1, t1) < 0 || (carry != 0 && s1 == t1) ? 1 : 0;
+            long s2 = t2 + P2 + carry;
+            carry = Long.compareUnsigned(s2, t2) < 0 || (carry != 0 && s2 == t2) ? 1 : 0;
+            t3 = t3 + P3 + carry;
+            t0 = s0;
+            t1 = s1;
+            t2 = s2;
+        }
+        r[0] = t0;
+        r[1] = t1;
+        r[2] = t2;
+        r[3] = t3;
+    }
+
+    static void negate(long[] r, long[] a) {
+        if (isZero(a)) {
+            copy(r, a);
+        } else {
+            sub(r, new long[] {P0, P1, P2, P3}, a);
+        }
+    }
+
+    static void square(long[] r, long[] a) {
+        mul(r, a, a);
+    }
+
+    /**
+     * Montgomery multiplication r = a * b / 2^256 mod p (CIOS).
+     */
+    static void mul(long[] r, long[] a, long[] b) {
+        long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3];
+        long t0 = 0, t1 = 0, t2 = 0, t3 = 0, t4 = 0, t5;
+        long lo, hi, carry, m;
+        for (int i = 0; i < 4; i++) {
+            long bi = b[i];
+            // t += a * b[i]
+            carry = 0;
+            lo = a0 * bi;
+            hi = Math.unsignedMultiplyHigh(a0, bi);
+            lo += t0;
+            hi += Long.compareUnsigned(lo, t0) < 0 ? 1 : 0;
+            lo += carry;
+            hi += Long.compareUnsigned(lo, carry) < 0 ? 1 : 0;
+            t0 = lo;
+            carry = hi;
+            lo = a1 * bi;
+            hi = Math.unsignedMultiplyHigh(a1, bi);
+            lo += t1;
+            hi += Long.compareUnsigned(lo, t1) < 0 ? 1 : 0;
+            lo += carry;
+            hi += Long.compareUnsigned(lo, carry) < 0 ? 1 : 0;
+            t1 = lo;
+            carry = hi;
+            lo = a2 * bi;
+            hi = Math.unsignedMultiplyHigh(a2, bi);
+            lo += t2;
+            hi += Long.compareUnsigned(lo, t2) < 0 ? 1 : 0;
+            lo += carry;
+            hi += Long.compareUnsigned(lo, carry) < 0 ? 1 : 0;
+            t2 = lo;
+            carry = hi;
+            lo = a3 * bi;
+            hi = Math.unsignedMultiplyHigh(a3, bi);
+            lo += t3;
+            hi += Long.compareUnsigned(lo, t3) < 0 ? 1 : 0;
+            lo += carry;
+            hi += Long.compareUnsigned(lo, carry) < 0 ? 1 : 0;
+            t3 = lo;
+            carry = hi;
+            t4 += carry;
+            t5 = Long.compareUnsigned(t4, carry) < 0 ? 1 : 0;
+            // t = (t + m * p) / 2^64 where m = t0 since -1/p = 1 mod 2^64
+            m = t0;
+            lo = m * P0;
+            hi = Math.unsignedMultiplyHigh(m, P0);
+            lo += t0;
+            hi += Long.compareUnsigned(lo, t0) < 0 ? 1 : 0;
+            carry = hi;
+            lo = m * P1;
+            hi = Math.unsignedMultiplyHigh(m, P1);
+            lo += t1;
+            hi += Long.compareUnsigned(lo, t1) < 0 ? 1 : 0;
+            lo += carry;
+            hi += Long.compareUnsigned(lo, carry) < 0 ? 1 : 0;
+            t0 = lo;
+            carry = hi;
+            lo = m * P2;
+            hi = Math.unsignedMultiplyHigh(m, P2);
+            lo += t2;
+            hi += Long.compareUnsigned(lo, t2) < 0 ? 1 : 0;
+            lo += carry;
+            hi += Long.compareUnsigned(lo, carry) < 0 ? 1 : 0;
+            t1 = lo;
+            carry = hi;
+            lo = m * P3;
+            hi = Math.unsignedMultiplyHigh(m, P3);
+            lo += t3;
+            hi += Long.compareUnsigned(lo, t3) < 0 ? 1 : 0;
+            lo += carry;
+            hi += Long.compareUnsigned(lo, carry) < 0 ? 1 : 0;
+            t2 = lo;
+            carry = hi;
+            t3 = t4 + carry;
+            t4 = t5 + (Long.compareUnsigned(t3, carry) < 0 ? 1 : 0);
+        }
+        reduce(r, t0, t1, t2, t3, t4);
+    }
+
+    /**
+     * r = 1 / a (a must not be zero).
+     */
+    static void invert(long[] r, long[] a) {
+        long[] inverse = fromBigInteger(toBigInteger(a).modInverse(P));
+        copy(r, inverse);
+    }
+}
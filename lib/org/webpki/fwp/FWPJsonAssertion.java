@@ -18,18 +18,31 @@ package org.webpki.fwp;
 
 import java.io.IOException;
 
+import org.webpki.cbor.CBORBytes;
+import org.webpki.cbor.CBORInt;
+import org.webpki.cbor.CBORMap;
+import org.webpki.cbor.CBORObject;
+import org.webpki.cbor.CBORString;
+
 import org.webpki.json.JSONObjectReader;
 import org.webpki.json.JSONObjectWriter;
 import org.webpki.json.JSONOutputFormats;
 
 /**
  * The FWP Assertion as provided by the browser.
+ * 
+ * The CBOR encoding is intended for machine-to-machine transfers
+ * where the ESAD is carried as raw bytes.
  */
 public class FWPJsonAssertion {
 
     public static final String PAYMENT_NETWORK_ID      = "paymentNetworkId";
     public static final String ISSUER_ID               = "issuerId";
     public static final String USER_AUTHORIZATION      = "userAuthorization";
+
+    public static final CBORInt CBOR_PAYMENT_NETWORK_ID = new CBORInt(1);
+    public static final CBORInt CBOR_ISSUER_ID          = new CBORInt(2);
+    public static final CBORInt CBOR_USER_AUTHORIZATION = new CBORInt(3);
     
     String paymentNetworkId;
     public String getPaymentNetwordId() {
@@ -52,6 +65,13 @@ public class FWPJsonAssertion {
         userAuthorization = reader.getBinary(USER_AUTHORIZATION);
     }
     
+    public FWPJsonAssertion(CBORObject cborObject) {
+        CBORMap cborAssertion = cborObject.getMap();
+        paymentNetworkId = cborAssertion.get(CBOR_PAYMENT_NETWORK_ID).getString();
+        issuerId = cborAssertion.get(CBOR_ISSUER_ID).getString();
+        userAuthorization = cborAssertion.get(CBOR_USER_AUTHORIZATION).getBytes();
+    }
+    
     public FWPJsonAssertion(String paymentNetworkId,
                             String issuerId,
                             byte[] userAuthorization) {
@@ -64,6 +84,13 @@ public class FWPJsonAssertion {
         return getWriter().serializeToString(JSONOutputFormats.NORMALIZED);
     }
     
+    public CBORMap serializeAsCBOR() {
+        return new CBORMap()
+                .set(CBOR_PAYMENT_NETWORK_ID, new CBORString(paymentNetworkId))
+                .set(CBOR_ISSUER_ID, new CBORString(issuerId))
+                .set(CBOR_USER_AUTHORIZATION, new CBORBytes(userAuthorization));
+    }
+    
     public JSONObjectWriter getWriter() throws IOException {
         return new JSONObjectWriter()
                 .setString(PAYMENT_NETWORK_ID, paymentNetworkId)
@@ -0,0 +1,594 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.fwp;
+
+import java.math.BigInteger;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+
+import java.security.interfaces.ECPublicKey;
+
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ECDSA P-256 verification engine for frequently used ("hot") keys.
+ *
+ * For keys that have been seen more than a configurable number of times,
+ * a table holding signed 4-bit window multiples of the public point is
+ * created and kept in a bounded cache.  Together with a static table
+ * for the generator, a verification then only requires point additions.
+ * Keys that are not hot are supposed to be verified by JCA.
+ *
+ * Table look-ups are lock free.  When the cache is full, the least recently
+ * used table (at millisecond resolution) is evicted.  Use counting is
+ * performed in independently locked LRU stripes.
+ *
+ * Note: the implementation is <i>not</i> constant time which is fine
+ * since signature validation only involves public data.
+ */
+public class FWPP256Engine {
+
+    public static final int DEFAULT_HOT_KEY_THRESHOLD   = 10;
+    public static final int DEFAULT_MAX_TABLES          = 256;
+
+    // Number of keys that are counted (LRU) per table slot.
+    static final int COUNTED_KEYS_FACTOR = 16;
+
+    static final int STRIPES = 16;
+
+    static final BigInteger N = new BigInteger(
+            "ffffffff00000000ffffffffffffffffbce6faada7179e84f3b9cac2fc632551", 16);
+    static final BigInteger B = new BigInteger(
+            "5ac635d8aa3a93e7b3ebbd55769886bc651d06b0cc53b0f63bce3c3e27d2604b", 16);
+    static final BigInteger GX = new BigInteger(
+            "6b17d1f2e12c4247f8bce6e563a440f277037d812deb33a0f4a13945d898c296", 16);
+    static final BigInteger GY = new BigInteger(
+            "4fe342e2fe1a7f9b8ee7eb4a7c0f9e162bce33576b315ececbb6406837bf51f5", 16);
+
+    // Signed 4-bit windows: 64 nibbles plus a final carry.
+    static final int WINDOW_BITS        = 4;
+    static final int WINDOWS            = 65;
+    static final int POINTS_PER_WINDOW  = 1 << (WINDOW_BITS - 1);
+
+    // Affine points are stored as x (4 limbs) followed by y (4 limbs).
+    static final int POINT_SIZE         = 2 * FWPFieldP256.LIMBS;
+    static final int TABLE_SIZE         = WINDOWS * POINTS_PER_WINDOW * POINT_SIZE;
+
+    static final long[] ONE = FWPFieldP256.fromBigInteger(BigInteger.ONE);
+    static final long[] CURVE_B = FWPFieldP256.fromBigInteger(B);
+
+    static final long[] G_TABLE =
+            buildTable(FWPFieldP256.fromBigInteger(GX), FWPFieldP256.fromBigInteger(GY));
+
+    /**
+     * Precomputed multiples of a public key.
+     */
+    public static class KeyTable {
+
+        long[] table;
+
+        // Approximate LRU.
+        volatile long lastUse = System.currentTimeMillis();
+
+        KeyTable(long[] table) {
+            this.table = table;
+        }
+
+        /**
+         * Verify a FIDO ECDSA signature.
+         *
+         * @param authenticatorData FIDO authenticator data
+         * @param clientDataHash SHA-256 of clientDataJSON
+         * @param signature ASN.1 (DER) encoded signature
+         * @return <code>true</code> if the signature is valid
+         * @throws GeneralSecurityException
+         */
+        public boolean verify(byte[] authenticatorData,
+                              byte[] clientDataHash,
+                              byte[] signature) throws GeneralSecurityException {
+            FWPVerifierPool.Engines engines = FWPVerifierPool.acquire();
+            byte[] hash;
+            try {
+                MessageDigest sha256 = engines.getSha256();
+                sha256.update(authenticatorData);
+                sha256.update(clientDataHash);
+                hash = sha256.digest();
+            } finally {
+                FWPVerifierPool.release(engines);
+            }
+            return verifyHash(table, new BigInteger(1, hash), signature);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class LruMap<V> extends LinkedHashMap<ECPoint, V> {
+
+        int maxEntries;
+
+        LruMap(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ECPoint, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    int hotKeyThreshold;
+    int maxTables;
+
+    LruMap<int[]>[] useCounters;
+    ConcurrentHashMap<ECPoint, KeyTable> keyTables = new ConcurrentHashMap<>();
+
+    LongAdder tableHits = new LongAdder();
+    LongAdder tableBuilds = new LongAdder();
+
+    /**
+     * Create a P-256 verification engine.
+     *
+     * @param hotKeyThreshold Number of uses before a key gets a table
+     * @param maxTables Maximum number of cached tables (each requires about 33K bytes)
+     */
+    @SuppressWarnings("unchecked")
+    public FWPP256Engine(int hotKeyThreshold, int maxTables) {
+        if (hotKeyThreshold < 0 || maxTables < 1) {
+            throw new FWPException("Invalid engine parameters");
+        }
+        this.hotKeyThreshold = hotKeyThreshold;
+        this.maxTables = maxTables;
+        useCounters = new LruMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            useCounters[i] = new LruMap<>(Math.max(maxTables * COUNTED_KEYS_FACTOR / STRIPES, 1));
+        }
+    }
+
+    /**
+     * Get table for a hot P-256 key.
+     *
+     * @param publicKey Public key
+     * @return Table or <code>null</code> if the key is not (yet) hot or not a P-256 key
+     */
+    public KeyTable getKeyTable(PublicKey publicKey) {
+        if (!(publicKey instanceof ECPublicKey)) {
+            return null;
+        }
+        ECPublicKey ecPublicKey = (ECPublicKey) publicKey;
+        if (!isP256(ecPublicKey.getParams())) {
+            return null;
+        }
+        ECPoint point = ecPublicKey.getW();
+        if (point.equals(ECPoint.POINT_INFINITY)) {
+            return null;
+        }
+        KeyTable keyTable = keyTables.get(point);
+        if (keyTable != null) {
+            tableHits.increment();
+            long now = System.currentTimeMillis();
+            // Avoid writing the shared table object more than once per millisecond.
+            if (keyTable.lastUse != now) {
+                keyTable.lastUse = now;
+            }
+            return keyTable;
+        }
+        int hash = point.hashCode();
+        LruMap<int[]> stripe = useCounters[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        synchronized (stripe) {
+            int[] useCounter = stripe.get(point);
+            if (useCounter == null) {
+                useCounter = new int[1];
+                stripe.put(point, useCounter);
+            }
+            if (++useCounter[0] <= hotKeyThreshold) {
+                return null;
+            }
+            stripe.remove(point);
+        }
+        // Table creation is performed outside of the lock.
+        BigInteger x = point.getAffineX();
+        BigInteger y = point.getAffineY();
+        if (!isOnCurve(x, y)) {
+            return null;
+        }
+        keyTable = new KeyTable(buildTable(FWPFieldP256.fromBigInteger(x),
+                                           FWPFieldP256.fromBigInteger(y)));
+        tableBuilds.increment();
+        return insert(point, keyTable);
+    }
+
+    // Insertions are rare and serialized, look-ups do not wait for them.
+    synchronized KeyTable insert(ECPoint point, KeyTable keyTable) {
+        KeyTable concurrent = keyTables.putIfAbsent(point, keyTable);
+        if (concurrent != null) {
+            return concurrent;
+        }
+        if (keyTables.size() > maxTables) {
+            Map.Entry<ECPoint, KeyTable> eldest = null;
+            for (Map.Entry<ECPoint, KeyTable> entry : keyTables.entrySet()) {
+                if (entry.getValue() != keyTable &&
+                    (eldest == null || entry.getValue().lastUse < eldest.getValue().lastUse)) {
+                    eldest = entry;
+                }
+            }
+            keyTables.remove(eldest.getKey(), eldest.getValue());
+        }
+        return keyTable;
+    }
+
+    public long getTableHits() {
+        return tableHits.sum();
+    }
+
+    public long getTableBuilds() {
+        return tableBuilds.sum();
+    }
+
+    public int size() {
+        return keyTables.size();
+    }
+
+    static boolean isP256(ECParameterSpec params) {
+        return params.getCurve().getField() instanceof ECFieldFp &&
+               ((ECFieldFp) params.getCurve().getField()).getP().equals(FWPFieldP256.P) &&
+               params.getCurve().getB().equals(B) &&
+               params.getOrder().equals(N);
+    }
+
+    static boolean isOnCurve(BigInteger x, BigInteger y) {
+        if (x.signum() < 0 || x.compareTo(FWPFieldP256.P) >= 0 ||
+            y.signum() < 0 || y.compareTo(FWPFieldP256.P) >= 0) {
+            return false;
+        }
+        long[] fx = FWPFieldP256.fromBigInteger(x);
+        long[] fy = FWPFieldP256.fromBigInteger(y);
+        // y^2 = x^3 - 3x + b
+        long[] left = FWPFieldP256.create();
+        FWPFieldP256.square(left, fy);
+        long[] right = FWPFieldP256.create();
+        FWPFieldP256.square(right, fx);
+        FWPFieldP256.mul(right, right, fx);
+        long[] t = FWPFieldP256.create();
+        FWPFieldP256.add(t, fx, fx);
+        FWPFieldP256.add(t, t, fx);
+        FWPFieldP256.sub(right, right, t);
+        FWPFieldP256.add(right, right, CURVE_B);
+        return FWPFieldP256.equals(left, right);
+    }
+
+    /**
+     * Point in Jacobian coordinates (x = X/Z^2, y = Y/Z^3).
+     *
+     * Z = 0 represents the point at infinity.
+     */
+    static class Point {
+
+        long[] x = FWPFieldP256.create();
+        long[] y = FWPFieldP256.create();
+        long[] z = FWPFieldP256.create();
+
+        // Temporaries.
+        long[] t0 = FWPFieldP256.create();
+        long[] t1 = FWPFieldP256.create();
+        long[] t2 = FWPFieldP256.create();
+        long[] t3 = FWPFieldP256.create();
+        long[] t4 = FWPFieldP256.create();
+        long[] t5 = FWPFieldP256.create();
+
+        boolean isInfinity() {
+            return FWPFieldP256.isZero(z);
+        }
+
+        void set(Point p) {
+            FWPFieldP256.copy(x, p.x);
+            FWPFieldP256.copy(y, p.y);
+            FWPFieldP256.copy(z, p.z);
+        }
+
+        void setAffine(long[] table, int offset, boolean negate) {
+            System.arraycopy(table, offset, x, 0, FWPFieldP256.LIMBS);
+            System.arraycopy(table, offset + FWPFieldP256.LIMBS, y, 0, FWPFieldP256.LIMBS);
+            if (negate) {
+                FWPFieldP256.negate(y, y);
+            }
+            FWPFieldP256.copy(z, ONE);
+        }
+
+        // dbl-2001-b (a = -3).
+        void twice() {
+            if (isInfinity()) {
+                return;
+            }
+            long[] delta = t0, gamma = t1, beta = t2, alpha = t3;
+            FWPFieldP256.square(delta, z);
+            FWPFieldP256.square(gamma, y);
+            FWPFieldP256.mul(beta, x, gamma);
+            FWPFieldP256.sub(t4, x, delta);
+            FWPFieldP256.add(t5, x, delta);
+            FWPFieldP256.mul(alpha, t4, t5);
+            FWPFieldP256.add(t4, alpha, alpha);
+            FWPFieldP256.add(alpha, t4, alpha);
+            // Z3 = (Y1 + Z1)^2 - gamma - delta
+            FWPFieldP256.add(t4, y, z);
+            FWPFieldP256.square(z, t4);
+            FWPFieldP256.sub(z, z, gamma);
+            FWPFieldP256.sub(z, z, delta);
+            // X3 = alpha^2 - 8 * beta
+            FWPFieldP256.add(beta, beta, beta);
+            FWPFieldP256.add(beta, beta, beta);
+            FWPFieldP256.square(x, alpha);
+            FWPFieldP256.sub(x, x, beta);
+            FWPFieldP256.sub(x, x, beta);
+            // Y3 = alpha * (4 * beta - X3) - 8 * gamma^2
+            FWPFieldP256.sub(t4, beta, x);
+            FWPFieldP256.mul(y, alpha, t4);
+            FWPFieldP256.square(t4, gamma);
+            FWPFieldP256.add(t4, t4, t4);
+            FWPFieldP256.add(t4, t4, t4);
+            FWPFieldP256.add(t4, t4, t4);
+            FWPFieldP256.sub(y, y, t4);
+        }
+
+        // madd-2007-bl, adding an affine point (x2, y2).
+        void addAffine(long[] table, int offset, boolean negate) {
+            if (isInfinity()) {
+                setAffine(table, offset, negate);
+                return;
+            }
+            long[] z1z1 = t0, h = t1, r = t2, hh = t3;
+            FWPFieldP256.square(z1z1, z);
+            // U2 = X2 * Z1Z1, H = U2 - X1
+            System.arraycopy(table, offset, t4, 0, FWPFieldP256.LIMBS);
+            FWPFieldP256.mul(h, t4, z1z1);
+            FWPFieldP256.sub(h, h, x);
+            // S2 = Y2 * Z1 * Z1Z1, r = 2 * (S2 - Y1)
+            System.arraycopy(table, offset + FWPFieldP256.LIMBS, t4, 0, FWPFieldP256.LIMBS);
+            if (negate) {
+                FWPFieldP256.negate(t4, t4);
+            }
+            FWPFieldP256.mul(r, t4, z);
+            FWPFieldP256.mul(r, r, z1z1);
+            FWPFieldP256.sub(r, r, y);
+            if (FWPFieldP256.isZero(h)) {
+                if (FWPFieldP256.isZero(r)) {
+                    twice();
+                } else {
+                    // P + (-P)
+                    FWPFieldP256.copy(z, FWPFieldP256.create());
+                }
+                return;
+            }
+            FWPFieldP256.add(r, r, r);
+            // Z3 = (Z1 + H)^2 - Z1Z1 - HH
+            FWPFieldP256.square(hh, h);
+            FWPFieldP256.add(z, z, h);
+            FWPFieldP256.square(z, z);
+            FWPFieldP256.sub(z, z, z1z1);
+            FWPFieldP256.sub(z, z, hh);
+            // I = 4 * HH, J = H * I, V = X1 * I
+            long[] i = hh, j = t4, v = t5;
+            FWPFieldP256.add(i, hh, hh);
+            FWPFieldP256.add(i, i, i);
+            FWPFieldP256.mul(j, h, i);
+            FWPFieldP256.mul(v, x, i);
+            // X3 = r^2 - J - 2 * V
+            FWPFieldP256.square(x, r);
+            FWPFieldP256.sub(x, x, j);
+            FWPFieldP256.sub(x, x, v);
+            FWPFieldP256.sub(x, x, v);
+            // Y3 = r * (V - X3) - 2 * Y1 * J
+            FWPFieldP256.mul(j, j, y);
+            FWPFieldP256.add(j, j, j);
+            FWPFieldP256.sub(v, v, x);
+            FWPFieldP256.mul(y, r, v);
+            FWPFieldP256.sub(y, y, j);
+        }
+
+        // add-2007-bl, only used for table creation where P != +-Q.
+        void add(Point q) {
+            long[] z1z1 = t0, z2z2 = t1, u1 = t2, h = t3, s1 = t4, r = t5;
+            FWPFieldP256.square(z1z1, z);
+            FWPFieldP256.square(z2z2, q.z);
+            FWPFieldP256.mul(u1, x, z2z2);
+            FWPFieldP256.mul(h, q.x, z1z1);
+            FWPFieldP256.sub(h, h, u1);
+            FWPFieldP256.mul(s1, y, q.z);
+            FWPFieldP256.mul(s1, s1, z2z2);
+            FWPFieldP256.mul(r, q.y, z);
+            FWPFieldP256.mul(r, r, z1z1);
+            FWPFieldP256.sub(r, r, s1);
+            FWPFieldP256.add(r, r, r);
+            // Z3 = ((Z1 + Z2)^2 - Z1Z1 - Z2Z2) * H
+            FWPFieldP256.add(z, z, q.z);
+            FWPFieldP256.square(z, z);
+            FWPFieldP256.sub(z, z, z1z1);
+            FWPFieldP256.sub(z, z, z2z2);
+            FWPFieldP256.mul(z, z, h);
+            // I = (2 * H)^2, J = H * I, V = U1 * I
+            long[] i = z1z1, j = z2z2, v = u1;
+            FWPFieldP256.add(i, h, h);
+            FWPFieldP256.square(i, i);
+            FWPFieldP256.mul(j, h, i);
+            FWPFieldP256.mul(v, u1, i);
+            // X3 = r^2 - J - 2 * V
+            FWPFieldP256.square(x, r);
+            FWPFieldP256.sub(x, x, j);
+            FWPFieldP256.sub(x, x, v);
+            FWPFieldP256.sub(x, x, v);
+            // Y3 = r * (V - X3) - 2 * S1 * J
+            FWPFieldP256.mul(j, j, s1);
+            FWPFieldP256.add(j, j, j);
+            FWPFieldP256.sub(v, v, x);
+            FWPFieldP256.mul(y, r, v);
+            FWPFieldP256.sub(y, y, j);
+        }
+    }
+
+    /**
+     * Build table with k * 16^i * P (k = 1..8, i = 0..64) in affine form.
+     */
+    static long[] buildTable(long[] x, long[] y) {
+        int count = WINDOWS * POINTS_PER_WINDOW;
+        Point[] points = new Point[count];
+        Point base = new Point();
+        FWPFieldP256.copy(base.x, x);
+        FWPFieldP256.copy(base.y, y);
+        FWPFieldP256.copy(base.z, ONE);
+        for (int i = 0; i < WINDOWS; i++) {
+            int index = i * POINTS_PER_WINDOW;
+            points[index] = new Point();
+            points[index].set(base);
+            for (int k = 1; k < POINTS_PER_WINDOW; k++) {
+                Point multiple = new Point();
+                if ((k & 1) == 1) {
+                    // (k + 1) * base = 2 * ((k + 1) / 2) * base
+                    multiple.set(points[index + (k >> 1)]);
+                    multiple.twice();
+                } else {
+                    multiple.set(points[index + k - 1]);
+                    multiple.add(base);
+                }
+                points[index + k] = multiple;
+            }
+            // Next base = 16 * base = 2 * (8 * base)
+            base.set(points[index + POINTS_PER_WINDOW - 1]);
+            base.twice();
+        }
+        // Batch inversion of all Z values.
+        long[][] products = new long[count][];
+        long[] accumulator = FWPFieldP256.create();
+        FWPFieldP256.copy(accumulator, ONE);
+        for (int q = 0; q < count; q++) {
+            products[q] = FWPFieldP256.create();
+            FWPFieldP256.copy(products[q], accumulator);
+            FWPFieldP256.mul(accumulator, accumulator, points[q].z);
+        }
+        FWPFieldP256.invert(accumulator, accumulator);
+        long[] table = new long[TABLE_SIZE];
+        long[] zInverse = FWPFieldP256.create();
+        long[] zInverse2 = FWPFieldP256.create();
+        long[] t = FWPFieldP256.create();
+        for (int q = count - 1; q >= 0; q--) {
+            Point point = points[q];
+            FWPFieldP256.mul(zInverse, accumulator, products[q]);
+            FWPFieldP256.mul(accumulator, accumulator, point.z);
+            FWPFieldP256.square(zInverse2, zInverse);
+            int offset = q * POINT_SIZE;
+            FWPFieldP256.mul(t, point.x, zInverse2);
+            System.arraycopy(t, 0, table, offset, FWPFieldP256.LIMBS);
+            FWPFieldP256.mul(zInverse2, zInverse2, zInverse);
+            FWPFieldP256.mul(t, point.y, zInverse2);
+            System.arraycopy(t, 0, table, offset + FWPFieldP256.LIMBS, FWPFieldP256.LIMBS);
+        }
+        return table;
+    }
+
+    /**
+     * Signed 4-bit window recoding with digits in [-8, 8].
+     */
+    static byte[] recode(BigInteger scalar) {
+        byte[] digits = new byte[WINDOWS];
+        int carry = 0;
+        for (int i = 0; i < WINDOWS - 1; i++) {
+            int digit = 0;
+            for (int bit = WINDOW_BITS - 1; bit >= 0; bit--) {
+                digit = (digit << 1) | (scalar.testBit(i * WINDOW_BITS + bit) ? 1 : 0);
+            }
+            digit += carry;
+            carry = digit > POINTS_PER_WINDOW ? 1 : 0;
+            digits[i] = (byte)(digit - (carry << WINDOW_BITS));
+        }
+        digits[WINDOWS - 1] = (byte) carry;
+        return digits;
+    }
+
+    static void addMultiple(Point accumulator, long[] table, int window, int digit) {
+        if (digit != 0) {
+            int offset = (window * POINTS_PER_WINDOW + Math.abs(digit) - 1) * POINT_SIZE;
+            accumulator.addAffine(table, offset, digit < 0);
+        }
+    }
+
+    // Strict DER decoding of a positive INTEGER.  Returns null on errors.
+    static BigInteger decodeInteger(byte[] der, int[] position) {
+        int pos = position[0];
+        if (der.length - pos < 3 || der[pos] != 0x02) {
+            return null;
+        }
+        int length = der[pos + 1];
+        pos += 2;
+        if (length < 1 || length > 33 || length > der.length - pos ||
+            der[pos] < 0 ||
+            (length > 1 && der[pos] == 0 && der[pos + 1] >= 0)) {
+            return null;
+        }
+        position[0] = pos + length;
+        return new BigInteger(1, der, pos, length);
+    }
+
+    static boolean verifyHash(long[] keyTable, BigInteger e, byte[] signature) {
+        // SEQUENCE {r INTEGER, s INTEGER}
+        if (signature.length < 8 || signature[0] != 0x30 ||
+            signature[1] != signature.length - 2) {
+            return false;
+        }
+        int[] position = {2};
+        BigInteger r = decodeInteger(signature, position);
+        BigInteger s = decodeInteger(signature, position);
+        if (r == null || s == null || position[0] != signature.length ||
+            r.signum() == 0 || r.compareTo(N) >= 0 ||
+            s.signum() == 0 || s.compareTo(N) >= 0) {
+            return false;
+        }
+        BigInteger w = s.modInverse(N);
+        byte[] u1 = recode(e.multiply(w).mod(N));
+        byte[] u2 = recode(r.multiply(w).mod(N));
+        Point accumulator = new Point();
+        for (int i = 0; i < WINDOWS; i++) {
+            addMultiple(accumulator, G_TABLE, i, u1[i]);
+            addMultiple(accumulator, keyTable, i, u2[i]);
+        }
+        if (accumulator.isInfinity()) {
+            return false;
+        }
+        // x = X / Z^2 (mod n) must equal r.  Since p > n, x may also be r + n.
+        long[] z2 = FWPFieldP256.create();
+        FWPFieldP256.square(z2, accumulator.z);
+        long[] candidate = FWPFieldP256.create();
+        FWPFieldP256.mul(candidate, FWPFieldP256.fromBigInteger(r), z2);
+        if (FWPFieldP256.equals(candidate, accumulator.x)) {
+            return true;
+        }
+        BigInteger rPlusN = r.add(N);
+        if (rPlusN.compareTo(FWPFieldP256.P) >= 0) {
+            return false;
+        }
+        FWPFieldP256.mul(candidate, FWPFieldP256.fromBigInteger(rPlusN), z2);
+        return FWPFieldP256.equals(candidate, accumulator.x);
+    }
+}
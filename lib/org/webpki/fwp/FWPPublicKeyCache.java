@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.fwp;
+
+import java.nio.ByteBuffer;
+
+import java.security.PublicKey;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.webpki.cbor.CBORObject;
+import org.webpki.cbor.CBORPublicKey;
+
+import org.webpki.crypto.HashAlgorithms;
+
+/**
+ * Cache for COSE public keys converted into Java format.
+ *
+ * Keys are looked up by the SHA-256 hash of the raw COSE key.  The cache
+ * is bounded (LRU) and entries expire after a configurable time.
+ * To reduce lock contention, the cache is split into stripes.
+ */
+public class FWPPublicKeyCache {
+
+    public static final int  DEFAULT_MAX_ENTRIES   = 100000;
+    public static final long DEFAULT_TIME_TO_LIVE  = 3600000;  // One hour
+
+    static final int STRIPES = 16;
+
+    /**
+     * Converted public key including its COSE signature algorithm.
+     */
+    public static class CachedKey {
+
+        PublicKey publicKey;
+        int coseAlgorithm;
+        long expirationTime;
+
+        CachedKey(PublicKey publicKey, long expirationTime) {
+            this.publicKey = publicKey;
+            this.coseAlgorithm = FWPCrypto.publicKey2CoseSignatureAlgorithm(publicKey);
+            this.expirationTime = expirationTime;
+        }
+
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+
+        public int getCoseAlgorithm() {
+            return coseAlgorithm;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class Stripe extends LinkedHashMap<ByteBuffer, CachedKey> {
+
+        int maxEntries;
+
+        Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, CachedKey> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    Stripe[] stripes = new Stripe[STRIPES];
+
+    long timeToLive;
+
+    LongAdder hits = new LongAdder();
+    LongAdder misses = new LongAdder();
+
+    /**
+     * Create a public key cache.
+     *
+     * @param maxEntries Maximum number of cached keys
+     * @param timeToLive Maximum time in milliseconds to keep a key in the cache
+     */
+    public FWPPublicKeyCache(int maxEntries, long timeToLive) {
+        if (maxEntries < STRIPES || timeToLive <= 0) {
+            throw new FWPException("Invalid cache parameters");
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(maxEntries / STRIPES);
+        }
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Get converted public key.
+     *
+     * @param cborPublicKey Public key in COSE format
+     * @param rawCosePublicKey The same key in binary form
+     * @return Converted key
+     */
+    public CachedKey get(CBORObject cborPublicKey, byte[] rawCosePublicKey) {
+        byte[] keyHash = HashAlgorithms.SHA256.digest(rawCosePublicKey);
+        ByteBuffer hashableKeyHash = ByteBuffer.wrap(keyHash);
+        Stripe stripe = stripes[(keyHash[0] & 0xff) % STRIPES];
+        long now = System.currentTimeMillis();
+        synchronized (stripe) {
+            CachedKey cachedKey = stripe.get(hashableKeyHash);
+            if (cachedKey != null && cachedKey.expirationTime > now) {
+                hits.increment();
+                return cachedKey;
+            }
+        }
+        misses.increment();
+        // Conversion (including key validation) is performed outside of the lock.
+        CachedKey cachedKey =
+                new CachedKey(CBORPublicKey.convert(cborPublicKey), now + timeToLive);
+        synchronized (stripe) {
+            stripe.put(hashableKeyHash, cachedKey);
+        }
+        return cachedKey;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+}
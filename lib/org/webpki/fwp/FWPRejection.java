@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.fwp;
+
+/**
+ * Rejection of an invalid (possibly malicious) authorization.
+ * 
+ * Rejections are expected events that may occur in large numbers.  They are
+ * therefore represented by preallocated instances without stack traces,
+ * making them practically free to throw.  Unexpected errors are still
+ * reported by ordinary exceptions.
+ */
+public class FWPRejection extends FWPException {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Code {
+        SIGNATURE_INVALID           ("Signature validation failed"),
+        CLIENT_DATA_MISMATCH        ("Message hash mismatch"),
+        CLIENT_DATA_MALFORMED       ("Malformed clientDataJSON"),
+        MISSING_KEY_ID              ("Missing keyId"),
+        UNKNOWN_KEY_ID              ("Unknown keyId"),
+        MALFORMED_REQUEST           ("Missing or malformed request"),
+        EXPIRED                     ("Authorization max age exceeded"),
+        NOT_YET_VALID               ("Authorization max future exceeded"),
+        PAYMENT_REQUEST_MISMATCH    ("Payment request mismatch"),
+        PAYEE_HOST_MISMATCH         ("Payee host mismatch"),
+        AMOUNT_LIMIT_EXCEEDED       ("Amount limit exceeded"),
+        USER_VERIFICATION_REQUIRED  ("User verification required"),
+        ESAD_REPLAY                 ("Replay of encrypted user authorization (ESAD)"),
+        REPLAY                      ("Replay of user authorization");
+
+        String description;
+
+        Code(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private static final FWPRejection[] REJECTIONS = new FWPRejection[Code.values().length];
+
+    static {
+        for (Code code : Code.values()) {
+            REJECTIONS[code.ordinal()] = new FWPRejection(code);
+        }
+    }
+
+    private Code code;
+
+    private FWPRejection(Code code) {
+        super(code.description, false);
+        this.code = code;
+    }
+
+    /**
+     * Get the (shared) rejection of a code.
+     * 
+     * @param code Rejection code
+     * @return Rejection
+     */
+    public static FWPRejection get(Code code) {
+        return REJECTIONS[code.ordinal()];
+    }
+
+    public Code getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.fwp;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import java.util.Arrays;
+
+/**
+ * Signed data of a SAD object, described as byte ranges of the original SAD.
+ *
+ * The FIDO elements of the authorization container (authenticator data,
+ * signature and the optional clientDataJSON) are not a part of the signed
+ * data.  Since SAD objects are deterministically encoded, the signed data
+ * equals the original SAD minus these elements, with an updated authorization
+ * container header.  This makes removing the elements from the decoded map and
+ * re-encoding the remainder unnecessary.
+ *
+ * As a side effect, the top level elements of the SAD are recorded which
+ * enables a cheap structural check of the SAD without decoding the elements.
+ */
+class FWPSignedData {
+
+    // CBOR major types
+    static final int MT_BYTE_STRING   = 2;
+    static final int MT_TEXT_STRING   = 3;
+    static final int MT_ARRAY         = 4;
+    static final int MT_MAP           = 5;
+    static final int MT_TAG           = 6;
+    static final int MT_SIMPLE        = 7;
+
+    static final int MAX_NESTING      = 50;
+
+    static final byte[] AUTHORIZATION_KEY   = FWPCrypto.FWP_AUTHORIZATION_LABEL.encode();
+    static final byte[] AUTHENTICATOR_DATA  = FWPCrypto.AS_AUTHENTICATOR_DATA.encode();
+    static final byte[] SIGNATURE           = FWPCrypto.AS_SIGNATURE.encode();
+    static final byte[] CLIENT_DATA_JSON    = FWPCrypto.AS_CLIENT_DATA_JSON.encode();
+
+    static final FWPElements[] ELEMENTS     = FWPElements.values();
+    static final byte[][] ELEMENT_KEYS      = new byte[ELEMENTS.length][];
+
+    static {
+        for (FWPElements element : ELEMENTS) {
+            ELEMENT_KEYS[element.ordinal()] = element.cborLabel.encode();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class UnexpectedLayout extends Exception {
+        UnexpectedLayout() {
+            super(null, null, false, false);
+        }
+    }
+
+    static final UnexpectedLayout UNEXPECTED_LAYOUT = new UnexpectedLayout();
+
+    byte[] sad;
+    int pos;
+    int majorType;
+
+    // Authorization container header.
+    int headerOffset;
+    int headerEnd;
+    byte[] updatedHeader;
+
+    // Excluded FIDO elements as [start, end) pairs in ascending order.
+    int[] exclusions = new int[6];
+    int exclusionCount;
+
+    boolean ctap2;
+
+    // Top level elements as a bit mask of FWPElements ordinals.
+    int elements;
+    boolean unknownElements;
+
+    private FWPSignedData(byte[] sad) {
+        this.sad = sad;
+    }
+
+    /**
+     * Locate the signed data of a SAD object.
+     *
+     * @param sad Deterministically encoded SAD object
+     * @return Signed data or <code>null</code> if the SAD has an unexpected layout
+     */
+    static FWPSignedData locate(byte[] sad) {
+        FWPSignedData signedData = new FWPSignedData(sad);
+        try {
+            signedData.parse();
+            return signedData;
+        } catch (UnexpectedLayout e) {
+            return null;
+        }
+    }
+
+    private int next() throws UnexpectedLayout {
+        if (pos >= sad.length) {
+            throw UNEXPECTED_LAYOUT;
+        }
+        return sad[pos++] & 0xff;
+    }
+
+    // Negative lengths are 8-byte arguments beyond the range of a long.
+    private void advance(long length) throws UnexpectedLayout {
+        if (length < 0 || length > sad.length - pos) {
+            throw UNEXPECTED_LAYOUT;
+        }
+        pos += (int) length;
+    }
+
+    private long readHead() throws UnexpectedLayout {
+        int initialByte = next();
+        majorType = initialByte >>> 5;
+        int argument = initialByte & 0x1f;
+        if (argument < 24) {
+            return argument;
+        }
+        int length;
+        switch (argument) {
+            case 24:
+                length = 1;
+                break;
+            case 25:
+                length = 2;
+                break;
+            case 26:
+                length = 4;
+                break;
+            case 27:
+                length = 8;
+                break;
+            default:
+                // Indefinite length items are not deterministic.
+                throw UNEXPECTED_LAYOUT;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | next();
+        }
+        // Floating point and simple values have their own rules.
+        if (majorType != MT_SIMPLE && 
+            Long.compareUnsigned(value, length == 1 ? 24 : 1L << (4 * length)) < 0) {
+            // Not the shortest possible encoding.
+            throw UNEXPECTED_LAYOUT;
+        }
+        return value;
+    }
+
+    private void skipItem(int nesting) throws UnexpectedLayout {
+        if (nesting > MAX_NESTING) {
+            throw UNEXPECTED_LAYOUT;
+        }
+        long argument = readHead();
+        switch (majorType) {
+            case MT_BYTE_STRING:
+            case MT_TEXT_STRING:
+                advance(argument);
+                break;
+
+            case MT_ARRAY:
+            case MT_MAP:
+                // Every element occupies at least one byte.
+                if (argument < 0 || argument > sad.length - pos) {
+                    throw UNEXPECTED_LAYOUT;
+                }
+                if (majorType == MT_MAP) {
+                    argument <<= 1;
+                }
+                for (long i = 0; i < argument; i++) {
+                    skipItem(nesting + 1);
+                }
+                break;
+
+            case MT_TAG:
+                skipItem(nesting + 1);
+                break;
+
+            default:
+                // Integers and simple values have no additional data.
+        }
+    }
+
+    private boolean keyEquals(int keyOffset, byte[] encodedKey) {
+        return Arrays.equals(sad, keyOffset, pos, encodedKey, 0, encodedKey.length);
+    }
+
+    private void parse() throws UnexpectedLayout {
+        long entries = readHead();
+        if (majorType != MT_MAP) {
+            throw UNEXPECTED_LAYOUT;
+        }
+        boolean authorizationFound = false;
+        while (entries-- > 0) {
+            int keyOffset = pos;
+            skipItem(0);
+            // Note: duplicate keys are rejected here.
+            recordElement(keyOffset);
+            if (keyEquals(keyOffset, AUTHORIZATION_KEY)) {
+                authorizationFound = true;
+                parseAuthorization();
+            } else {
+                skipItem(0);
+            }
+        }
+        if (!authorizationFound || pos != sad.length) {
+            throw UNEXPECTED_LAYOUT;
+        }
+    }
+
+    private void recordElement(int keyOffset) throws UnexpectedLayout {
+        for (int i = 0; i < ELEMENT_KEYS.length; i++) {
+            if (keyEquals(keyOffset, ELEMENT_KEYS[i])) {
+                if ((elements & (1 << i)) != 0) {
+                    // Duplicate key.
+                    throw UNEXPECTED_LAYOUT;
+                }
+                elements |= 1 << i;
+                return;
+            }
+        }
+        unknownElements = true;
+    }
+
+    boolean hasElement(FWPElements element) {
+        return (elements & (1 << element.ordinal())) != 0;
+    }
+
+    private void parseAuthorization() throws UnexpectedLayout {
+        headerOffset = pos;
+        long entries = readHead();
+        if (majorType != MT_MAP) {
+            throw UNEXPECTED_LAYOUT;
+        }
+        headerEnd = pos;
+        boolean authenticatorDataFound = false;
+        boolean signatureFound = false;
+        boolean clientDataJsonFound = false;
+        for (long i = 0; i < entries; i++) {
+            int keyOffset = pos;
+            skipItem(0);
+            boolean excluded;
+            if (keyEquals(keyOffset, AUTHENTICATOR_DATA)) {
+                excluded = !authenticatorDataFound;
+                authenticatorDataFound = true;
+            } else if (keyEquals(keyOffset, SIGNATURE)) {
+                excluded = !signatureFound;
+                signatureFound = true;
+            } else if (keyEquals(keyOffset, CLIENT_DATA_JSON)) {
+                excluded = !clientDataJsonFound;
+                clientDataJsonFound = true;
+            } else {
+                skipItem(0);
+                continue;
+            }
+            if (!excluded) {
+                // Duplicate key.
+                throw UNEXPECTED_LAYOUT;
+            }
+            skipItem(0);
+            exclusions[exclusionCount++] = keyOffset;
+            exclusions[exclusionCount++] = pos;
+        }
+        if (!authenticatorDataFound || !signatureFound) {
+            throw UNEXPECTED_LAYOUT;
+        }
+        ctap2 = !clientDataJsonFound;
+        updatedHeader = encodeMapHeader(entries - (exclusionCount >> 1));
+    }
+
+    private static byte[] encodeMapHeader(long entries) {
+        int initialByte = MT_MAP << 5;
+        if (entries < 24) {
+            return new byte[] {(byte)(initialByte | entries)};
+        }
+        int length = entries < 0x100 ? 1 : entries < 0x10000 ? 2 : 4;
+        byte[] header = new byte[length + 1];
+        header[0] = (byte)(initialByte | (length == 1 ? 24 : length == 2 ? 25 : 26));
+        for (int i = length; i > 0; i--) {
+            header[i] = (byte) entries;
+            entries >>>= 8;
+        }
+        return header;
+    }
+
+    void update(MessageDigest messageDigest) {
+        messageDigest.update(sad, 0, headerOffset);
+        messageDigest.update(updatedHeader);
+        int offset = headerEnd;
+        for (int i = 0; i < exclusionCount; i += 2) {
+            messageDigest.update(sad, offset, exclusions[i] - offset);
+            offset = exclusions[i + 1];
+        }
+        messageDigest.update(sad, offset, sad.length - offset);
+    }
+
+    /**
+     * SHA-256 of the signed data.
+     *
+     * @return Hash
+     * @throws GeneralSecurityException
+     */
+    byte[] digest() throws GeneralSecurityException {
+        FWPVerifierPool.Engines engines = FWPVerifierPool.acquire();
+        try {
+            MessageDigest sha256 = engines.getSha256();
+            update(sha256);
+            return sha256.digest();
+        } finally {
+            FWPVerifierPool.release(engines);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.fwp;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+
+import java.util.EnumMap;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.webpki.crypto.AsymSignatureAlgorithms;
+import org.webpki.crypto.CryptoException;
+
+/**
+ * Pool of signature verifiers and hash engines.
+ *
+ * JCA provider lookups are performed once per set of engines, after that
+ * the engines are only re-initialized with the current key.  Platform
+ * threads keep their engines in a thread-local.  Virtual threads are
+ * typically created per task which would make thread-locals useless, so
+ * they borrow engines from a bounded shared pool instead.
+ */
+class FWPVerifierPool {
+
+    private FWPVerifierPool() {}
+
+    static final int SHA256_LENGTH = 32;
+
+    static final int MAX_POOLED_ENGINES = 256;
+
+    /**
+     * Engines for use by a single thread until released.
+     */
+    static class Engines {
+
+        EnumMap<AsymSignatureAlgorithms, Signature> verifiers =
+                new EnumMap<>(AsymSignatureAlgorithms.class);
+        MessageDigest sha256;
+        byte[] hashBuffer = new byte[SHA256_LENGTH];
+
+        Signature getVerifier(AsymSignatureAlgorithms algorithm)
+                throws GeneralSecurityException {
+            Signature verifier = verifiers.get(algorithm);
+            if (verifier == null) {
+                verifier = Signature.getInstance(getJceName(algorithm));
+                verifiers.put(algorithm, verifier);
+            }
+            return verifier;
+        }
+
+        MessageDigest getSha256() throws GeneralSecurityException {
+            if (sha256 == null) {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            }
+            return sha256;
+        }
+
+        /**
+         * SHA-256 hash using the buffer of the engines.
+         *
+         * Note: the returned buffer is overwritten by the next call.
+         *
+         * @param data Data to be hashed
+         * @return Hash
+         * @throws GeneralSecurityException
+         */
+        byte[] sha256(byte[] data) throws GeneralSecurityException {
+            MessageDigest sha256 = getSha256();
+            sha256.update(data);
+            sha256.digest(hashBuffer, 0, SHA256_LENGTH);
+            return hashBuffer;
+        }
+    }
+
+    static final ThreadLocal<Engines> engines = ThreadLocal.withInitial(Engines::new);
+
+    static final ConcurrentLinkedQueue<Engines> pool = new ConcurrentLinkedQueue<>();
+    static final AtomicInteger pooled = new AtomicInteger();
+
+    static String getJceName(AsymSignatureAlgorithms algorithm) {
+        switch (algorithm) {
+            case RSA_SHA256:
+                return "SHA256withRSA";
+
+            case ECDSA_SHA256:
+                // FIDO ECDSA signatures are ASN.1 encoded which is
+                // also the native JCA format.
+                return "SHA256withECDSA";
+
+            case ED25519:
+                return "Ed25519";
+
+            default:
+                throw new CryptoException("Unsupported FIDO algorithm: " + algorithm);
+        }
+    }
+
+    /**
+     * Get engines for the current thread.
+     *
+     * Must be paired with {@link #release(Engines)}.
+     *
+     * @return Engines
+     */
+    static Engines acquire() {
+        if (!Thread.currentThread().isVirtual()) {
+            return engines.get();
+        }
+        Engines borrowed = pool.poll();
+        if (borrowed == null) {
+            return new Engines();
+        }
+        pooled.decrementAndGet();
+        return borrowed;
+    }
+
+    static void release(Engines released) {
+        if (!Thread.currentThread().isVirtual()) {
+            return;
+        }
+        // Engines beyond the bound are left to the garbage collector.
+        if (pooled.incrementAndGet() > MAX_POOLED_ENGINES) {
+            pooled.decrementAndGet();
+            return;
+        }
+        if (released.sha256 != null) {
+            released.sha256.reset();
+        }
+        pool.offer(released);
+    }
+}
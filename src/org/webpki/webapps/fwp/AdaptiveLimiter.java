@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrency limit adapted to observed latency (AIMD).
+ *
+ * Each request completing within the latency target increases the limit
+ * by 1/limit (roughly one per round of requests), while a slower request
+ * decreases it by {@link #DECREASE_FACTOR}.  Decreases are made at most
+ * once per latency target period since a single overload episode typically
+ * produces a burst of slow requests.  The limiter is lock free.
+ */
+class AdaptiveLimiter {
+
+    static final double DECREASE_FACTOR = 0.8;
+
+    String name;
+    int minLimit;
+    int maxLimit;
+    long latencyTargetNanos;
+
+    // Double.doubleToRawLongBits of the current limit.
+    private AtomicLong limit = new AtomicLong();
+    private AtomicLong lastDecrease = new AtomicLong();
+    private AtomicInteger inFlight = new AtomicInteger();
+
+    LongAdder admitted = new LongAdder();
+    LongAdder rejected = new LongAdder();
+    LongAdder slow = new LongAdder();
+
+    /**
+     * Create a limiter.
+     *
+     * @param name For metrics
+     * @param minLimit Lowest concurrency limit
+     * @param maxLimit Highest (and initial) concurrency limit
+     * @param latencyTargetMillis Latency above which requests count as slow
+     */
+    AdaptiveLimiter(String name, int minLimit, int maxLimit, long latencyTargetMillis) {
+        if (minLimit < 1 || maxLimit < minLimit || latencyTargetMillis <= 0) {
+            throw new IllegalArgumentException("Invalid limiter parameters");
+        }
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        latencyTargetNanos = latencyTargetMillis * 1000000;
+        limit.set(Double.doubleToRawLongBits(maxLimit));
+        lastDecrease.set(System.nanoTime() - latencyTargetNanos);
+    }
+
+    /**
+     * Try to admit a request.
+     *
+     * @return <code>true</code> if admitted, in which case {@link #release(long)}
+     * must be called when the request has completed
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= getLimit()) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                admitted.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release an admitted request.
+     *
+     * @param latencyNanos Processing time of the request
+     */
+    void release(long latencyNanos) {
+        inFlight.decrementAndGet();
+        if (latencyNanos > latencyTargetNanos) {
+            slow.increment();
+            long now = System.nanoTime();
+            long previous = lastDecrease.get();
+            // Only the request winning the period decreases the limit.
+            if (now - previous >= latencyTargetNanos &&
+                lastDecrease.compareAndSet(previous, now)) {
+                updateLimit(-1);
+            }
+        } else {
+            updateLimit(1);
+        }
+    }
+
+    private void updateLimit(int direction) {
+        while (true) {
+            long currentBits = limit.get();
+            double current = Double.longBitsToDouble(currentBits);
+            double updated = direction < 0 ? Math.max(minLimit, current * DECREASE_FACTOR)
+                                           : Math.min(maxLimit, current + 1 / current);
+            if (updated == current ||
+                limit.compareAndSet(currentBits, Double.doubleToRawLongBits(updated))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Congestion indicator used for giving priority to other requests.
+     *
+     * @return <code>true</code> if the limit has recently been decreased
+     * or is (nearly) reached.  An idle limiter is never congested, even at
+     * the minimum limit
+     */
+    boolean isCongested() {
+        return System.nanoTime() - lastDecrease.get() < latencyTargetNanos ||
+               inFlight.get() >= Math.max(1, (int) Math.ceil(getLimit() * DECREASE_FACTOR));
+    }
+
+    private double getLimitValue() {
+        return Double.longBitsToDouble(limit.get());
+    }
+
+    int getLimit() {
+        return (int) getLimitValue();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": limit=" + getLimit() +
+               ", inFlight=" + getInFlight() +
+               ", admitted=" + admitted.sum() +
+               ", rejected=" + rejected.sum() +
+               ", slow=" + slow.sum();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.io.IOException;
+
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Admission control for the application.
+ *
+ * Requests are divided into endpoint classes, each having an adaptive
+ * concurrency limit.  Payment authorizations have priority: FIDO login and
+ * enrollment requests are shed when the payment class is congested, while
+ * other (demo and admin) requests are shed when any of the other classes is.
+ * Rejected requests get an immediate HTTP 503 with a Retry-After header,
+ * rather than queuing up for a database connection.
+ *
+ * The filter is mapped to the servlets only; static resources are not limited.
+ */
+public class AdmissionFilter implements Filter {
+
+    static Logger logger = Logger.getLogger(AdmissionFilter.class.getName());
+
+    /**
+     * Endpoint classes in priority order.
+     */
+    enum EndpointClass {
+        PAYMENT,
+        FIDO,
+        OTHER
+    }
+
+    // Non-null if admission control is enabled.
+    static AdaptiveLimiter[] limiters;
+
+    static int retryAfter;
+
+    /**
+     * Enable admission control.
+     *
+     * @param paymentLimit Maximum concurrent payment requests
+     * @param fidoLimit Maximum concurrent FIDO login and enrollment requests
+     * @param otherLimit Maximum concurrent other requests
+     * @param latencyTargetMillis Latency above which limits are decreased
+     * @param retryAfterSeconds Retry-After value of rejections
+     */
+    static void configure(int paymentLimit,
+                          int fidoLimit,
+                          int otherLimit,
+                          long latencyTargetMillis,
+                          int retryAfterSeconds) {
+        retryAfter = retryAfterSeconds;
+        limiters = new AdaptiveLimiter[] {
+            new AdaptiveLimiter("payment", 1, paymentLimit, latencyTargetMillis),
+            new AdaptiveLimiter("fido", 1, fidoLimit, latencyTargetMillis),
+            new AdaptiveLimiter("other", 1, otherLimit, latencyTargetMillis)
+        };
+    }
+
+    static EndpointClass getEndpointClass(String servletPath) {
+        switch (servletPath) {
+            case "/issuerreq":
+            case "/issuercbor":
+            case "/issuerbatch":
+            case "/pspreq":
+            case "/fidopay":
+                return EndpointClass.PAYMENT;
+
+            case "/fidologin":
+            case "/fidoenroll":
+                return EndpointClass.FIDO;
+
+            default:
+                return EndpointClass.OTHER;
+        }
+    }
+
+    static boolean admit(AdaptiveLimiter[] limiters, EndpointClass endpointClass) {
+        // Higher priority classes take precedence when congested.
+        for (int i = 0; i < endpointClass.ordinal(); i++) {
+            if (limiters[i].isCongested()) {
+                limiters[endpointClass.ordinal()].rejected.increment();
+                return false;
+            }
+        }
+        return limiters[endpointClass.ordinal()].tryAcquire();
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        AdaptiveLimiter[] limiters = AdmissionFilter.limiters;
+        if (limiters == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        EndpointClass endpointClass =
+                getEndpointClass(((HttpServletRequest) request).getServletPath());
+        if (!admit(limiters, endpointClass)) {
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+            httpResponse.setHeader("Retry-After", String.valueOf(retryAfter));
+            httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        AdaptiveLimiter limiter = limiters[endpointClass.ordinal()];
+        long start = System.nanoTime();
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                // Asynchronously processed requests are released on completion.
+                request.getAsyncContext().addListener(new AsyncListener() {
+
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        limiter.release(System.nanoTime() - start);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+
+                });
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                limiter.release(System.nanoTime() - start);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        AdaptiveLimiter[] limiters = AdmissionFilter.limiters;
+        if (limiters != null && ApplicationService.logging) {
+            for (AdaptiveLimiter limiter : limiters) {
+                logger.info("Admission " + limiter);
+            }
+        }
+    }
+}
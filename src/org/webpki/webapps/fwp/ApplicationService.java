@@ -19,10 +19,20 @@ package org.webpki.webapps.fwp;
 import java.io.IOException;
 import java.io.InputStream;
 
+import java.math.BigDecimal;
+
+import java.nio.file.Paths;
+
 import java.security.KeyPair;
 
+import java.sql.Connection;
+
+import java.util.Arrays;
 import java.util.Base64;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +50,10 @@ import org.webpki.crypto.CustomCryptoProvider;
 import org.webpki.crypto.ContentEncryptionAlgorithms;
 import org.webpki.crypto.KeyEncryptionAlgorithms;
 
+import org.webpki.fwp.FWPCrypto;
+import org.webpki.fwp.FWPP256Engine;
+import org.webpki.fwp.FWPPublicKeyCache;
+
 import org.webpki.jose.JOSEKeyWords;
 
 import org.webpki.json.JSONParser;
@@ -73,6 +87,20 @@ public class ApplicationService extends InitPropertyReader implements ServletCon
 
     static boolean logging;
 
+    static AuthorizationPolicy authorizationPolicy = AuthorizationRules.createPolicy(null, false);
+
+    // Non-null if issuer requests are processed asynchronously.
+    static ExecutorService issuerExecutor;
+
+    // Non-null if issuer requests are processed by a staged pipeline.
+    static IssuerPipeline issuerPipeline;
+
+    // Non-null if card data is kept in memory.
+    static CardIndex cardIndex;
+
+    // Non-null when the database is available.
+    static HostNameResolver hostNameResolver;
+
     
     static String base64UrlEncode(byte[] bytes) {
         return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
@@ -96,6 +124,30 @@ public class ApplicationService extends InitPropertyReader implements ServletCon
 
     @Override
     public void contextDestroyed(ServletContextEvent event) {
+        if (issuerExecutor != null) {
+            issuerExecutor.shutdown();
+        }
+        if (issuerPipeline != null) {
+            issuerPipeline.shutdown();
+        }
+        ReplayCache.INSTANCE.shutdown();
+        UserStatistics.INSTANCE.shutdown();
+        if (hostNameResolver != null) {
+            hostNameResolver.shutdown();
+        }
+        if (logging) {
+            logger.info(authorizationPolicy.toString());
+            if (cardIndex != null) {
+                logger.info(cardIndex.toString());
+            }
+            if (hostNameResolver != null) {
+                logger.info(hostNameResolver.toString());
+            }
+            if (WalletCache.virtualCards != null) {
+                logger.info(WalletCache.virtualCards.toString());
+                logger.info(WalletCache.coreClientData.toString());
+            }
+        }
     }
 
     @Override
@@ -108,7 +160,104 @@ public class ApplicationService extends InitPropertyReader implements ServletCon
             // Logging?
             /////////////////////////////////////////////////////////////////////////////////////////////
             logging = getPropertyBoolean("logging");
+
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Table based ES256 validation of frequently used keys?
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            if (getPropertyBoolean("p256-engine")) {
+                FWPCrypto.setP256Engine(
+                        new FWPP256Engine(FWPP256Engine.DEFAULT_HOT_KEY_THRESHOLD,
+                                          FWPP256Engine.DEFAULT_MAX_TABLES));
+            }
+
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Restricted clientDataJSON origins?
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            String allowedOrigins = getPropertyString("allowed-origins");
+            if (!allowedOrigins.isEmpty()) {
+                FWPCrypto.setAllowedOrigins(allowedOrigins.split(","));
+                logger.info("Allowed origins: " + allowedOrigins);
+            }
+
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Public key cache sizing
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            int publicKeyCacheSize = getPropertyInt("public-key-cache-size");
+            FWPCrypto.setPublicKeyCache(publicKeyCacheSize == 0 ? null :
+                new FWPPublicKeyCache(publicKeyCacheSize, getPropertyInt("public-key-cache-ttl")));
             
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Replay store shared by the issuer processes on this host?
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            String replayStoreFile = getPropertyString("replay-store-file");
+            if (!replayStoreFile.isEmpty()) {
+                ReplayCache.INSTANCE.setSadStore(
+                        new MappedReplayStore(Paths.get(replayStoreFile),
+                                              getPropertyInt("replay-store-slots")));
+            }
+
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Bounded memory Bloom filter in front of the ESAD replay look-ups?
+            // Optionally also bounding the in-memory replay tables.
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            int replayBloomBudget = getPropertyInt("replay-bloom-budget");
+            int replayMaxEntries = getPropertyInt("replay-max-entries");
+            if (replayBloomBudget > 0) {
+                long sliceCapacity = ReplayCache.INSTANCE.setBloomFront(
+                        replayBloomBudget, 
+                        Double.parseDouble(getPropertyString("replay-bloom-fpr")),
+                        replayMaxEntries);
+                logger.info("Replay Bloom filter capacity per slice: " + sliceCapacity);
+            } else if (replayMaxEntries > 0) {
+                throw new IOException("replay-max-entries requires replay-bloom-budget");
+            }
+
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Replay detection partitioned over multiple issuer nodes?
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            String replayNodes = getPropertyString("replay-nodes");
+            if (!replayNodes.isEmpty()) {
+                ReplayCache.INSTANCE.setPartitioning(Arrays.asList(replayNodes.split(",")),
+                                                     getPropertyString("replay-node-self"),
+                                                     getPropertyInt("replay-replicas"));
+            }
+
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Issuer authorization policy
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            String issuerAmountLimit = getPropertyString("issuer-amount-limit");
+            authorizationPolicy = AuthorizationRules.createPolicy(
+                    issuerAmountLimit.isEmpty() ? null : new BigDecimal(issuerAmountLimit),
+                    getPropertyBoolean("issuer-uv-required"));
+
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Asynchronous issuer processing on virtual threads?
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            if (getPropertyBoolean("issuer-async")) {
+                issuerExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            }
+
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Staged issuer pipeline with separately sized crypto and database pools?
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            int issuerCryptoThreads = getPropertyInt("issuer-crypto-threads");
+            if (issuerCryptoThreads > 0) {
+                issuerPipeline = new IssuerPipeline(issuerCryptoThreads,
+                                                    getPropertyInt("issuer-database-threads"),
+                                                    getPropertyInt("issuer-queue-size"));
+            }
+
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Admission control?
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            if (getPropertyBoolean("admission-control")) {
+                AdmissionFilter.configure(getPropertyInt("admission-payment-limit"),
+                                          getPropertyInt("admission-fido-limit"),
+                                          getPropertyInt("admission-other-limit"),
+                                          getPropertyInt("admission-latency-target"),
+                                          getPropertyInt("admission-retry-after"));
+            }
+
             /////////////////////////////////////////////////////////////////////////////////////////////
             // Hard coded issuer data
             /////////////////////////////////////////////////////////////////////////////////////////////
@@ -122,6 +271,32 @@ public class ApplicationService extends InitPropertyReader implements ServletCon
             Context envContext  = (Context)initContext.lookup("java:/comp/env");
             jdbcDataSource = (DataSource)envContext.lookup("jdbc/FWP");
             DataBaseOperations.testConnection();
+            UserStatistics.INSTANCE.start();
+            HostNameResolver newHostNameResolver =
+                    new HostNameResolver(getPropertyInt("hostname-lookup-threads"));
+            newHostNameResolver.start();
+            hostNameResolver = newHostNameResolver;
+
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Card data in memory for issuer authorizations?
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            if (getPropertyBoolean("card-index")) {
+                CardIndex newCardIndex = new CardIndex(getPropertyInt("card-index-ttl"));
+                try (Connection connection = jdbcDataSource.getConnection();) {
+                    logger.info("Card index loaded: " + 
+                                DataBaseOperations.loadCardIndex(newCardIndex, connection) +
+                                " cards");
+                }
+                cardIndex = newCardIndex;
+            }
+
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            // Wallet data cache?
+            /////////////////////////////////////////////////////////////////////////////////////////////
+            int walletCacheTtl = getPropertyInt("wallet-cache-ttl");
+            if (walletCacheTtl > 0) {
+                WalletCache.configure(walletCacheTtl, getPropertyInt("wallet-cache-size"));
+            }
             
             logger.info("FWP Demo Successfully Initiated");
         } catch (Exception e) {
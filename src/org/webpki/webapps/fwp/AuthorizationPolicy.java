@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.io.IOException;
+
+import java.security.GeneralSecurityException;
+
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.webpki.fwp.FWPRejection;
+
+/**
+ * Issuer authorization policy engine.
+ *
+ * Rules are evaluated in cost order (rules of the same cost in the order
+ * they were added) and evaluation stops at the first rejection.  Exceptions
+ * thrown by rules propagate to the caller; in the rule statistics they are
+ * counted as rejections.
+ */
+class AuthorizationPolicy {
+
+    /**
+     * Rule with counters.
+     */
+    static class RuleEntry {
+
+        AuthorizationRule rule;
+
+        LongAdder passed = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        LongAdder nanos = new LongAdder();
+
+        RuleEntry(AuthorizationRule rule) {
+            this.rule = rule;
+        }
+
+        @Override
+        public String toString() {
+            long count = Math.max(passed.sum() + rejected.sum(), 1);
+            return String.format("%s(%s): passed=%d, rejected=%d, avg=%.3fms",
+                                 rule.getName(),
+                                 rule.getCost(),
+                                 passed.sum(),
+                                 rejected.sum(),
+                                 nanos.sum() / (count * 1e6));
+        }
+    }
+
+    // Immutable; replaced when rules are added.
+    private volatile List<RuleEntry> rules = new ArrayList<>();
+
+    /**
+     * Add a rule.
+     *
+     * Must be called before the policy is put into service.
+     *
+     * @param rule Rule to add
+     * @return <code>this</code>
+     */
+    AuthorizationPolicy addRule(AuthorizationRule rule) {
+        ArrayList<RuleEntry> newRules = new ArrayList<>(rules);
+        newRules.add(new RuleEntry(rule));
+        // Stable sort: registration order within a cost class.
+        newRules.sort(Comparator.comparing((RuleEntry entry) -> entry.rule.getCost()));
+        rules = newRules;
+        return this;
+    }
+
+    List<RuleEntry> getRules() {
+        return rules;
+    }
+
+    /**
+     * Evaluate the rules of a range of cost classes.
+     *
+     * @param transaction The issuer request
+     * @param from Lowest cost class
+     * @param to Highest cost class
+     * @return <code>null</code> if all rules passed, else the rejection
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws SQLException
+     */
+    FWPRejection evaluate(IssuerServlet.IssuerTransaction transaction,
+                          AuthorizationRule.Cost from,
+                          AuthorizationRule.Cost to)
+            throws IOException, GeneralSecurityException, SQLException {
+        for (RuleEntry entry : rules) {
+            AuthorizationRule.Cost cost = entry.rule.getCost();
+            if (cost.compareTo(from) < 0 || cost.compareTo(to) > 0) {
+                continue;
+            }
+            long start = System.nanoTime();
+            boolean passed = false;
+            try {
+                FWPRejection rejection = entry.rule.evaluate(transaction);
+                if (rejection != null) {
+                    return rejection;
+                }
+                passed = true;
+            } finally {
+                entry.nanos.add(System.nanoTime() - start);
+                (passed ? entry.passed : entry.rejected).increment();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("Authorization policy");
+        for (RuleEntry entry : rules) {
+            result.append("\n  ").append(entry);
+        }
+        return result.toString();
+    }
+}
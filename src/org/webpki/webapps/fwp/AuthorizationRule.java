@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.io.IOException;
+
+import java.security.GeneralSecurityException;
+
+import java.sql.SQLException;
+
+import org.webpki.fwp.FWPRejection;
+
+/**
+ * Issuer authorization rule plugin.
+ */
+interface AuthorizationRule {
+
+    /**
+     * Cost classes in evaluation order.
+     */
+    enum Cost {
+        CLAIMS,     // Checks of not yet verified SAD claims
+        SIGNATURE,  // Signature validation
+        MEMORY,     // In-memory checks of verified data
+        DATABASE,   // Database access
+        COMMIT      // Checks with side effects, must be performed last
+    }
+
+    String getName();
+
+    Cost getCost();
+
+    /**
+     * Evaluate the rule.
+     *
+     * @param transaction The issuer request
+     * @return <code>null</code> if passed, else the (preallocated) rejection
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws SQLException
+     */
+    FWPRejection evaluate(IssuerServlet.IssuerTransaction transaction)
+            throws IOException, GeneralSecurityException, SQLException;
+}
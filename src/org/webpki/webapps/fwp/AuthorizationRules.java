@@ -0,0 +1,341 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.io.IOException;
+
+import java.math.BigDecimal;
+
+import java.security.GeneralSecurityException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import java.util.Arrays;
+
+import java.util.logging.Logger;
+
+import org.webpki.crypto.HashAlgorithms;
+
+import org.webpki.fwp.FWPAssertionDecoder;
+import org.webpki.fwp.FWPCrypto;
+import org.webpki.fwp.FWPPaymentRequest;
+import org.webpki.fwp.FWPRejection;
+
+import org.webpki.util.HexaDecimal;
+
+/**
+ * The standard issuer authorization rules.
+ */
+class AuthorizationRules {
+
+    static Logger logger = Logger.getLogger(AuthorizationRules.class.getName());
+
+    private AuthorizationRules() {}
+
+    /**
+     * The standard policy.
+     *
+     * @param amountLimit Maximum amount or <code>null</code>
+     * @param userVerificationRequired If <code>true</code> UV is required
+     * @return Policy
+     */
+    static AuthorizationPolicy createPolicy(BigDecimal amountLimit,
+                                            boolean userVerificationRequired) {
+        AuthorizationPolicy policy = new AuthorizationPolicy()
+            .addRule(new TimeWindow())
+            .addRule(new PaymentRequestMatch())
+            .addRule(new PayeeHostMatch())
+            .addRule(new Signature())
+            .addRule(new AccountLookup())
+            .addRule(new Replay());
+        if (amountLimit != null) {
+            policy.addRule(new AmountLimit(amountLimit));
+        }
+        if (userVerificationRequired) {
+            policy.addRule(new UserVerification());
+        }
+        return policy;
+    }
+
+    /**
+     * If the internal clock of an FWP client is severely out of sync, created
+     * authorizations will be rejected.  This also makes clock manipulations
+     * useless as attack vectors.
+     */
+    static class TimeWindow implements AuthorizationRule {
+
+        @Override
+        public String getName() {
+            return "TimeWindow";
+        }
+
+        @Override
+        public Cost getCost() {
+            return Cost.CLAIMS;
+        }
+
+        @Override
+        public FWPRejection evaluate(IssuerServlet.IssuerTransaction transaction) {
+            long now = System.currentTimeMillis();
+            long timeStamp = transaction.expirationTime - IssuerServlet.AUTHORIZATION_MAX_AGE;
+            if (transaction.expirationTime < now) {
+                return FWPRejection.get(FWPRejection.Code.EXPIRED);
+            }
+            if (timeStamp - IssuerServlet.AUTHORIZATION_MAX_FUTURE > now) {
+                return FWPRejection.get(FWPRejection.Code.NOT_YET_VALID);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Check that the merchant request matches the authorization.
+     */
+    static class PaymentRequestMatch implements AuthorizationRule {
+
+        @Override
+        public String getName() {
+            return "PaymentRequestMatch";
+        }
+
+        @Override
+        public Cost getCost() {
+            return Cost.CLAIMS;
+        }
+
+        @Override
+        public FWPRejection evaluate(IssuerServlet.IssuerTransaction transaction) {
+            FWPPaymentRequest actual = transaction.claims.getPaymentRequest();
+            if (!actual.equals(transaction.fwpPaymentRequest)) {
+                return FWPRejection.get(FWPRejection.Code.PAYMENT_REQUEST_MISMATCH);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Check that the user haven't been phished.  Note that this check
+     * depends on participation by the merchant's PSP.
+     */
+    static class PayeeHostMatch implements AuthorizationRule {
+
+        @Override
+        public String getName() {
+            return "PayeeHostMatch";
+        }
+
+        @Override
+        public Cost getCost() {
+            return Cost.CLAIMS;
+        }
+
+        @Override
+        public FWPRejection evaluate(IssuerServlet.IssuerTransaction transaction) {
+            String claimed = transaction.decodedIssuerRequest.getPayeeHost();
+            if (!claimed.equals(transaction.claims.getPayeeHost())) {
+                return FWPRejection.get(FWPRejection.Code.PAYEE_HOST_MISMATCH);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Maximum amount per authorization (regardless of currency).
+     */
+    static class AmountLimit implements AuthorizationRule {
+
+        BigDecimal limit;
+
+        AmountLimit(BigDecimal limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public String getName() {
+            return "AmountLimit";
+        }
+
+        @Override
+        public Cost getCost() {
+            return Cost.CLAIMS;
+        }
+
+        @Override
+        public FWPRejection evaluate(IssuerServlet.IssuerTransaction transaction) {
+            if (new BigDecimal(transaction.fwpPaymentRequest.getAmount()).compareTo(limit) > 0) {
+                return FWPRejection.get(FWPRejection.Code.AMOUNT_LIMIT_EXCEEDED);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Decode signed assertion (SAD).  Succeeded => the data (SAD) is
+     * "technically" OK including the signature.
+     */
+    static class Signature implements AuthorizationRule {
+
+        @Override
+        public String getName() {
+            return "Signature";
+        }
+
+        @Override
+        public Cost getCost() {
+            return Cost.SIGNATURE;
+        }
+
+        @Override
+        public FWPRejection evaluate(IssuerServlet.IssuerTransaction transaction) {
+            try {
+                // The SAD has already been decoded for the unverified claims.
+                transaction.fwpAssertion = new FWPAssertionDecoder(transaction.claims);
+            } catch (FWPRejection rejection) {
+                return rejection;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Require that the user was verified (not only present).
+     */
+    static class UserVerification implements AuthorizationRule {
+
+        @Override
+        public String getName() {
+            return "UserVerification";
+        }
+
+        @Override
+        public Cost getCost() {
+            return Cost.MEMORY;
+        }
+
+        @Override
+        public FWPRejection evaluate(IssuerServlet.IssuerTransaction transaction) {
+            if (!transaction.fwpAssertion.getUserValidation().contains(
+                    FWPCrypto.UserValidation.VERIFIED)) {
+                return FWPRejection.get(FWPRejection.Code.USER_VERIFICATION_REQUIRED);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * And of course, verify that the authorization belongs to a valid account!
+     */
+    static class AccountLookup implements AuthorizationRule {
+
+        @Override
+        public String getName() {
+            return "AccountLookup";
+        }
+
+        @Override
+        public Cost getCost() {
+            return Cost.DATABASE;
+        }
+
+        @Override
+        public FWPRejection evaluate(IssuerServlet.IssuerTransaction transaction)
+                throws IOException, GeneralSecurityException, SQLException {
+            if (transaction.authorizedInfo != null) {
+                // Resolved by a batched look-up.
+                return null;
+            }
+            FWPAssertionDecoder fwpAssertion = transaction.fwpAssertion;
+            transaction.authorizedInfo = 
+                    DataBaseOperations.authorize(fwpAssertion.getSerialNumber(),
+                                                 fwpAssertion.getAccountId(),
+                                                 fwpAssertion.getPublicKey());
+            if (transaction.authorizedInfo != null) {
+                // Card index hit, no database access needed.
+                return null;
+            }
+            try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
+                transaction.authorizedInfo =
+                        DataBaseOperations.authorize(fwpAssertion.getSerialNumber(),
+                                                     fwpAssertion.getAccountId(),
+                                                     fwpAssertion.getPublicKey(),
+                                                     connection);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Have this user authorization already been consumed?
+     *
+     * Runs last since the authorization is consumed by this check.
+     */
+    static class Replay implements AuthorizationRule {
+
+        @Override
+        public String getName() {
+            return "Replay";
+        }
+
+        @Override
+        public Cost getCost() {
+            return Cost.COMMIT;
+        }
+
+        @Override
+        public FWPRejection evaluate(IssuerServlet.IssuerTransaction transaction) {
+            // Create a cacheable SAD object that is uniquely (but momentarily)
+            // representing a specific transaction request.
+            //
+            // The data needed to make this safe (=cause no false cache collisions),
+            // in FWP depends on the following input
+            // - The transaction (PRCD) request
+            // . The host name derived from the URL of the FWP invocation
+            // - The client generated time stamp
+            // - The account specific payment credentials
+            // - The FIDO signature counter
+            // - The signature including public key
+            // as well as that the request has been verified as genuine.
+            //
+            // The use of time stamped and signed authorization data together with
+            // strict time limits on the verifier side, makes this scheme comparable
+            // to WebAuthn, but considerably more flexible since such authorizations 
+            // can pass any number of nodes without losing their "teeth".
+            //
+            // That user authorizations are carried out entirely locally makes merchant
+            // integration of this part extremely simple.
+            //
+            // Due to the fact that payment requests represent discrete events that are
+            // to be acted upon, rather than creating secure sessions with a client,
+            // there is no need for dedicated authentication servers.
+            //
+            // Note that supporting IDEMPOTENT operation would require additional data like
+            // - The hash of the entire request in order to verify input equivalence
+            // - The full response for the initial successful request
+            // since (then permitted, but still time limited) replays MUST NOT change anything
+            // on the receiver side.
+            byte[] sadDigest = HashAlgorithms.SHA256.digest(transaction.fwpAssertionBinary);
+            transaction.token = HexaDecimal.encode(Arrays.copyOf(sadDigest, 8));
+            if (ReplayCache.INSTANCE.add(sadDigest, transaction.expirationTime)) {
+                logger.info("Replay of authorization token: " + transaction.token +
+                            ", accountId=" + transaction.fwpAssertion.getAccountId());
+                return FWPRejection.get(FWPRejection.Code.REPLAY);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time-partitioned Bloom filter front for a replay store.
+ *
+ * Each filter covers the expiration times of a time slice.  Filters of expired
+ * slices are cleared and reused for upcoming slices.  Look-ups that the filters
+ * answer with "definitely not seen" never reach the exact store.  Additions
+ * are always forwarded to the exact store which is the only one that can
+ * resolve concurrent additions of the same digest.  With an unbounded exact
+ * store the front is therefore only useful for stores that are mostly queried
+ * through {@link #contains(byte[])}.
+ *
+ * With a bounded {@link ReplayTable} as exact store, digests that do not fit
+ * are only recorded by the filters.  Once a slice has overflowed, digests
+ * matching its filter are considered seen, i.e. replays are still detected
+ * but new authorizations are rejected at the false positive rate of the filter.
+ * This keeps the memory bounded during bursts.
+ *
+ * Entries with expiration times outside of the filter window bypass
+ * the filters (and the bound) and make look-ups consult the exact store
+ * until they expire.
+ */
+class BloomReplayFront implements ReplayStore {
+
+    static final int DEFAULT_SLICES = 10;  // Per AUTHORIZATION_MAX_AGE
+
+    static class Filter {
+
+        AtomicLongArray bits;
+        LongAdder setBits = new LongAdder();
+        volatile long slice = Long.MIN_VALUE;
+
+        // Set when digests have been added to the filter only.
+        volatile boolean overflowed;
+
+        Filter(int words) {
+            bits = new AtomicLongArray(words);
+        }
+
+        void clear(long newSlice) {
+            slice = Long.MIN_VALUE;
+            for (int i = 0; i < bits.length(); i++) {
+                bits.set(i, 0);
+            }
+            setBits.reset();
+            overflowed = false;
+            slice = newSlice;
+        }
+    }
+
+    ReplayStore exactStore;
+
+    // Non-null if the exact store is bounded.
+    ReplayTable boundedStore;
+    LongAdder overflows = new LongAdder();
+
+    long sliceMillis;
+    Filter[] filters;
+    long bitMask;
+    int hashes;
+
+    // Latest expiration time of entries that bypassed the filters.
+    volatile long unfilteredUntil;
+
+    /**
+     * Create a Bloom filter front.
+     *
+     * @param exactStore Store holding the actual digests, possibly a bounded {@link ReplayTable}
+     * @param maxAge Maximum age of authorizations in milliseconds
+     * @param maxFuture Maximum future time of authorizations in milliseconds
+     * @param slices Number of filters per maxAge
+     * @param memoryBudget Total size of the filters in bytes
+     * @param falsePositiveRate Targeted false positive rate (at capacity)
+     */
+    BloomReplayFront(ReplayStore exactStore,
+                     long maxAge,
+                     long maxFuture,
+                     int slices,
+                     long memoryBudget,
+                     double falsePositiveRate) {
+        if (slices < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid Bloom filter parameters");
+        }
+        this.exactStore = exactStore;
+        if (exactStore instanceof ReplayTable && ((ReplayTable) exactStore).isBounded()) {
+            boundedStore = (ReplayTable) exactStore;
+        }
+        sliceMillis = Math.max(maxAge / slices, ReplayTable.TICK_MILLIS);
+        // The window also includes the current (partially expired) slice.
+        int count = (int) ((maxAge + maxFuture + sliceMillis - 1) / sliceMillis) + 1;
+        long bitsPerFilter = Long.highestOneBit(memoryBudget * 8 / count);
+        if (bitsPerFilter < 64 || bitsPerFilter > (long) Integer.MAX_VALUE * 64) {
+            throw new IllegalArgumentException("Invalid Bloom filter memory budget");
+        }
+        bitMask = bitsPerFilter - 1;
+        hashes = Math.max(1, (int) Math.round(-Math.log(falsePositiveRate) / Math.log(2)));
+        filters = new Filter[count];
+        for (int i = 0; i < count; i++) {
+            filters[i] = new Filter((int) (bitsPerFilter / 64));
+        }
+        rotate(System.currentTimeMillis());
+    }
+
+    /**
+     * Number of digests per slice a filter can hold at the targeted rate.
+     */
+    long getSliceCapacity() {
+        return (long) ((bitMask + 1) * Math.log(2) / hashes);
+    }
+
+    /**
+     * Fill level of the fullest live filter.
+     *
+     * @return Fraction (0-1) of set bits
+     */
+    double getFillLevel() {
+        long maxSetBits = 0;
+        for (Filter filter : filters) {
+            maxSetBits = Math.max(maxSetBits, filter.setBits.sum());
+        }
+        return (double) maxSetBits / (bitMask + 1);
+    }
+
+    // Prepares filters for all slices of the window.
+    synchronized void rotate(long now) {
+        long currentSlice = now / sliceMillis;
+        for (long slice = currentSlice; slice < currentSlice + filters.length; slice++) {
+            Filter filter = filters[(int) Math.floorMod(slice, (long) filters.length)];
+            if (filter.slice != slice) {
+                filter.clear(slice);
+            }
+        }
+    }
+
+    Filter getFilter(long expirationTime) {
+        long slice = expirationTime / sliceMillis;
+        Filter filter = filters[(int) Math.floorMod(slice, (long) filters.length)];
+        return filter.slice == slice ? filter : null;
+    }
+
+    // Double hashing using the parts of the digest not used by the exact stores.
+    long getBitIndex(long h1, long h2, int i) {
+        return (h1 + i * h2) & bitMask;
+    }
+
+    boolean mightContain(Filter filter, long h1, long h2) {
+        for (int i = 0; i < hashes; i++) {
+            long bit = getBitIndex(h1, h2, i);
+            if ((filter.bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns true if all bits were already set.
+    boolean put(Filter filter, long h1, long h2) {
+        boolean found = true;
+        for (int i = 0; i < hashes; i++) {
+            long bit = getBitIndex(h1, h2, i);
+            long mask = 1L << bit;
+            if ((filter.bits.getAndAccumulate((int) (bit >>> 6), mask, (a, b) -> a | b) &
+                    mask) == 0) {
+                filter.setBits.increment();
+                found = false;
+            }
+        }
+        return found;
+    }
+
+    // Adds a digest to a bounded exact store or to the filter only.
+    boolean addBounded(Filter filter, byte[] digest, long expirationTime, long h1, long h2) {
+        switch (boundedStore.tryAdd(digest, expirationTime)) {
+            case ReplayTable.REPLAY:
+                return true;
+
+            case ReplayTable.ADDED:
+                // A concurrent overflow addition of the same digest writes the filter
+                // before reading the exact store; this side does the opposite.
+                if (mightContain(filter, h1, h2) && filter.overflowed) {
+                    return true;
+                }
+                put(filter, h1, h2);
+                return false;
+
+            default:
+                overflows.increment();
+                boolean found;
+                // Serialized since the filter decides which of concurrent additions wins.
+                synchronized (filter) {
+                    filter.overflowed = true;
+                    found = put(filter, h1, h2);
+                }
+                return found || boundedStore.contains(digest);
+        }
+    }
+
+    @Override
+    public boolean add(byte[] digest, long expirationTime) {
+        ReplayTable.checkDigest(digest);
+        Filter filter = getFilter(expirationTime);
+        if (filter == null) {
+            synchronized (this) {
+                unfilteredUntil = Math.max(unfilteredUntil, expirationTime);
+            }
+        } else {
+            long h1 = ReplayTable.getKeyLong(digest, 2);
+            long h2 = ReplayTable.getKeyLong(digest, 3) | 1;
+            if (boundedStore != null) {
+                return addBounded(filter, digest, expirationTime, h1, h2);
+            }
+            put(filter, h1, h2);
+        }
+        return exactStore.add(digest, expirationTime);
+    }
+
+    @Override
+    public boolean contains(byte[] digest) {
+        ReplayTable.checkDigest(digest);
+        if (System.currentTimeMillis() <= unfilteredUntil) {
+            return exactStore.contains(digest);
+        }
+        long h1 = ReplayTable.getKeyLong(digest, 2);
+        long h2 = ReplayTable.getKeyLong(digest, 3) | 1;
+        for (Filter filter : filters) {
+            if (mightContain(filter, h1, h2)) {
+                if (filter.overflowed || exactStore.contains(digest)) {
+                    return true;
+                }
+                if (boundedStore == null) {
+                    return false;
+                }
+            }
+        }
+        // Definitely not seen.
+        return false;
+    }
+
+    @Override
+    public int expire(long now) {
+        rotate(now);
+        return exactStore.expire(now);
+    }
+}
@@ -18,7 +18,6 @@ package org.webpki.webapps.fwp;
 
 import java.io.IOException;
 
-import java.sql.Connection;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -197,9 +196,7 @@ public class BuyServlet extends HttpServlet {
             String walletRequest = request.getParameter(WalletCore.WALLET_REQUEST);
             if (walletRequest == null) {
                 // User statistics...
-                try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
-                    DataBaseOperations.updateUserStatistics(userId, false, connection);
-                }           
+                DataBaseOperations.updateUserStatistics(userId, false);
                 resultPage(request, response);
                 return;
             }
@@ -211,9 +208,7 @@ public class BuyServlet extends HttpServlet {
             
             // Lookup virtual cards in the wallet database
             ArrayList<DataBaseOperations.VirtualCard> virtualCards;
-            try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
-                virtualCards = DataBaseOperations.getVirtualCards(userId, connection);
-            }
+            virtualCards = WalletCache.getVirtualCards(userId);
             if (virtualCards.isEmpty()) {
                 response.sendRedirect("walletadmin");
                 return;
@@ -0,0 +1,355 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.webpki.crypto.HashAlgorithms;
+
+/**
+ * In-memory version of the data used by AuthorizeSP.
+ *
+ * Maps SerialNumber to (AccountId, S256KeyHash, UserId, CardHolder) using
+ * primitive open addressing (linear probing) tables which are split into
+ * independently locked segments.  UserIds are stored as 128-bit UUIDs while
+ * AccountIds and CardHolders are stored as UTF-8 in a byte pool per segment,
+ * so there are no per-card objects.
+ *
+ * The index is loaded at startup and updated by the enrollment and delete
+ * operations of this node.  A miss or a mismatch is not authoritative:
+ * callers are supposed to fall back to the database and refresh the entry.
+ * Changes made by other processes (other issuer nodes, bulk imports) are
+ * not seen until an entry expires, so the entry lifetime bounds how long
+ * a deleted or re-enrolled card may still authorize through the index.
+ */
+class CardIndex {
+
+    static final int HASH_LENGTH        = 32;
+
+    static final int SEGMENT_BITS       = 6;
+    static final int SEGMENTS           = 1 << SEGMENT_BITS;
+    static final int INITIAL_CAPACITY   = 1024;  // Per segment, must be a power of two
+    static final int INITIAL_POOL_SIZE  = INITIAL_CAPACITY * 32;
+
+    static class Segment {
+
+        int mask;
+        int size;
+        int[] serialNumbers;  // 0 = free slot
+        byte[] keyHashes;
+        long[] userIdsHigh;
+        long[] userIdsLow;
+        long[] accountIds;    // Pool references (offset << 32 | length)
+        long[] cardHolders;
+        long[] loadTimes;
+
+        byte[] pool;
+        int poolSize;
+        int poolGarbage;      // Bytes of deleted entries
+
+        Segment() {
+            allocate(INITIAL_CAPACITY, INITIAL_POOL_SIZE);
+        }
+
+        void allocate(int capacity, int poolCapacity) {
+            mask = capacity - 1;
+            serialNumbers = new int[capacity];
+            keyHashes = new byte[capacity * HASH_LENGTH];
+            userIdsHigh = new long[capacity];
+            userIdsLow = new long[capacity];
+            accountIds = new long[capacity];
+            cardHolders = new long[capacity];
+            loadTimes = new long[capacity];
+            pool = new byte[poolCapacity];
+            poolSize = 0;
+            poolGarbage = 0;
+        }
+
+        long store(byte[] data, int offset, int length) {
+            if (poolSize + length > pool.length) {
+                pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + length));
+            }
+            System.arraycopy(data, offset, pool, poolSize, length);
+            long reference = (long) poolSize << 32 | length;
+            poolSize += length;
+            return reference;
+        }
+
+        static int offset(long reference) {
+            return (int) (reference >>> 32);
+        }
+
+        static int length(long reference) {
+            return (int) reference;
+        }
+
+        String getString(long reference) {
+            return new String(pool, offset(reference), length(reference), StandardCharsets.UTF_8);
+        }
+
+        boolean matches(long reference, byte[] data) {
+            return Arrays.equals(pool, offset(reference), offset(reference) + length(reference),
+                                 data, 0, data.length);
+        }
+
+        // Returns the slot of the serial number or -1 if not found.
+        int find(int serialNumber, int hash) {
+            int slot = hash & mask;
+            while (serialNumbers[slot] != 0) {
+                if (serialNumbers[slot] == serialNumber) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void insert(int serialNumber,
+                    byte[] keyHashSource,
+                    int keyHashOffset,
+                    long userIdHigh,
+                    long userIdLow,
+                    byte[] stringSource,
+                    long accountId,
+                    long cardHolder,
+                    long loadTime) {
+            int slot = hash(serialNumber) & mask;
+            while (serialNumbers[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            serialNumbers[slot] = serialNumber;
+            System.arraycopy(keyHashSource, keyHashOffset,
+                             keyHashes, slot * HASH_LENGTH, HASH_LENGTH);
+            userIdsHigh[slot] = userIdHigh;
+            userIdsLow[slot] = userIdLow;
+            accountIds[slot] = store(stringSource, offset(accountId), length(accountId));
+            cardHolders[slot] = store(stringSource, offset(cardHolder), length(cardHolder));
+            loadTimes[slot] = loadTime;
+        }
+
+        // Reallocates the tables which also drops the garbage of the pool.
+        void rebuild(int capacity) {
+            int[] oldSerialNumbers = serialNumbers;
+            byte[] oldKeyHashes = keyHashes;
+            long[] oldUserIdsHigh = userIdsHigh;
+            long[] oldUserIdsLow = userIdsLow;
+            long[] oldAccountIds = accountIds;
+            long[] oldCardHolders = cardHolders;
+            long[] oldLoadTimes = loadTimes;
+            byte[] oldPool = pool;
+            int liveBytes = poolSize - poolGarbage;
+            allocate(capacity, Math.max(INITIAL_POOL_SIZE, liveBytes * 2));
+            for (int q = 0; q < oldSerialNumbers.length; q++) {
+                if (oldSerialNumbers[q] != 0) {
+                    insert(oldSerialNumbers[q], oldKeyHashes, q * HASH_LENGTH,
+                           oldUserIdsHigh[q], oldUserIdsLow[q],
+                           oldPool, oldAccountIds[q], oldCardHolders[q],
+                           oldLoadTimes[q]);
+                }
+            }
+        }
+
+        void put(int serialNumber,
+                 byte[] keyHash,
+                 long userIdHigh,
+                 long userIdLow,
+                 byte[] accountId,
+                 byte[] cardHolder,
+                 long loadTime) {
+            int slot = find(serialNumber, hash(serialNumber));
+            if (slot >= 0) {
+                delete(slot);
+            }
+            // Keep the load factor below 0.75.
+            if ((size + 1) * 4L > (mask + 1) * 3L) {
+                rebuild((mask + 1) * 2);
+            } else if (poolGarbage > INITIAL_POOL_SIZE && poolGarbage > poolSize / 2) {
+                rebuild(mask + 1);
+            }
+            // Both strings are passed in a single source buffer.
+            byte[] strings = Arrays.copyOf(accountId, accountId.length + cardHolder.length);
+            System.arraycopy(cardHolder, 0, strings, accountId.length, cardHolder.length);
+            insert(serialNumber, keyHash, 0, userIdHigh, userIdLow, strings,
+                   accountId.length, (long) accountId.length << 32 | cardHolder.length,
+                   loadTime);
+            size++;
+        }
+
+        // Backward shift deletion which keeps probe sequences intact.
+        void delete(int slot) {
+            poolGarbage += length(accountIds[slot]) + length(cardHolders[slot]);
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (serialNumbers[next] != 0) {
+                int home = hash(serialNumbers[next]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    serialNumbers[hole] = serialNumbers[next];
+                    System.arraycopy(keyHashes, next * HASH_LENGTH,
+                                     keyHashes, hole * HASH_LENGTH, HASH_LENGTH);
+                    userIdsHigh[hole] = userIdsHigh[next];
+                    userIdsLow[hole] = userIdsLow[next];
+                    accountIds[hole] = accountIds[next];
+                    cardHolders[hole] = cardHolders[next];
+                    loadTimes[hole] = loadTimes[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            serialNumbers[hole] = 0;
+            size--;
+        }
+    }
+
+    Segment[] segments = new Segment[SEGMENTS];
+
+    long ttl;
+
+    LongAdder hits = new LongAdder();
+    LongAdder misses = new LongAdder();
+    LongAdder expired = new LongAdder();
+
+    /**
+     * Create an empty card index.
+     *
+     * @param ttl Time in milliseconds an entry is trusted after being loaded
+     */
+    CardIndex(long ttl) {
+        this.ttl = ttl;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    // Serial numbers are sequential; spread them over segments and slots.
+    static int hash(int serialNumber) {
+        int hash = serialNumber * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    Segment getSegment(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    /**
+     * Add or replace a card.
+     *
+     * Cards of users whose Id is not a UUID in canonical form are not indexed.
+     */
+    void put(int serialNumber,
+             byte[] keyHash,
+             String accountId,
+             String userId,
+             String cardHolder) {
+        if (serialNumber == 0 || keyHash.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("Invalid card data");
+        }
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(userId);
+        } catch (IllegalArgumentException e) {
+            uuid = null;
+        }
+        if (uuid == null || !uuid.toString().equals(userId)) {
+            // Served by the database.
+            remove(serialNumber);
+            return;
+        }
+        byte[] accountIdBytes = accountId.getBytes(StandardCharsets.UTF_8);
+        byte[] cardHolderBytes = cardHolder.getBytes(StandardCharsets.UTF_8);
+        long now = System.currentTimeMillis();
+        Segment segment = getSegment(hash(serialNumber));
+        synchronized (segment) {
+            segment.put(serialNumber, keyHash,
+                        uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
+                        accountIdBytes, cardHolderBytes, now);
+        }
+    }
+
+    void remove(int serialNumber) {
+        int hash = hash(serialNumber);
+        Segment segment = getSegment(hash);
+        synchronized (segment) {
+            int slot = segment.find(serialNumber, hash);
+            if (slot >= 0) {
+                segment.delete(slot);
+            }
+        }
+    }
+
+    /**
+     * In-memory AuthorizeSP.
+     *
+     * @return Authorized info or <code>null</code> if not found, expired or not matching
+     */
+    DataBaseOperations.AuthorizedInfo authorize(String serialNumber,
+                                                String accountId,
+                                                byte[] rawPublicKey) {
+        int serial;
+        try {
+            serial = Integer.parseInt(serialNumber);
+        } catch (NumberFormatException e) {
+            misses.increment();
+            return null;
+        }
+        byte[] keyHash = HashAlgorithms.SHA256.digest(rawPublicKey);
+        byte[] accountIdBytes = accountId.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(serial);
+        Segment segment = getSegment(hash);
+        synchronized (segment) {
+            int slot = segment.find(serial, hash);
+            if (slot >= 0 && segment.loadTimes[slot] + ttl < System.currentTimeMillis()) {
+                // To be refreshed from the database.
+                expired.increment();
+                return null;
+            }
+            if (slot >= 0 &&
+                segment.matches(segment.accountIds[slot], accountIdBytes) &&
+                Arrays.equals(segment.keyHashes, slot * HASH_LENGTH, (slot + 1) * HASH_LENGTH,
+                              keyHash, 0, HASH_LENGTH)) {
+                hits.increment();
+                return new DataBaseOperations.AuthorizedInfo(
+                        new UUID(segment.userIdsHigh[slot], segment.userIdsLow[slot]).toString(),
+                        segment.getString(segment.cardHolders[slot]));
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "Card index: size=" + size() +
+               ", hits=" + hits.sum() +
+               ", misses=" + misses.sum() +
+               ", expired=" + expired.sum();
+    }
+}
@@ -27,16 +27,26 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import java.util.logging.Logger;
 
-import org.webpki.webutil.DNSReverseLookup;
-
 import org.webpki.crypto.HashAlgorithms;
 
+import org.webpki.fwp.FWPAssertionDecoder;
+
 public class DataBaseOperations {
 
     static Logger logger = Logger.getLogger(DataBaseOperations.class.getName());
+
+    // Card data as used by AuthorizeSP
+    static final String CARD_QUERY =
+            "SELECT PAYMENT_CARDS.SerialNumber, USERS.UserId, USERS.CardHolder, " +
+                   "USERS.S256KeyHash, PAYMENT_CARDS.AccountId " +
+            "FROM USERS INNER JOIN PAYMENT_CARDS ON USERS.UserId = PAYMENT_CARDS.UserId";
     
     static void testConnection() throws SQLException {
         try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) { }
@@ -53,6 +63,9 @@ public class DataBaseOperations {
                                     String clientIpAddress,
                                     Connection connection)
             throws SQLException, IOException, GeneralSecurityException {
+        // Previous cards of the user are deleted by the procedure.
+        CardIndex cardIndex = ApplicationService.cardIndex;
+        int[] previousCards = cardIndex == null ? null : getSerialNumbers(userId, connection);
 /*
         CREATE PROCEDURE InitiateUserAccountSP (IN p_UserId CHAR(36),
                                                 IN p_CardHolder VARCHAR(50),
@@ -73,30 +86,19 @@ public class DataBaseOperations {
             stmt.setString(7, clientIpAddress);
             stmt.execute();
         }
+        if (cardIndex != null) {
+            for (int serialNumber : previousCards) {
+                cardIndex.remove(serialNumber);
+            }
+            loadCardIndex(cardIndex, userId, connection);
+        }
+        WalletCache.invalidate(userId);
 
         // Potentially very slow operation, perform it in the background!
-        new Thread(new Runnable() {
-
-            @Override
-            public void run() {
-                try {
-                    String host = DNSReverseLookup.getHostName(clientIpAddress);
-                    if (host.equals(clientIpAddress)) {
-                        return;
-                    }
-                    try (PreparedStatement stmt = 
-                            ApplicationService.jdbcDataSource.getConnection().prepareStatement(
-                                "UPDATE USERS SET ClientHost = ? WHERE UserID = ?;");) {
-                        stmt.setString(1, host);
-                        stmt.setString(2, userId);
-                        stmt.executeUpdate();
-                    }
-                } catch (SQLException | IOException | InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-           
-        }).start();
+        HostNameResolver hostNameResolver = ApplicationService.hostNameResolver;
+        if (hostNameResolver != null) {
+            hostNameResolver.resolve(userId, clientIpAddress);
+        }
     }
     
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -104,6 +106,8 @@ public class DataBaseOperations {
     ////////////////////////////////////////////////////////////////////////////////////////////////
     static void deletePaymentCards(String userId,
                                    Connection connection) throws SQLException {
+        CardIndex cardIndex = ApplicationService.cardIndex;
+        int[] deletedCards = cardIndex == null ? null : getSerialNumbers(userId, connection);
 /*
         CREATE PROCEDURE DeletePaymentCardsSP (IN p_UserId CHAR(36))
 */
@@ -111,6 +115,67 @@ public class DataBaseOperations {
             stmt.setString(1, userId);
             stmt.execute();
         }
+        if (cardIndex != null) {
+            for (int serialNumber : deletedCards) {
+                cardIndex.remove(serialNumber);
+            }
+        }
+        WalletCache.invalidate(userId);
+    }
+
+    static int[] getSerialNumbers(String userId, Connection connection) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT SerialNumber FROM PAYMENT_CARDS WHERE UserId = ?;");) {
+            stmt.setString(1, userId);
+            try (ResultSet rs = stmt.executeQuery();) {
+                int[] serialNumbers = new int[8];
+                int count = 0;
+                while (rs.next()) {
+                    if (count == serialNumbers.length) {
+                        serialNumbers = Arrays.copyOf(serialNumbers, count * 2);
+                    }
+                    serialNumbers[count++] = rs.getInt(1);
+                }
+                return Arrays.copyOf(serialNumbers, count);
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Card index loading.  The full load streams rows rather than buffering the result set       //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    static int loadCardIndex(CardIndex cardIndex, Connection connection) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(CARD_QUERY + ";",
+                                                                  ResultSet.TYPE_FORWARD_ONLY,
+                                                                  ResultSet.CONCUR_READ_ONLY);) {
+            // Row by row streaming in MySQL Connector/J
+            stmt.setFetchSize(Integer.MIN_VALUE);
+            return loadCardIndex(cardIndex, stmt);
+        }
+    }
+
+    static int loadCardIndex(CardIndex cardIndex, String userId, Connection connection)
+            throws SQLException {
+        try (PreparedStatement stmt = 
+                connection.prepareStatement(CARD_QUERY + " WHERE USERS.UserId = ?;");) {
+            stmt.setString(1, userId);
+            return loadCardIndex(cardIndex, stmt);
+        }
+    }
+
+    static int loadCardIndex(CardIndex cardIndex, PreparedStatement stmt) throws SQLException {
+        int count = 0;
+        try (ResultSet rs = stmt.executeQuery();) {
+            while (rs.next()) {
+                cardIndex.put(rs.getInt(1),
+                              rs.getBytes(4),
+                              rs.getString(5),
+                              rs.getString(2),
+                              rs.getString(3));
+                count++;
+            }
+        }
+        return count;
     }
 
     static class CoreClientData {
@@ -240,6 +305,20 @@ public class DataBaseOperations {
         }
     }
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Cheap version of getVirtualCards(...).isEmpty()                                            //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    static int getVirtualCardCount(String userId, Connection connection) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT COUNT(*) FROM PAYMENT_CARDS WHERE UserId = ?;");) {
+            stmt.setString(1, userId);
+            try (ResultSet rs = stmt.executeQuery();) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // FIDO Web Pay: Verify that the account related data matches                                 //
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -256,16 +335,29 @@ public class DataBaseOperations {
                                       IN p_AccountId VARCHAR(30),
                                       IN p_S256KeyHash BINARY(32))
 */
+        int serial = Integer.valueOf(serialNumber);
+        byte[] s256KeyHash = HashAlgorithms.SHA256.digest(rawPublicKey);
+        CardIndex cardIndex = ApplicationService.cardIndex;
         try (CallableStatement stmt = 
                 connection.prepareCall("{call AuthorizeSP(?,?,?,?,?,?)}");) {
             stmt.registerOutParameter(1, java.sql.Types.INTEGER);
             stmt.registerOutParameter(2, java.sql.Types.CHAR);
             stmt.registerOutParameter(3, java.sql.Types.VARCHAR);
-            stmt.setInt(4, Integer.valueOf(serialNumber));
+            stmt.setInt(4, serial);
             stmt.setString(5, accountId);
-            stmt.setBytes(6, HashAlgorithms.SHA256.digest(rawPublicKey));
+            stmt.setBytes(6, s256KeyHash);
             stmt.execute();
-            switch (stmt.getInt(1)) {
+            int status = stmt.getInt(1);
+            // Refresh the index with the current state of the card.
+            if (cardIndex != null) {
+                if (status == 0) {
+                    cardIndex.put(serial, s256KeyHash, accountId,
+                                  stmt.getString(2), stmt.getString(3));
+                } else {
+                    cardIndex.remove(serial);
+                }
+            }
+            switch (status) {
                 case 0:
                     return new AuthorizedInfo(stmt.getString(2), stmt.getString(3));
                 case 1:
@@ -279,16 +371,117 @@ public class DataBaseOperations {
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
-    // Update user activity data                                                                  //
+    // AuthorizeSP using the card index.  Returns null if the database must be consulted          //
     ////////////////////////////////////////////////////////////////////////////////////////////////
-    public static void updateUserStatistics(String userId, boolean login, Connection connection) 
-            throws SQLException {
-        String element = login ? "WebAuthn" : "BasicBuy";
-        try (PreparedStatement stmt = 
-                ApplicationService.jdbcDataSource.getConnection().prepareStatement(
-                    "UPDATE USERS SET " + element + " = " + element + " + 1 WHERE UserID = ?;");) {
-            stmt.setString(1, userId);
-            stmt.executeUpdate();
+    static AuthorizedInfo authorize(String serialNumber,
+                                    String accountId,
+                                    byte[] rawPublicKey) {
+        CardIndex cardIndex = ApplicationService.cardIndex;
+        if (cardIndex == null) {
+            return null;
+        }
+        AuthorizedInfo authorizedInfo = cardIndex.authorize(serialNumber, 
+                                                            accountId,
+                                                            rawPublicKey);
+        if (authorizedInfo != null) {
+            UserStatistics.INSTANCE.increment(UserStatistics.Counter.FWP_STEPS,
+                                              authorizedInfo.userId);
         }
+        return authorizedInfo;
+    }
+
+    static class CardRecord {
+        AuthorizedInfo authorizedInfo;
+        byte[] s256KeyHash;
+        String accountId;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Batched version of AuthorizeSP.  Returns null for assertions that did not authorize        //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    static AuthorizedInfo[] authorize(List<FWPAssertionDecoder> fwpAssertions,
+                                      Connection connection) throws SQLException {
+        AuthorizedInfo[] authorizedInfos = new AuthorizedInfo[fwpAssertions.size()];
+        HashMap<Integer, CardRecord> cards = new HashMap<>();
+        for (int q = 0; q < authorizedInfos.length; q++) {
+            FWPAssertionDecoder fwpAssertion = fwpAssertions.get(q);
+            authorizedInfos[q] = authorize(fwpAssertion.getSerialNumber(),
+                                           fwpAssertion.getAccountId(),
+                                           fwpAssertion.getPublicKey());
+            if (authorizedInfos[q] != null) {
+                continue;
+            }
+            try {
+                cards.put(Integer.valueOf(fwpAssertion.getSerialNumber()), null);
+            } catch (NumberFormatException e) {
+                // Cannot authorize.
+            }
+        }
+        if (cards.isEmpty()) {
+            return authorizedInfos;
+        }
+        StringBuilder sql = new StringBuilder(CARD_QUERY)
+            .append(" WHERE PAYMENT_CARDS.SerialNumber IN (?");
+        for (int q = 1; q < cards.size(); q++) {
+            sql.append(",?");
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(sql.append(");").toString());) {
+            int index = 1;
+            for (Integer serialNumber : cards.keySet()) {
+                stmt.setInt(index++, serialNumber);
+            }
+            try (ResultSet rs = stmt.executeQuery();) {
+                while (rs.next()) {
+                    CardRecord card = new CardRecord();
+                    card.authorizedInfo = new AuthorizedInfo(rs.getString(2), rs.getString(3));
+                    card.s256KeyHash = rs.getBytes(4);
+                    card.accountId = rs.getString(5);
+                    cards.put(rs.getInt(1), card);
+                }
+            }
+        }
+        // Refresh the index with the current state of the cards.
+        CardIndex cardIndex = ApplicationService.cardIndex;
+        if (cardIndex != null) {
+            for (Map.Entry<Integer, CardRecord> entry : cards.entrySet()) {
+                CardRecord card = entry.getValue();
+                if (card == null) {
+                    cardIndex.remove(entry.getKey());
+                } else {
+                    cardIndex.put(entry.getKey(), card.s256KeyHash, card.accountId,
+                                  card.authorizedInfo.userId, card.authorizedInfo.cardHolder);
+                }
+            }
+        }
+        // Same checks and statistics as AuthorizeSP.
+        for (int q = 0; q < authorizedInfos.length; q++) {
+            FWPAssertionDecoder fwpAssertion = fwpAssertions.get(q);
+            CardRecord card;
+            try {
+                card = cards.get(Integer.valueOf(fwpAssertion.getSerialNumber()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (authorizedInfos[q] != null ||
+                card == null || 
+                !card.accountId.equals(fwpAssertion.getAccountId()) ||
+                !Arrays.equals(card.s256KeyHash, 
+                               HashAlgorithms.SHA256.digest(fwpAssertion.getPublicKey()))) {
+                continue;
+            }
+            authorizedInfos[q] = card.authorizedInfo;
+            UserStatistics.INSTANCE.increment(UserStatistics.Counter.FWP_STEPS,
+                                              card.authorizedInfo.userId);
+        }
+        return authorizedInfos;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Update user activity data                                                                  //
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Collected in memory and written by the UserStatistics flusher.
+    public static void updateUserStatistics(String userId, boolean login) {
+        UserStatistics.INSTANCE.increment(login ?
+                UserStatistics.Counter.WEBAUTHN : UserStatistics.Counter.BASIC_BUY, userId);
     }
 }
@@ -20,8 +20,6 @@ import java.io.IOException;
 
 import java.net.URLEncoder;
 
-import java.sql.Connection;
-
 import java.util.ArrayList;
 
 import java.util.logging.Logger;
@@ -188,9 +186,7 @@ public class EnrollServlet extends HttpServlet {
             String userId = WalletCore.getWalletCookie(request);
             
             ArrayList<DataBaseOperations.VirtualCard> virtualCards;
-            try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
-                virtualCards = DataBaseOperations.getVirtualCards(userId, connection);
-            }
+            virtualCards = WalletCache.getVirtualCards(userId);
             StringBuilder html = new StringBuilder(
                 "<div class='header'>Enrollment Succeeded</div>" +
     
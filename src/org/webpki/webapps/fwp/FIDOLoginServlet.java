@@ -21,8 +21,6 @@ import java.io.PrintWriter;
 
 import java.security.PublicKey;
 
-import java.sql.Connection;
-
 import java.util.Arrays;
 
 import java.util.logging.Level;
@@ -91,16 +89,14 @@ public class FIDOLoginServlet extends HttpServlet {
                 session.removeAttribute(WalletCore.ATTR_LOGGED_IN_USER);
 
                 // We need to specify which FIDO key to use.                 
-                try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
-                    // Get FIDO credentialId.
-                    DataBaseOperations.CoreClientData coreClientData = 
-                            DataBaseOperations.getCoreClientData(userId, connection);
-                    if (coreClientData == null) {
-                        WalletCore.softError(response, resultJson, "User is missing, you need to reenroll");
-                        return;
-                    }
-                    resultJson.setBinary(FWPCrypto.CREDENTIAL_ID, coreClientData.credentialId);
+                // Get FIDO credentialId.
+                DataBaseOperations.CoreClientData coreClientData = 
+                        WalletCache.getCoreClientData(userId);
+                if (coreClientData == null) {
+                    WalletCore.softError(response, resultJson, "User is missing, you need to reenroll");
+                    return;
                 }
+                resultJson.setBinary(FWPCrypto.CREDENTIAL_ID, coreClientData.credentialId);
  
                 // - Provide FIDO challenge data
                 byte[] challenge = CryptoRandom.generateRandom(32);
@@ -138,25 +134,21 @@ public class FIDOLoginServlet extends HttpServlet {
                 byte[] signature = requestJson.getBinary(FWPCrypto.SIGNATURE);
                 
                 // Now, we have all client data needed to verify the signature.
-                try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
-                    // Get the anticipated public key
-                    DataBaseOperations.CoreClientData coreClientData = 
-                            DataBaseOperations.getCoreClientData(userId, connection);
-                    PublicKey publicKey = 
-                            CBORPublicKey.convert(CBORDecoder.decode(coreClientData.cosePublicKey));
-                    FWPCrypto.validateFidoSignature(
-                            FWPCrypto.getWebPkiAlgorithm(
-                                    FWPCrypto.publicKey2CoseSignatureAlgorithm(publicKey)), 
-                            publicKey, 
-                            authenticatorData, 
-                            clientDataJSON, 
-                            signature);
-                }
+                // Get the anticipated public key
+                DataBaseOperations.CoreClientData coreClientData = 
+                        WalletCache.getCoreClientData(userId);
+                PublicKey publicKey = 
+                        CBORPublicKey.convert(CBORDecoder.decode(coreClientData.cosePublicKey));
+                FWPCrypto.validateFidoSignature(
+                        FWPCrypto.getWebPkiAlgorithm(
+                                FWPCrypto.publicKey2CoseSignatureAlgorithm(publicKey)), 
+                        publicKey, 
+                        authenticatorData, 
+                        clientDataJSON, 
+                        signature);
                 
                 // User statistics...
-                try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
-                    DataBaseOperations.updateUserStatistics(userId, true, connection);
-                }
+                DataBaseOperations.updateUserStatistics(userId, true);
                 // We did it, set logged-in attribute.
                 // Note that the session cookie is returned and set via the fetch() operation.
                 session.setAttribute(WalletCore.ATTR_LOGGED_IN_USER, userId);
@@ -0,0 +1,278 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.io.IOException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.webpki.webutil.DNSReverseLookup;
+
+/**
+ * Background reverse look-up of enrollment client addresses.
+ *
+ * Look-ups run on a fixed number of threads with a bounded queue; when
+ * saturated, new look-ups are dropped since the host name is informational
+ * only.  Results (including failures) are cached per IP address, concurrent
+ * look-ups of the same address share a single query, and the resulting
+ * ClientHost updates are written by batched updates.
+ */
+class HostNameResolver {
+
+    static Logger logger = Logger.getLogger(HostNameResolver.class.getName());
+
+    static final long POSITIVE_TTL      = 3600000;
+    static final long NEGATIVE_TTL      = 300000;
+    static final int MAX_CACHED         = 10000;
+    static final int QUEUE_SIZE         = 1000;
+    static final long FLUSH_INTERVAL    = 5000;
+
+    /**
+     * Resolver to use.
+     *
+     * Returns the host name or the IP address itself if there is no name.
+     */
+    interface Resolver {
+        String getHostName(String ipAddress) throws IOException, InterruptedException;
+    }
+
+    static class Entry {
+        CompletableFuture<String> hostName = new CompletableFuture<>();  // null = no name
+        long expirationTime;  // Valid when the host name is done
+    }
+
+    Resolver resolver;
+    ThreadPoolExecutor executor;
+
+    ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // UserId to ClientHost
+    ConcurrentHashMap<String, String> pendingUpdates = new ConcurrentHashMap<>();
+
+    Thread flusher;
+
+    LongAdder hits = new LongAdder();
+    LongAdder lookups = new LongAdder();
+    LongAdder failures = new LongAdder();
+    LongAdder rejected = new LongAdder();
+
+    /**
+     * Create a host name resolver.
+     *
+     * @param resolver Actual resolver, <code>DNSReverseLookup</code> by default
+     * @param threads Maximum number of concurrent look-ups
+     */
+    HostNameResolver(Resolver resolver, int threads) {
+        this.resolver = resolver;
+        executor = new ThreadPoolExecutor(threads,
+                                          threads,
+                                          0,
+                                          TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<>(QUEUE_SIZE),
+                                          (runnable) -> {
+            Thread thread = new Thread(runnable, "HostNameResolver lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    HostNameResolver(int threads) {
+        this(DNSReverseLookup::getHostName, threads);
+    }
+
+    /**
+     * Schedule setting ClientHost of a user.
+     */
+    void resolve(String userId, String ipAddress) {
+        lookup(ipAddress).thenAccept((hostName) -> {
+            if (hostName != null) {
+                pendingUpdates.put(userId, hostName);
+            }
+        });
+    }
+
+    CompletableFuture<String> lookup(String ipAddress) {
+        while (true) {
+            Entry entry = entries.get(ipAddress);
+            if (entry == null) {
+                Entry newEntry = new Entry();
+                entry = entries.putIfAbsent(ipAddress, newEntry);
+                if (entry == null) {
+                    submit(ipAddress, newEntry);
+                    return newEntry.hostName;
+                }
+            }
+            if (entry.hostName.isDone() && entry.expirationTime < System.currentTimeMillis()) {
+                entries.remove(ipAddress, entry);
+                continue;
+            }
+            hits.increment();
+            return entry.hostName;
+        }
+    }
+
+    void submit(String ipAddress, Entry entry) {
+        try {
+            executor.execute(() -> {
+                lookups.increment();
+                String hostName = null;
+                try {
+                    hostName = resolver.getHostName(ipAddress);
+                    if (hostName == null || hostName.equals(ipAddress)) {
+                        hostName = null;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failures.increment();
+                } catch (InterruptedException e) {
+                    // Shutting down, do not cache.
+                    entries.remove(ipAddress, entry);
+                    entry.hostName.complete(null);
+                    return;
+                }
+                entry.expirationTime = System.currentTimeMillis() +
+                        (hostName == null ? NEGATIVE_TTL : POSITIVE_TTL);
+                entry.hostName.complete(hostName);
+                if (entries.size() > MAX_CACHED) {
+                    evict();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Saturated or shut down: skip, the next enrollment may try again.
+            rejected.increment();
+            entries.remove(ipAddress, entry);
+            entry.hostName.complete(null);
+        }
+    }
+
+    // Removes expired entries, then arbitrary completed ones until within bounds.
+    void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.hostName.isDone() && entry.expirationTime < now) {
+                iterator.remove();
+            }
+        }
+        iterator = entries.entrySet().iterator();
+        while (entries.size() > MAX_CACHED && iterator.hasNext()) {
+            if (iterator.next().getValue().hostName.isDone()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Write resolved host names to the database.
+     *
+     * @return Number of updated users
+     */
+    synchronized int flush() throws SQLException {
+        if (pendingUpdates.isEmpty()) {
+            return 0;
+        }
+        HashMap<String, String> batched = new HashMap<>();
+        try (Connection connection = ApplicationService.jdbcDataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(
+                     "UPDATE USERS SET ClientHost = ? WHERE UserID = ?;");) {
+            for (String userId : pendingUpdates.keySet()) {
+                String hostName = pendingUpdates.remove(userId);
+                if (hostName != null) {
+                    stmt.setString(1, hostName);
+                    stmt.setString(2, userId);
+                    stmt.addBatch();
+                    batched.put(userId, hostName);
+                }
+            }
+            if (!batched.isEmpty()) {
+                stmt.executeBatch();
+            }
+        } catch (SQLException e) {
+            // Retry with the next flush unless resolved again meanwhile.
+            for (Map.Entry<String, String> update : batched.entrySet()) {
+                pendingUpdates.putIfAbsent(update.getKey(), update.getValue());
+            }
+            throw e;
+        }
+        return batched.size();
+    }
+
+    void start() {
+        flusher = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(FLUSH_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        flush();
+                    } catch (SQLException e) {
+                        logger.log(Level.WARNING, "ClientHost flush failed", e);
+                    }
+                }
+            }
+
+        }, "HostNameResolver flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Stops look-ups and writes what has been resolved.
+    void shutdown() {
+        executor.shutdownNow();
+        if (flusher == null) {
+            return;
+        }
+        flusher.interrupt();
+        try {
+            flush();
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Final ClientHost flush failed", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Host name resolver: cached=" + entries.size() +
+               ", hits=" + hits.sum() +
+               ", lookups=" + lookups.sum() +
+               ", failures=" + failures.sum() +
+               ", rejected=" + rejected.sum();
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import java.sql.Connection;
+
+import java.util.ArrayList;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.webpki.cbor.CBORDecoder;
+import org.webpki.cbor.CBORInt;
+import org.webpki.cbor.CBORMap;
+import org.webpki.cbor.CBORObject;
+
+import org.webpki.fwp.FWPAssertionDecoder;
+import org.webpki.fwp.FWPRejection;
+import org.webpki.fwp.IssuerRequest;
+
+/**
+ * Batch version of the machine-to-machine Issuer endpoint.
+ *
+ * The request is a CBOR sequence of maps {0: correlation Id, 1: IssuerRequest}.
+ * Items are verified concurrently on the issuer crypto stage (or the issuer
+ * executor), while account look-ups of verified items are coalesced into
+ * batched queries.  The response is a CBOR sequence holding one
+ * {@link IssuerCBORServlet} result per item, extended with the correlation Id
+ * (unless the item is too malformed to have one), streamed in completion order.
+ */
+public class IssuerBatchServlet extends HttpServlet {
+
+    static Logger logger = Logger.getLogger(IssuerBatchServlet.class.getName());
+
+    private static final long serialVersionUID = 1L;
+
+    static final String CBOR_SEQUENCE_CONTENT_TYPE = "application/cbor-seq";
+
+    static final int MAX_REQUEST_SIZE          = 4194304;
+    static final int MAX_ITEMS                 = 1000;
+
+    // Verifications in progress per batch
+    static final int VERIFICATION_WINDOW       = 64;
+
+    // Verified items per database look-up
+    static final int DATABASE_BATCH_SIZE       = 32;
+
+    static final CBORInt CBOR_CORRELATION_ID   = new CBORInt(0);
+    static final CBORInt CBOR_ISSUER_REQUEST   = new CBORInt(1);
+
+    // Unexpected error, the item may be retried
+    static final int STATUS_FAILED             = 2;
+
+    static class BatchItem {
+
+        CBORObject correlationId;
+        IssuerRequest decodedIssuerRequest;  // null if malformed
+
+        IssuerServlet.IssuerTransaction transaction;
+        CBORMap result;  // Set when done
+
+        // Malformed items are rejected without affecting the rest of the batch.
+        BatchItem(CBORObject cborItem) {
+            try {
+                CBORMap item = cborItem.getMap();
+                correlationId = item.get(CBOR_CORRELATION_ID);
+                decodedIssuerRequest = new IssuerRequest(item.get(CBOR_ISSUER_REQUEST));
+                item.checkForUnread();
+            } catch (Exception e) {
+                result = IssuerCBORServlet.rejected(
+                        FWPRejection.get(FWPRejection.Code.MALFORMED_REQUEST));
+            }
+        }
+
+        // Decryption, claims, signature and in-memory checks.
+        void verify() {
+            try {
+                transaction = IssuerCBORServlet.createTransaction(decodedIssuerRequest);
+                FWPRejection rejection = ApplicationService.authorizationPolicy.evaluate(
+                        transaction, AuthorizationRule.Cost.CLAIMS, AuthorizationRule.Cost.MEMORY);
+                if (rejection != null) {
+                    result = IssuerCBORServlet.rejected(rejection);
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        // Database and replay checks.
+        void authorize() {
+            try {
+                FWPRejection rejection = ApplicationService.authorizationPolicy.evaluate(
+                        transaction, AuthorizationRule.Cost.DATABASE, AuthorizationRule.Cost.COMMIT);
+                if (rejection == null) {
+                    result = IssuerCBORServlet.authorized(
+                            IssuerServlet.commitTransaction(transaction));
+                } else {
+                    result = IssuerCBORServlet.rejected(rejection);
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        void fail(Exception e) {
+            if (e instanceof FWPRejection) {
+                result = IssuerCBORServlet.rejected((FWPRejection) e);
+            } else {
+                logger.log(Level.SEVERE, "Batch item failed", e);
+                result = failed();
+            }
+        }
+
+        static CBORMap failed() {
+            return new CBORMap().set(IssuerCBORServlet.CBOR_STATUS, new CBORInt(STATUS_FAILED));
+        }
+    }
+
+    static ArrayList<BatchItem> decodeRequest(HttpServletRequest request) throws IOException {
+        String contentType = request.getContentType();
+        if (contentType == null ||
+            !contentType.startsWith(CBOR_SEQUENCE_CONTENT_TYPE) ||
+            request.getContentLength() > MAX_REQUEST_SIZE) {
+            throw new IOException("Unsupported batch");
+        }
+        byte[] cborSequence = request.getInputStream().readNBytes(MAX_REQUEST_SIZE + 1);
+        if (cborSequence.length > MAX_REQUEST_SIZE) {
+            throw new IOException("Batch too large");
+        }
+        CBORDecoder decoder = new CBORDecoder(new ByteArrayInputStream(cborSequence),
+                                              CBORDecoder.SEQUENCE_MODE,
+                                              cborSequence.length);
+        ArrayList<BatchItem> items = new ArrayList<>();
+        CBORObject cborItem;
+        while ((cborItem = decoder.decodeWithOptions()) != null) {
+            if (items.size() == MAX_ITEMS) {
+                throw new IOException("Too many items");
+            }
+            items.add(new BatchItem(cborItem));
+        }
+        return items;
+    }
+
+    // Verification on the crypto stage, the executor, or the caller as fallback.
+    static void submit(BatchItem item, LinkedBlockingQueue<BatchItem> verified) {
+        Runnable task = () -> {
+            boolean completed = false;
+            try {
+                item.verify();
+                completed = true;
+            } finally {
+                // The batch waits for every submitted item.
+                if (!completed) {
+                    item.result = BatchItem.failed();
+                }
+                verified.add(item);
+            }
+        };
+        IssuerPipeline pipeline = ApplicationService.issuerPipeline;
+        ExecutorService executor = ApplicationService.issuerExecutor;
+        try {
+            if (pipeline != null) {
+                pipeline.cryptoStage.submit(task);
+            } else if (executor != null) {
+                executor.execute(task);
+            } else {
+                task.run();
+            }
+        } catch (RejectedExecutionException e) {
+            // Saturated: verify in this thread which also throttles the batch.
+            task.run();
+        }
+    }
+
+    // One account look-up for all pending items.
+    static void authorize(ArrayList<BatchItem> pending, ServletOutputStream output)
+            throws IOException {
+        ArrayList<FWPAssertionDecoder> fwpAssertions = new ArrayList<>();
+        for (BatchItem item : pending) {
+            fwpAssertions.add(item.transaction.fwpAssertion);
+        }
+        try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
+            DataBaseOperations.AuthorizedInfo[] authorizedInfos =
+                    DataBaseOperations.authorize(fwpAssertions, connection);
+            for (int q = 0; q < authorizedInfos.length; q++) {
+                pending.get(q).transaction.authorizedInfo = authorizedInfos[q];
+            }
+        } catch (Exception e) {
+            // Items are looked up one by one instead.
+            logger.log(Level.WARNING, "Batched account look-up failed", e);
+        }
+        // Items that did not authorize get their specific error from the standard rule.
+        for (BatchItem item : pending) {
+            item.authorize();
+            write(output, item);
+        }
+        pending.clear();
+    }
+
+    static void write(ServletOutputStream output, BatchItem item) throws IOException {
+        // Items without a readable correlation Id are reported without one.
+        if (item.correlationId != null) {
+            item.result.set(CBOR_CORRELATION_ID, item.correlationId);
+        }
+        output.write(item.result.encode());
+    }
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        ArrayList<BatchItem> items;
+        try {
+            items = decodeRequest(request);
+        } catch (Exception e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        response.setContentType(CBOR_SEQUENCE_CONTENT_TYPE);
+        response.setHeader(WalletCore.HTTP_PRAGMA, "No-Cache");
+        response.setDateHeader(WalletCore.HTTP_EXPIRES, 0);
+        ServletOutputStream output = response.getOutputStream();
+        LinkedBlockingQueue<BatchItem> verified = new LinkedBlockingQueue<>();
+        ArrayList<BatchItem> pending = new ArrayList<>();
+        int next = 0;
+        int outstanding = 0;
+        while (true) {
+            while (outstanding < VERIFICATION_WINDOW && next < items.size()) {
+                BatchItem item = items.get(next++);
+                if (item.result == null) {
+                    submit(item, verified);
+                    outstanding++;
+                } else {
+                    write(output, item);
+                }
+            }
+            if (outstanding == 0) {
+                break;
+            }
+            BatchItem item = verified.poll();
+            if (item == null) {
+                // Let the client see what is done before waiting.
+                output.flush();
+                try {
+                    item = verified.take();
+                } catch (InterruptedException e) {
+                    throw new ServletException(e);
+                }
+            }
+            outstanding--;
+            if (item.result == null) {
+                pending.add(item);
+                if (pending.size() == DATABASE_BATCH_SIZE) {
+                    authorize(pending, output);
+                }
+            } else {
+                write(output, item);
+            }
+        }
+        if (!pending.isEmpty()) {
+            authorize(pending, output);
+        }
+        output.flush();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.io.IOException;
+
+import java.security.GeneralSecurityException;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.webpki.cbor.CBORDecoder;
+import org.webpki.cbor.CBORInt;
+import org.webpki.cbor.CBORMap;
+import org.webpki.cbor.CBORString;
+
+import org.webpki.fwp.FWPRejection;
+import org.webpki.fwp.IssuerRequest;
+
+/**
+ * Machine-to-machine version of the Issuer endpoint.
+ *
+ * The request is an <code>IssuerRequest</code> in deterministic CBOR with
+ * the ESAD as raw bytes.  The response is a CBOR map holding a status and
+ * either a transaction Id or a rejection code.  Responses always carry a
+ * Content-Length so that PSPs can keep their connections alive.
+ */
+public class IssuerCBORServlet extends HttpServlet {
+
+    static Logger logger = Logger.getLogger(IssuerCBORServlet.class.getName());
+
+    private static final long serialVersionUID = 1L;
+
+    static final int MAX_REQUEST_SIZE        = 65536;
+
+    // Response map
+    static final CBORInt CBOR_STATUS         = new CBORInt(1);
+    static final CBORInt CBOR_TRANSACTION_ID = new CBORInt(2);
+    static final CBORInt CBOR_REASON         = new CBORInt(3);
+
+    static final int STATUS_AUTHORIZED       = 0;
+    static final int STATUS_REJECTED         = 1;
+
+    static IssuerRequest decodeRequest(HttpServletRequest request) throws IOException {
+        String contentType = request.getContentType();
+        if (contentType == null || 
+            !contentType.startsWith(WalletCore.CBOR_CONTENT_TYPE) ||
+            request.getContentLength() > MAX_REQUEST_SIZE) {
+            throw FWPRejection.get(FWPRejection.Code.MALFORMED_REQUEST);
+        }
+        // Chunked requests have no declared length.
+        byte[] cborIssuerRequest = request.getInputStream().readNBytes(MAX_REQUEST_SIZE + 1);
+        if (cborIssuerRequest.length > MAX_REQUEST_SIZE) {
+            throw FWPRejection.get(FWPRejection.Code.MALFORMED_REQUEST);
+        }
+        try {
+            // The decoder only accepts deterministically encoded CBOR.
+            return new IssuerRequest(CBORDecoder.decode(cborIssuerRequest));
+        } catch (Exception e) {
+            throw FWPRejection.get(FWPRejection.Code.MALFORMED_REQUEST);
+        }
+    }
+
+    /**
+     * Decrypt and decode the authorization of a request.
+     *
+     * Tampered ESAD objects and undecodable SAD objects are the fault of
+     * the client and are therefore rejected as malformed requests.
+     */
+    static IssuerServlet.IssuerTransaction createTransaction(IssuerRequest decodedIssuerRequest)
+            throws IOException {
+        try {
+            return IssuerServlet.createTransaction(null, decodedIssuerRequest);
+        } catch (FWPRejection e) {
+            throw e;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            throw FWPRejection.get(FWPRejection.Code.MALFORMED_REQUEST);
+        }
+    }
+
+    static CBORMap authorized(long transactionId) {
+        return new CBORMap().set(CBOR_STATUS, new CBORInt(STATUS_AUTHORIZED))
+                            .set(CBOR_TRANSACTION_ID, new CBORInt(transactionId));
+    }
+
+    static CBORMap rejected(FWPRejection rejection) {
+        return new CBORMap().set(CBOR_STATUS, new CBORInt(STATUS_REJECTED))
+                            .set(CBOR_REASON, new CBORString(rejection.getCode().toString()));
+    }
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        CBORMap result;
+        try {
+            IssuerServlet.IssuerTransaction transaction =
+                    createTransaction(decodeRequest(request));
+            FWPRejection rejection = ApplicationService.authorizationPolicy.evaluate(
+                    transaction, AuthorizationRule.Cost.CLAIMS, AuthorizationRule.Cost.COMMIT);
+            result = rejection == null ?
+                authorized(IssuerServlet.commitTransaction(transaction)) : rejected(rejection);
+        } catch (FWPRejection e) {
+            result = rejected(e);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Issuer request failed", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        WalletCore.returnCBOR(response, result);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.logging.Logger;
+
+/**
+ * Staged processing of issuer requests.
+ *
+ * The CPU-bound "crypto" stage decrypts and validates requests, while
+ * the I/O-bound "database" stage performs the account look-up, the replay
+ * check and the response.  Each stage has its own thread pool and bounded
+ * queue which makes it possible sizing them independently.
+ *
+ * A saturated crypto stage rejects new requests immediately.  A saturated
+ * database stage makes crypto threads wait for a limited time, which in turn
+ * fills the crypto queue.  Rejected requests are answered by HTTP 503.
+ */
+class IssuerPipeline {
+
+    static final long HANDOVER_TIMEOUT = 1000;
+    static final long METRICS_INTERVAL = 60000;
+
+    static Logger logger = Logger.getLogger(IssuerPipeline.class.getName());
+
+    /**
+     * Thread pool with a bounded queue and metrics.
+     */
+    static class Stage {
+
+        String name;
+        ThreadPoolExecutor executor;
+
+        LongAdder completed = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        LongAdder queueNanos = new LongAdder();
+        LongAdder serviceNanos = new LongAdder();
+        LongAccumulator maxQueueDepth = new LongAccumulator(Math::max, 0);
+
+        Stage(String name, int threads, int queueSize, long handoverTimeout) {
+            this.name = name;
+            executor = new ThreadPoolExecutor(threads,
+                                              threads,
+                                              0,
+                                              TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<>(queueSize),
+                                              (runnable) -> {
+                Thread thread = new Thread(runnable, "Issuer " + name + " stage");
+                thread.setDaemon(true);
+                return thread;
+            }, (runnable, executor) -> {
+                try {
+                    if (handoverTimeout > 0 && !executor.isShutdown() &&
+                        executor.getQueue().offer(runnable,
+                                                  handoverTimeout,
+                                                  TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                rejected.increment();
+                throw new RejectedExecutionException("Issuer " + name + " stage saturated");
+            });
+        }
+
+        void submit(Runnable task) {
+            long queued = System.nanoTime();
+            executor.execute(() -> {
+                long started = System.nanoTime();
+                queueNanos.add(started - queued);
+                try {
+                    task.run();
+                } finally {
+                    serviceNanos.add(System.nanoTime() - started);
+                    completed.increment();
+                }
+            });
+            maxQueueDepth.accumulate(executor.getQueue().size());
+        }
+
+        int getQueueDepth() {
+            return executor.getQueue().size();
+        }
+
+        int getActiveThreads() {
+            return executor.getActiveCount();
+        }
+
+        @Override
+        public String toString() {
+            long count = Math.max(completed.sum(), 1);
+            return String.format("%s: completed=%d, rejected=%d, active=%d, queue=%d" +
+                                   " (max %d), avg queue=%.2fms, avg service=%.2fms",
+                                 name,
+                                 completed.sum(),
+                                 rejected.sum(),
+                                 getActiveThreads(),
+                                 getQueueDepth(),
+                                 maxQueueDepth.get(),
+                                 queueNanos.sum() / (count * 1e6),
+                                 serviceNanos.sum() / (count * 1e6));
+        }
+    }
+
+    Stage cryptoStage;
+    Stage databaseStage;
+
+    Thread metricsLogger;
+
+    /**
+     * Create an issuer pipeline.
+     *
+     * @param cryptoThreads Threads for decryption and validation
+     * @param databaseThreads Threads for database access and responses
+     * @param queueSize Maximum number of waiting requests per stage
+     */
+    IssuerPipeline(int cryptoThreads, int databaseThreads, int queueSize) {
+        cryptoStage = new Stage("crypto", cryptoThreads, queueSize, 0);
+        databaseStage = new Stage("database", databaseThreads, queueSize, HANDOVER_TIMEOUT);
+        metricsLogger = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(METRICS_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (ApplicationService.logging) {
+                        logger.info(IssuerPipeline.this.toString());
+                    }
+                }
+            }
+
+        }, "IssuerPipeline metrics");
+        metricsLogger.setDaemon(true);
+        metricsLogger.start();
+    }
+
+    Stage[] getStages() {
+        return new Stage[] {cryptoStage, databaseStage};
+    }
+
+    void shutdown() {
+        metricsLogger.interrupt();
+        cryptoStage.executor.shutdown();
+        databaseStage.executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "Issuer pipeline " + cryptoStage + "; " + databaseStage;
+    }
+}
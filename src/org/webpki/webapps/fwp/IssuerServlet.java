@@ -18,19 +18,27 @@ package org.webpki.webapps.fwp;
 
 import java.io.IOException;
 
-import java.nio.ByteBuffer;
-
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 
-import java.sql.Connection;
+import java.sql.SQLException;
 
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 
 import javax.servlet.http.HttpServlet;
@@ -45,12 +53,14 @@ import org.webpki.cbor.CBORObject;
 
 import org.webpki.crypto.CryptoException;
 import org.webpki.crypto.ContentEncryptionAlgorithms;
+import org.webpki.crypto.HashAlgorithms;
 import org.webpki.crypto.KeyEncryptionAlgorithms;
 
 import org.webpki.fwp.FWPAssertionDecoder;
 import org.webpki.fwp.FWPCrypto;
 import org.webpki.fwp.FWPJsonAssertion;
 import org.webpki.fwp.FWPPaymentRequest;
+import org.webpki.fwp.FWPRejection;
 import org.webpki.fwp.IssuerRequest;
 import org.webpki.fwp.PSPRequest;
 
@@ -72,6 +82,8 @@ public class IssuerServlet extends HttpServlet {
     
     static final long AUTHORIZATION_MAX_AGE    = 600000;
     static final long AUTHORIZATION_MAX_FUTURE = 120000;
+
+    static final long ASYNC_TIMEOUT            = 60000;
     
     static final CBORDecrypter<?> decrypter = 
         new CBORAsymKeyDecrypter(new CBORAsymKeyDecrypter.KeyLocator() {
@@ -83,11 +95,11 @@ public class IssuerServlet extends HttpServlet {
                                      ContentEncryptionAlgorithms contentEncryptionAlgorithm) {
                 // Somewhat simplistic setup: a single encryption key
                 if (optionalKeyId == null) {
-                    throw new CryptoException("Missing keyId");
+                    throw FWPRejection.get(FWPRejection.Code.MISSING_KEY_ID);
                 }
                 if (!ApplicationService.issuerEncryptionKeyId.equals(
                         optionalKeyId)) {
-                    throw new CryptoException("Unknown keyId: " + optionalKeyId);
+                    throw FWPRejection.get(FWPRejection.Code.UNKNOWN_KEY_ID);
                 }
                 return ApplicationService.issuerEncryptionKey.getPrivate();
             }
@@ -124,7 +136,113 @@ public class IssuerServlet extends HttpServlet {
 
     });
     
-    static long transactionId = 56807446412l;
+    /**
+     * Issuer request being authorized.
+     */
+    static class IssuerTransaction {
+
+        String issuerRequest;
+        IssuerRequest decodedIssuerRequest;
+        PSPRequest pspRequest;
+        FWPPaymentRequest fwpPaymentRequest;
+        byte[] fwpAssertionBinary;
+        byte[] esadDigest;
+
+        // Not yet verified SAD data.
+        FWPAssertionDecoder.UnverifiedClaims claims;
+        long expirationTime;
+
+        // Set by authorization rules.
+        FWPAssertionDecoder fwpAssertion;
+        DataBaseOperations.AuthorizedInfo authorizedInfo;
+        String token;
+
+        // Set when an asynchronous request has timed out.
+        AtomicBoolean abandoned = new AtomicBoolean();
+
+        IssuerTransaction(String issuerRequest,
+                          IssuerRequest decodedIssuerRequest,
+                          byte[] fwpAssertionBinary,
+                          byte[] esadDigest) {
+            this.issuerRequest = issuerRequest;
+            this.decodedIssuerRequest = decodedIssuerRequest;
+            this.pspRequest = decodedIssuerRequest.getPspRequest();
+            this.fwpPaymentRequest = pspRequest.getPaymentRequest();
+            this.fwpAssertionBinary = fwpAssertionBinary;
+            this.esadDigest = esadDigest;
+            claims = new FWPAssertionDecoder.UnverifiedClaims(fwpAssertionBinary);
+            expirationTime = claims.getTimeStampMillis() + AUTHORIZATION_MAX_AGE;
+        }
+    }
+
+    static AtomicLong transactionId = new AtomicLong(56807446412l);
+
+    interface ResponseWriter {
+        void write() throws IOException, ServletException;
+    }
+
+    /**
+     * Respond unless the request has been abandoned.
+     *
+     * A timed out asynchronous request is answered by the container thread
+     * after which the request and response objects are recycled.  Writes are
+     * therefore serialized with the timeout handler.
+     */
+    static void respond(AtomicBoolean abandoned, ResponseWriter responseWriter)
+            throws IOException, ServletException {
+        synchronized (abandoned) {
+            if (!abandoned.get()) {
+                responseWriter.write();
+            }
+        }
+    }
+
+    static void complete(AsyncContext asyncContext, AtomicBoolean abandoned) {
+        synchronized (abandoned) {
+            if (!abandoned.get()) {
+                asyncContext.complete();
+            }
+        }
+    }
+
+    static AsyncContext startAsync(HttpServletRequest request, AtomicBoolean abandoned) {
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(ASYNC_TIMEOUT);
+        asyncContext.addListener(new AsyncListener() {
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                synchronized (abandoned) {
+                    abandoned.set(true);
+                    HttpServletResponse response =
+                            (HttpServletResponse) event.getAsyncContext().getResponse();
+                    try {
+                        if (!response.isCommitted()) {
+                            response.setHeader("Retry-After", "1");
+                            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                        }
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Issuer timeout response failed", e);
+                    }
+                    event.getAsyncContext().complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+
+        });
+        return asyncContext;
+    }
 
     StringBuilder getUserValidation(HashSet<FWPCrypto.UserValidation> userValidationFlags) {
         StringBuilder userValidation = new StringBuilder();
@@ -135,14 +253,15 @@ public class IssuerServlet extends HttpServlet {
         return userValidation;
     }
     
-    void softError(HttpServletResponse response, String error, byte[] fwpAssertionBinary) 
-        throws IOException, ServletException {
+    void softError(HttpServletResponse response, 
+                   FWPRejection rejection,
+                   byte[] fwpAssertionBinary) throws IOException, ServletException {
         StringBuilder html = new StringBuilder(
             "<div class='header'>Soft Error</div>" +
             "<div style='display:flex;justify-content:center;margin-top:15pt'>")
-        .append(error)
+        .append(rejection.getMessage())
         .append(
-            " SAD (")
+            ", SAD (")
         .append(ADServlet.sectionReference("seq-4.3"))
         .append(
             ") object:</div>" +
@@ -153,243 +272,359 @@ public class IssuerServlet extends HttpServlet {
         HTML.standardPage(response, Actors.ISSUER, WalletCore.GO_HOME_JAVASCRIPT, html);
     }
     
+    // Compact response to rejections.  Stack traces are reserved for unexpected errors.
+    void rejectionError(HttpServletResponse response, FWPRejection rejection)
+            throws IOException, ServletException {
+        HTML.standardPage(response, Actors.ISSUER, WalletCore.GO_HOME_JAVASCRIPT, 
+            new StringBuilder(
+                "<div class='header'>Soft Error</div>" +
+                "<div style='display:flex;justify-content:center;margin-top:15pt'>")
+            .append(rejection.getMessage())
+            .append(
+                "</div>"));
+    }
+    
     public void doPost(HttpServletRequest request, HttpServletResponse response)
             throws IOException, ServletException {
         request.setCharacterEncoding("utf-8");
-        try {
-            String issuerRequest = request.getParameter(ISSUER_REQUEST);
-            if (issuerRequest == null) {
-                WalletCore.failed("Missing Issuer request");
-                return;
-            }
-            // Now the real work begins...
-            IssuerRequest decodedIssuerRequest = 
-                    new IssuerRequest(JSONParser.parse(issuerRequest));
-            PSPRequest pspRequest = decodedIssuerRequest.getPspRequest();
-            FWPJsonAssertion fwpJsonAssertion = pspRequest.getFwpAssertion();
-            FWPPaymentRequest fwpPaymentRequest = pspRequest.getPaymentRequest();
-             
-              // Decrypt ESAD returning SAD.
-            byte[] fwpAssertionBinary = decrypter.decrypt(
-                CBORDecoder.decode(fwpJsonAssertion.getUserAuthorization()));
-            // Succeeded.
-            
-            // Decode signed assertion (SAD).
-            FWPAssertionDecoder fwpAssertion = new FWPAssertionDecoder(fwpAssertionBinary);
-            // Succeeded => the data (SAD) is "technically" OK including the signature.
-            
-            // If the internal clock of an FWP client is severely out of sync, created
-            // authorizations will be rejected.  This also makes clock manipulations
-            // useless as attack vectors.
-            long now = System.currentTimeMillis();
-            long timeStamp = fwpAssertion.getTimeStamp().getTimeInMillis();
-            long expirationTime = timeStamp + AUTHORIZATION_MAX_AGE;
-            if (expirationTime < now) {
-                softError(response, 
-                          "Authorization max age (" +
-                            (AUTHORIZATION_MAX_AGE / 1000) + 
-                            "s) exceeded for",
-                          fwpAssertionBinary);
-                return;
-            }
-            if (timeStamp - AUTHORIZATION_MAX_FUTURE > now) {
-                softError(response, 
-                          "Authorization max future (" +
-                            (AUTHORIZATION_MAX_FUTURE / 1000) + 
-                            "s) exceeded for",
-                          fwpAssertionBinary);
-                return;
-            }            
-
-            // Check that the merchant request matches the authorization.
-            fwpAssertion.verifyClaimedPaymentRequest(fwpPaymentRequest);
-
-            // Check that the user haven't been phished.  Note that this check
-            // depends on participation by the merchant's PSP.
-            compare(decodedIssuerRequest.getPayeeHost(), fwpAssertion.getPayeeHost());
-            
-            // And of course, verify that the authorization belongs to a valid account!
-            DataBaseOperations.AuthorizedInfo authorizedInfo;
-            try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
-                authorizedInfo = DataBaseOperations.authorize(fwpAssertion.getSerialNumber(),
-                                                              fwpAssertion.getAccountId(),
-                                                              fwpAssertion.getPublicKey(),
-                                                              connection);
+        // Read here since the request object is recycled after a timeout.
+        String issuerRequest = request.getParameter(ISSUER_REQUEST);
+        IssuerPipeline pipeline = ApplicationService.issuerPipeline;
+        AtomicBoolean abandoned = new AtomicBoolean();
+        if (pipeline != null) {
+            AsyncContext asyncContext = startAsync(request, abandoned);
+            try {
+                pipeline.cryptoStage.submit(
+                        () -> verifyStage(asyncContext, pipeline, issuerRequest, abandoned));
+            } catch (RejectedExecutionException e) {
+                completeStage(asyncContext, abandoned, e);
             }
+            return;
+        }
+        ExecutorService executor = ApplicationService.issuerExecutor;
+        if (executor == null) {
+            processIssuerRequest(issuerRequest, response, abandoned);
+            return;
+        }
+        // Decryption, validation and the database look-up are performed on a
+        // virtual thread, releasing the connector thread for other requests.
+        AsyncContext asyncContext = startAsync(request, abandoned);
+        try {
+            executor.execute(() -> {
+                try {
+                    processIssuerRequest(issuerRequest, response, abandoned);
+                } catch (IOException | ServletException e) {
+                    logger.log(Level.WARNING, "Issuer response failed", e);
+                } finally {
+                    complete(asyncContext, abandoned);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down.
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            asyncContext.complete();
+        }
+    }
 
-            // Create a cacheable SAD object that is uniquely (but momentarily)
-            // representing a specific transaction request.
-            //
-            // The data needed to make this safe (=cause no false cache collisions),
-            // in FWP depends on the following input
-            // - The transaction (PRCD) request
-            // . The host name derived from the URL of the FWP invocation
-            // - The client generated time stamp
-            // - The account specific payment credentials
-            // - The FIDO signature counter
-            // - The signature including public key
-            // as well as that the request has been verified as genuine.
-            //
-            // The use of time stamped and signed authorization data together with
-            // strict time limits on the verifier side, makes this scheme comparable
-            // to WebAuthn, but considerably more flexible since such authorizations 
-            // can pass any number of nodes without losing their "teeth".
-            //
-            // That user authorizations are carried out entirely locally makes merchant
-            // integration of this part extremely simple.
-            //
-            // Due to the fact that payment requests represent discrete events that are
-            // to be acted upon, rather than creating secure sessions with a client,
-            // there is no need for dedicated authentication servers.
-            //
-            // Note that supporting IDEMPOTENT operation would require additional data like
-            // - The hash of the entire request in order to verify input equivalence
-            // - The full response for the initial successful request
-            // since (then permitted, but still time limited) replays MUST NOT change anything
-            // on the receiver side.
-            ByteBuffer cacheableSadObject = ByteBuffer.wrap(fwpAssertionBinary);
-            
-            // Have this user authorization already been consumed?
-            if (ReplayCache.INSTANCE.add(cacheableSadObject, expirationTime)) {
-                logger.info("Replay of authorization token: " + cacheableSadObject.hashCode() +
-                            ", accountId=" + fwpAssertion.getAccountId());
-                softError(response,
-                          "Replay of",
-                          fwpAssertionBinary);
+    void verifyStage(AsyncContext asyncContext,
+                     IssuerPipeline pipeline,
+                     String issuerRequest,
+                     AtomicBoolean abandoned) {
+        if (abandoned.get()) {
+            // Timed out while queued.
+            return;
+        }
+        try {
+            IssuerTransaction transaction = 
+                    verifyRequest(issuerRequest,
+                                  (HttpServletResponse) asyncContext.getResponse(),
+                                  abandoned);
+            if (transaction == null) {
+                completeStage(asyncContext, abandoned, null);
                 return;
             }
+            // Waits (for a limited time) if the database stage is saturated.
+            pipeline.databaseStage.submit(() -> authorizeStage(asyncContext, transaction));
+        } catch (Exception e) {
+            completeStage(asyncContext, abandoned, e);
+        }
+    }
 
-            // Apparently this is a valid request.
-            logger.info("Issuer verified: " + authorizedInfo.userId + 
-                        ", token=" + cacheableSadObject.hashCode());
+    void authorizeStage(AsyncContext asyncContext, IssuerTransaction transaction) {
+        if (transaction.abandoned.get()) {
+            // Timed out while queued.
+            return;
+        }
+        try {
+            authorizeRequest(transaction, (HttpServletResponse) asyncContext.getResponse());
+            completeStage(asyncContext, transaction.abandoned, null);
+        } catch (Exception e) {
+            completeStage(asyncContext, transaction.abandoned, e);
+        }
+    }
 
-            StringBuilder html = new StringBuilder(
-    
-                "<form name='shoot' method='POST' action='issuerreq'>" +
-                "<input type='hidden' name='" + ISSUER_REQUEST +
-                "' value='")
-            .append(HTML.encode(issuerRequest, false))
-            .append(
-                "'/>" +
-                "</form>" +
+    // Completes a pipelined request, responding to a failure if there is one.
+    void completeStage(AsyncContext asyncContext, AtomicBoolean abandoned, Exception failure) {
+        try {
+            respond(abandoned, () -> {
+                HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+                if (failure instanceof RejectedExecutionException) {
+                    response.setHeader("Retry-After", "1");
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                } else if (failure instanceof FWPRejection) {
+                    rejectionError(response, (FWPRejection) failure);
+                } else if (failure != null) {
+                    HTML.errorPage(response, failure);
+                }
+            });
+        } catch (IOException | ServletException e) {
+            logger.log(Level.WARNING, "Issuer response failed", e);
+        } finally {
+            complete(asyncContext, abandoned);
+        }
+    }
 
-                "<div class='header'>Payment Initiation</div>" +
-    
-                "<div style='display:flex;justify-content:center;margin-top:15pt'>" +
-                  "<div class='comment'>")
-            .append(ADServlet.sectionReference("seq-10"))
-            .append(
-                  ": If you have reached this far, the payment request has been verified " +
-                  "for correctness by the <span class='actor'>Issuer</span> and a " +
-                  "payment operation is being initiated." +
-                  "<div style='margin-top:0.4em'>Thank you for testing!</div>" +
-                  "</div>" +
-                "</div>" +
-
-                "<div style='overflow-x:auto;margin-top:1.5em'>" +
-                  "<table class='tftable'>" +
-  
-                  "<tr><th colspan='2' style='text-align:center'>Transaction Core Data</th></tr>" +
-
-                    "<tr><th>Amount</th><td>")
-            .append(fwpPaymentRequest.getAmount())
-            .append("</td></tr>" +
-                    "<tr><th>Currency</th><td>")
-            .append(fwpPaymentRequest.getCurrency())
-            .append("</td></tr>" +
-                    "<tr><th>Payee&nbsp;Account</th><td>")
-            .append(pspRequest.getReceiveAccount())
-            .append("</td></tr>" +
-                    "<tr><th>Payer&nbsp;Account</th><td>")
-            .append(fwpAssertion.getAccountId())
-            .append("</td></tr>" +
-                    "<tr><th>Payment&nbsp;Network</th><td>")
-            .append(fwpAssertion.getPaymentNetwork())
-            .append("</td></tr>" +
-                    "<tr><th>Transaction Id</th><td>")
-            .append(String.format("%012d", transactionId++))
-            .append("</td></tr>" +
-                    "<tr><th>Time Stamp</th><td>")
-            .append(ISODateTime.encode(new GregorianCalendar(), ISODateTime.UTC_NO_SUBSECONDS))
-            .append("</td></tr>" +
-
-                    "<tr><td colspan='2' style='background-color:white;border-width:0'></td></tr>" +
-
-                    "<tr><th colspan='2' style='text-align:center'>Payee Information</th></tr>" +
-
-                    "<tr><th>Common&nbsp;Name</th><td>")
-            .append(fwpPaymentRequest.getPayeeName())
-            .append("</td></tr>" +
-                    "<tr><th>Host Name</th><td>")
-            .append(fwpAssertion.getPayeeHost())
-            .append("</td></tr>" +
-                    "<tr><th>Request&nbsp;Id</th><td>")
-            .append(fwpPaymentRequest.getRequestId())
-            .append("</td></tr>" +
-                    "<tr><th>Time Stamp</th><td>")
-            .append(ISODateTime.encode(pspRequest.getTimeStamp(), ISODateTime.UTC_NO_SUBSECONDS))
-            .append("</td></tr>" +
-                    "<tr><td colspan='2' style='background-color:white;border-width:0'></td></tr>" +
-
-                    "<tr><th colspan='2' style='text-align:center'>Payer Information</th></tr>" +
-
-                    "<tr><th>User Name</th><td>")
-            .append(HTML.encode(authorizedInfo.cardHolder, true))
-            .append("</td></tr>" +
-                    "<tr><th>User Id</th><td>")
-            .append(authorizedInfo.userId)
-            .append("</td></tr>" +
-                    "<tr><th>Card Serial</th><td>")
-            .append(fwpAssertion.getSerialNumber())
-            .append("</td></tr>" +
-                    "<tr><th>Client&nbsp;System</th><td>")
-            .append(fwpAssertion.getOperatingSystem().getName())
-            .append(fwpAssertion.getOperatingSystem().getVersion().equals("N/A") ? "" :
-                " " + fwpAssertion.getOperatingSystem().getVersion())
-            .append(", ")
-            .append(fwpAssertion.getUserAgent().getName())
-            .append(' ')
-            .append(fwpAssertion.getUserAgent().getVersion())
-            .append("</td></tr>" +
-                    "<tr><th>User&nbsp;Validation</th><td>")
-            .append(getUserValidation(fwpAssertion.getUserValidation()))
-            .append("</td></tr>" +
-                    "<tr><th>IP&nbsp;Address</th><td>")
-            .append(pspRequest.getClientIpAddress())
-            .append("</td></tr>" +
-                    "<tr><th>Location</th><td>")
-            .append("N/A")
-            .append("</td></tr>" +
-                    "<tr><th>Time Stamp</th><td>")
-            .append(ISODateTime.encode(fwpAssertion.getTimeStamp(), 
-                                       ISODateTime.LOCAL_NO_SUBSECONDS))
-            .append("</td></tr>" +
-                  "</table>" +
-                "</div>" +
-
-                "<div style='display:flex;justify-content:center;margin-top:1.5em'>" +
-                  "<div class='comment'>" +
-                    "You may try to replay this transaction and see what happens. " +
-                    "If you wait more than 10 minutes, the transaction request should " +
-                    "be rejected because it has expired." +
-                  "</div>" +
-                "</div>" +
-                    
-                "<div style='display:flex;justify-content:center'>" +
-                  "<div class='stdbtn' onclick=\"document.forms.shoot.submit()\">" +
-                    "&quot;Replay&quot;" +
-                  "</div>" +
-                "</div>");
-            
-            HTML.standardPage(response, Actors.ISSUER, WalletCore.GO_HOME_JAVASCRIPT, html);
+    void processIssuerRequest(String issuerRequest,
+                              HttpServletResponse response,
+                              AtomicBoolean abandoned) throws IOException, ServletException {
+        try {
+            IssuerTransaction transaction = verifyRequest(issuerRequest, response, abandoned);
+            if (transaction != null) {
+                authorizeRequest(transaction, response);
+            }
+        } catch (FWPRejection e) {
+            respond(abandoned, () -> rejectionError(response, e));
         } catch (Exception e) {
-            HTML.errorPage(response, e);
+            respond(abandoned, () -> HTML.errorPage(response, e));
         }
     }
-    
-    private void compare(String one, String two) throws GeneralSecurityException {
-        if (!one.equals(two)) {
-            throw new GeneralSecurityException("Compare failed for " + one + "=" + two);
+
+    /**
+     * Decryption and validation of an issuer request.
+     *
+     * @param issuerRequest JSON request or <code>null</code> if missing
+     * @param response Response to soft errors
+     * @param abandoned Set when an asynchronous request has timed out
+     * @return Transaction to authorize or <code>null</code> if already responded to
+     */
+    IssuerTransaction verifyRequest(String issuerRequest,
+                                    HttpServletResponse response,
+                                    AtomicBoolean abandoned)
+            throws IOException, ServletException, GeneralSecurityException, SQLException {
+        if (issuerRequest == null) {
+            throw FWPRejection.get(FWPRejection.Code.MALFORMED_REQUEST);
+        }
+        // Now the real work begins...
+        IssuerTransaction transaction = createTransaction(
+                issuerRequest, new IssuerRequest(JSONParser.parse(issuerRequest)));
+        transaction.abandoned = abandoned;
+        
+        // Cheap checks of the SAD claims, signature validation and in-memory checks.
+        FWPRejection rejection = ApplicationService.authorizationPolicy.evaluate(
+                transaction, AuthorizationRule.Cost.CLAIMS, AuthorizationRule.Cost.MEMORY);
+        if (rejection != null) {
+            respond(abandoned, 
+                    () -> softError(response, rejection, transaction.fwpAssertionBinary));
+            return null;
+        }
+        return transaction;
+    }
+
+    /**
+     * ESAD replay check and decryption of a decoded issuer request.
+     *
+     * @param issuerRequest Original JSON request or <code>null</code>
+     * @param decodedIssuerRequest The request
+     * @return Transaction to authorize
+     * @throws FWPRejection If the ESAD has already been used
+     */
+    static IssuerTransaction createTransaction(String issuerRequest,
+                                               IssuerRequest decodedIssuerRequest)
+            throws IOException, GeneralSecurityException {
+        FWPJsonAssertion fwpJsonAssertion = 
+                decodedIssuerRequest.getPspRequest().getFwpAssertion();
+
+        // Replays are typically byte-identical ESAD objects.  Rejecting them
+        // here saves decryption, signature validation and database access.
+        byte[] esadDigest = HashAlgorithms.SHA256.digest(
+                fwpJsonAssertion.getUserAuthorization());
+        if (ReplayCache.INSTANCE.isKnownEsad(esadDigest)) {
+            logger.info("Replay of encrypted authorization token");
+            throw FWPRejection.get(FWPRejection.Code.ESAD_REPLAY);
         }
+         
+        // Decrypt ESAD returning SAD.
+        byte[] fwpAssertionBinary = decrypter.decrypt(
+            CBORDecoder.decode(fwpJsonAssertion.getUserAuthorization()));
+        // Succeeded.
+        
+        return new IssuerTransaction(issuerRequest,
+                                     decodedIssuerRequest,
+                                     fwpAssertionBinary,
+                                     esadDigest);
+    }
+
+    /**
+     * Record an authorized transaction.
+     *
+     * @param transaction Transaction that passed all authorization rules
+     * @return Transaction Id
+     */
+    static long commitTransaction(IssuerTransaction transaction) {
+        ReplayCache.INSTANCE.addEsad(transaction.esadDigest, transaction.expirationTime);
+        logger.info("Issuer verified: " + transaction.authorizedInfo.userId + 
+                    ", token=" + transaction.token);
+        return transactionId.getAndIncrement();
+    }
+
+    /**
+     * Account look-up, replay check and response of a verified issuer request.
+     */
+    void authorizeRequest(IssuerTransaction transaction, HttpServletResponse response)
+            throws IOException, ServletException, GeneralSecurityException, SQLException {
+        String issuerRequest = transaction.issuerRequest;
+        PSPRequest pspRequest = transaction.pspRequest;
+        FWPPaymentRequest fwpPaymentRequest = transaction.fwpPaymentRequest;
+        byte[] fwpAssertionBinary = transaction.fwpAssertionBinary;
+
+        // Database and replay checks.
+        FWPRejection rejection = ApplicationService.authorizationPolicy.evaluate(
+                transaction, AuthorizationRule.Cost.DATABASE, AuthorizationRule.Cost.COMMIT);
+        if (rejection != null) {
+            respond(transaction.abandoned, 
+                    () -> softError(response, rejection, fwpAssertionBinary));
+            return;
+        }
+        FWPAssertionDecoder fwpAssertion = transaction.fwpAssertion;
+        DataBaseOperations.AuthorizedInfo authorizedInfo = transaction.authorizedInfo;
+
+        if (transaction.abandoned.get()) {
+            // The client has already been told to retry.
+            return;
+        }
+
+        // Apparently this is a valid request.
+        long id = commitTransaction(transaction);
+
+        StringBuilder html = new StringBuilder(
+
+            "<form name='shoot' method='POST' action='issuerreq'>" +
+            "<input type='hidden' name='" + ISSUER_REQUEST +
+            "' value='")
+        .append(HTML.encode(issuerRequest, false))
+        .append(
+            "'/>" +
+            "</form>" +
+
+            "<div class='header'>Payment Initiation</div>" +
+
+            "<div style='display:flex;justify-content:center;margin-top:15pt'>" +
+              "<div class='comment'>")
+        .append(ADServlet.sectionReference("seq-10"))
+        .append(
+              ": If you have reached this far, the payment request has been verified " +
+              "for correctness by the <span class='actor'>Issuer</span> and a " +
+              "payment operation is being initiated." +
+              "<div style='margin-top:0.4em'>Thank you for testing!</div>" +
+              "</div>" +
+            "</div>" +
+
+            "<div style='overflow-x:auto;margin-top:1.5em'>" +
+              "<table class='tftable'>" +
+
+              "<tr><th colspan='2' style='text-align:center'>Transaction Core Data</th></tr>" +
+
+                "<tr><th>Amount</th><td>")
+        .append(fwpPaymentRequest.getAmount())
+        .append("</td></tr>" +
+                "<tr><th>Currency</th><td>")
+        .append(fwpPaymentRequest.getCurrency())
+        .append("</td></tr>" +
+                "<tr><th>Payee&nbsp;Account</th><td>")
+        .append(pspRequest.getReceiveAccount())
+        .append("</td></tr>" +
+                "<tr><th>Payer&nbsp;Account</th><td>")
+        .append(fwpAssertion.getAccountId())
+        .append("</td></tr>" +
+                "<tr><th>Payment&nbsp;Network</th><td>")
+        .append(fwpAssertion.getPaymentNetwork())
+        .append("</td></tr>" +
+                "<tr><th>Transaction Id</th><td>")
+        .append(String.format("%012d", id))
+        .append("</td></tr>" +
+                "<tr><th>Time Stamp</th><td>")
+        .append(ISODateTime.encode(new GregorianCalendar(), ISODateTime.UTC_NO_SUBSECONDS))
+        .append("</td></tr>" +
+
+                "<tr><td colspan='2' style='background-color:white;border-width:0'></td></tr>" +
+
+                "<tr><th colspan='2' style='text-align:center'>Payee Information</th></tr>" +
+
+                "<tr><th>Common&nbsp;Name</th><td>")
+        .append(fwpPaymentRequest.getPayeeName())
+        .append("</td></tr>" +
+                "<tr><th>Host Name</th><td>")
+        .append(fwpAssertion.getPayeeHost())
+        .append("</td></tr>" +
+                "<tr><th>Request&nbsp;Id</th><td>")
+        .append(fwpPaymentRequest.getRequestId())
+        .append("</td></tr>" +
+                "<tr><th>Time Stamp</th><td>")
+        .append(ISODateTime.encode(pspRequest.getTimeStamp(), ISODateTime.UTC_NO_SUBSECONDS))
+        .append("</td></tr>" +
+                "<tr><td colspan='2' style='background-color:white;border-width:0'></td></tr>" +
+
+                "<tr><th colspan='2' style='text-align:center'>Payer Information</th></tr>" +
+
+                "<tr><th>User Name</th><td>")
+        .append(HTML.encode(authorizedInfo.cardHolder, true))
+        .append("</td></tr>" +
+                "<tr><th>User Id</th><td>")
+        .append(authorizedInfo.userId)
+        .append("</td></tr>" +
+                "<tr><th>Card Serial</th><td>")
+        .append(fwpAssertion.getSerialNumber())
+        .append("</td></tr>" +
+                "<tr><th>Client&nbsp;System</th><td>")
+        .append(fwpAssertion.getOperatingSystem().getName())
+        .append(fwpAssertion.getOperatingSystem().getVersion().equals("N/A") ? "" :
+            " " + fwpAssertion.getOperatingSystem().getVersion())
+        .append(", ")
+        .append(fwpAssertion.getUserAgent().getName())
+        .append(' ')
+        .append(fwpAssertion.getUserAgent().getVersion())
+        .append("</td></tr>" +
+                "<tr><th>User&nbsp;Validation</th><td>")
+        .append(getUserValidation(fwpAssertion.getUserValidation()))
+        .append("</td></tr>" +
+                "<tr><th>IP&nbsp;Address</th><td>")
+        .append(pspRequest.getClientIpAddress())
+        .append("</td></tr>" +
+                "<tr><th>Location</th><td>")
+        .append("N/A")
+        .append("</td></tr>" +
+                "<tr><th>Time Stamp</th><td>")
+        .append(ISODateTime.encode(fwpAssertion.getTimeStamp(), 
+                                   ISODateTime.LOCAL_NO_SUBSECONDS))
+        .append("</td></tr>" +
+              "</table>" +
+            "</div>" +
+
+            "<div style='display:flex;justify-content:center;margin-top:1.5em'>" +
+              "<div class='comment'>" +
+                "You may try to replay this transaction and see what happens. " +
+                "If you wait more than 10 minutes, the transaction request should " +
+                "be rejected because it has expired." +
+              "</div>" +
+            "</div>" +
+                
+            "<div style='display:flex;justify-content:center'>" +
+              "<div class='stdbtn' onclick=\"document.forms.shoot.submit()\">" +
+                "&quot;Replay&quot;" +
+              "</div>" +
+            "</div>");
+        
+        respond(transaction.abandoned, () -> 
+                HTML.standardPage(response, Actors.ISSUER, WalletCore.GO_HOME_JAVASCRIPT, html));
     }
 }
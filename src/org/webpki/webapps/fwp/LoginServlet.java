@@ -18,8 +18,6 @@ package org.webpki.webapps.fwp;
 
 import java.io.IOException;
 
-import java.sql.Connection;
-
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -155,10 +153,8 @@ public class LoginServlet extends HttpServlet {
             
             // Lookup in database
             DataBaseOperations.CoreClientData coreClientData;
-            try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
-                // Get the anticipated public key
-                coreClientData = DataBaseOperations.getCoreClientData(userId, connection);
-            }
+            // Get the anticipated public key
+            coreClientData = WalletCache.getCoreClientData(userId);
             
             HttpSession session = request.getSession(false);
             
@@ -0,0 +1,260 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.io.IOException;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replay store backed by a memory-mapped file.
+ *
+ * The file holds a fixed-size hash table which survives restarts and can be
+ * shared by multiple processes on the same host.  A digest may only be stored
+ * in its home bucket.  Each slot consists of a state word followed by
+ * the digest.  The state word is:
+ * <ul>
+ * <li>0 for empty slots</li>
+ * <li>the expiration time for stored digests.  Expired slots are reused</li>
+ * <li>negative for slots being written, holding the claim time and phase</li>
+ * </ul>
+ * Slots are claimed through CAS.  After having written the digest, a writer
+ * rescans the bucket since a concurrent writer (possibly in another process)
+ * may have added the same digest in another slot.  In that case the lower slot
+ * wins, while the other writer releases its slot and reports a replay.
+ * Claims older than {@link #STALE_CLAIM_MILLIS} are considered abandoned
+ * (crashed writer) and may be reused.
+ *
+ * If a bucket is full of unexpired entries, the store fails closed by
+ * throwing an exception.
+ */
+class MappedReplayStore implements ReplayStore {
+
+    static final long MAGIC             = 0x46575052504c5931L;  // "FWPRPLY1"
+
+    static final int HEADER_SIZE        = 64;
+    static final int SLOT_SIZE          = 8 + ReplayTable.DIGEST_LENGTH;
+    static final int BUCKET_SLOTS       = 16;
+
+    static final long STALE_CLAIM_MILLIS = 10000;
+
+    // Claim phases stored in the lowest bit of a negated claim time.
+    static final long CLAIMED           = 0;  // Digest not yet written
+    static final long PENDING           = 1;  // Digest written
+
+    static final VarHandle LONG_VIEW =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    MappedByteBuffer buffer;
+    int bucketMask;
+
+    /**
+     * Open or create a replay store file.
+     *
+     * @param file Replay store file
+     * @param slots Total number of slots (must be a power of two, at least 16)
+     * @throws IOException
+     */
+    MappedReplayStore(Path file, int slots) throws IOException {
+        if (slots < BUCKET_SLOTS || Integer.bitCount(slots) != 1 ||
+            (long) slots * SLOT_SIZE > Integer.MAX_VALUE - HEADER_SIZE) {
+            throw new IOException("Invalid number of replay store slots: " + slots);
+        }
+        bucketMask = slots / BUCKET_SLOTS - 1;
+        long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        try (FileChannel channel = FileChannel.open(file,
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            long currentSize = channel.size();
+            if (currentSize != 0 && currentSize != size) {
+                throw new IOException("Replay store file size mismatch: " + file);
+            }
+            // The mapping remains valid after the channel has been closed.
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        // Concurrently initializing processes write the same header.
+        LONG_VIEW.compareAndSet(buffer, 8, 0L, (long) slots);
+        LONG_VIEW.compareAndSet(buffer, 0, 0L, MAGIC);
+        if ((long) LONG_VIEW.getVolatile(buffer, 0) != MAGIC ||
+            (long) LONG_VIEW.getVolatile(buffer, 8) != slots) {
+            throw new IOException("Incompatible replay store file: " + file);
+        }
+    }
+
+    static long claim(long now, long phase) {
+        return -((now << 1) | phase);
+    }
+
+    static boolean isStale(long state, long now) {
+        return state < 0 && ((-state) >>> 1) + STALE_CLAIM_MILLIS < now;
+    }
+
+    static boolean isPhase(long state, long phase) {
+        return state < 0 && ((-state) & 1) == phase;
+    }
+
+    // Slots that may be (re)claimed.
+    static boolean isFree(long state, long now) {
+        return state == 0 || (state > 0 && state < now) || isStale(state, now);
+    }
+
+    int slotOffset(int bucket, int slot) {
+        return HEADER_SIZE + (bucket * BUCKET_SLOTS + slot) * SLOT_SIZE;
+    }
+
+    long getState(int offset) {
+        return (long) LONG_VIEW.getVolatile(buffer, offset);
+    }
+
+    boolean digestEquals(int offset, long k0, long k1, long k2, long k3) {
+        return (long) LONG_VIEW.get(buffer, offset + 8) == k0 &&
+               (long) LONG_VIEW.get(buffer, offset + 16) == k1 &&
+               (long) LONG_VIEW.get(buffer, offset + 24) == k2 &&
+               (long) LONG_VIEW.get(buffer, offset + 32) == k3;
+    }
+
+    // Waits until a slot is not in the process of being written.
+    long getSettledState(int offset) {
+        long state;
+        while (isPhase(state = getState(offset), CLAIMED) &&
+               !isStale(state, System.currentTimeMillis())) {
+            Thread.onSpinWait();
+        }
+        return state;
+    }
+
+    // Returns the state of a slot holding the digest or 0.
+    long getMatchingState(int offset, long k0, long k1, long k2, long k3, long now) {
+        while (true) {
+            long state = getSettledState(offset);
+            if (state == 0 || isStale(state, now)) {
+                return 0;
+            }
+            boolean match = digestEquals(offset, k0, k1, k2, k3);
+            // The slot must not have been reclaimed while reading the digest.
+            // The fence keeps the plain digest reads ahead of the re-check.
+            VarHandle.loadLoadFence();
+            if (getState(offset) == state) {
+                return match ? state : 0;
+            }
+        }
+    }
+
+    @Override
+    public boolean add(byte[] digest, long expirationTime) {
+        ReplayTable.checkDigest(digest);
+        long k0 = ReplayTable.getKeyLong(digest, 0);
+        long k1 = ReplayTable.getKeyLong(digest, 1);
+        long k2 = ReplayTable.getKeyLong(digest, 2);
+        long k3 = ReplayTable.getKeyLong(digest, 3);
+        int bucket = (int) k0 & bucketMask;
+        while (true) {
+            long now = System.currentTimeMillis();
+            // Existing entries (including concurrent additions) are replays.
+            int freeOffset = -1;
+            long freeState = 0;
+            for (int slot = 0; slot < BUCKET_SLOTS; slot++) {
+                int offset = slotOffset(bucket, slot);
+                long state = getMatchingState(offset, k0, k1, k2, k3, now);
+                if (state > 0 ? state >= now : isPhase(state, PENDING)) {
+                    return true;
+                }
+                if (freeOffset < 0 && isFree(state = getState(offset), now)) {
+                    freeOffset = offset;
+                    freeState = state;
+                }
+            }
+            if (freeOffset < 0) {
+                throw new IllegalStateException("Replay store bucket full");
+            }
+            long claimed = claim(now, CLAIMED);
+            if (!LONG_VIEW.compareAndSet(buffer, freeOffset, freeState, claimed)) {
+                continue;
+            }
+            LONG_VIEW.set(buffer, freeOffset + 8, k0);
+            LONG_VIEW.set(buffer, freeOffset + 16, k1);
+            LONG_VIEW.set(buffer, freeOffset + 24, k2);
+            LONG_VIEW.set(buffer, freeOffset + 32, k3);
+            long pending = claim(now, PENDING);
+            if (!LONG_VIEW.compareAndSet(buffer, freeOffset, claimed, pending)) {
+                // Considered abandoned by another writer.
+                continue;
+            }
+            // Resolve races with writers of the same digest in other slots.
+            boolean replay = false;
+            for (int slot = 0; slot < BUCKET_SLOTS; slot++) {
+                int offset = slotOffset(bucket, slot);
+                if (offset == freeOffset) {
+                    continue;
+                }
+                long state = getMatchingState(offset, k0, k1, k2, k3, now);
+                if (state > 0 ? state >= now :
+                                isPhase(state, PENDING) && offset < freeOffset) {
+                    replay = true;
+                    break;
+                }
+            }
+            if (LONG_VIEW.compareAndSet(buffer, freeOffset, pending,
+                                        replay ? 0 : Math.max(expirationTime, 1))) {
+                return replay;
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(byte[] digest) {
+        ReplayTable.checkDigest(digest);
+        long k0 = ReplayTable.getKeyLong(digest, 0);
+        long k1 = ReplayTable.getKeyLong(digest, 1);
+        long k2 = ReplayTable.getKeyLong(digest, 2);
+        long k3 = ReplayTable.getKeyLong(digest, 3);
+        int bucket = (int) k0 & bucketMask;
+        long now = System.currentTimeMillis();
+        for (int slot = 0; slot < BUCKET_SLOTS; slot++) {
+            long state = getMatchingState(slotOffset(bucket, slot), k0, k1, k2, k3, now);
+            if (state > 0 ? state >= now : isPhase(state, PENDING)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Expired slots are reused on demand so there is nothing to do here.
+     */
+    @Override
+    public int expire(long now) {
+        return 0;
+    }
+
+    /**
+     * Flush the table to the file.
+     */
+    void force() {
+        buffer.force();
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import java.util.logging.Logger;
+
+import org.webpki.crypto.HashAlgorithms;
+
+import org.webpki.util.UTF8;
+
+/**
+ * Replay store partitioned over multiple issuer nodes.
+ *
+ * The owners of a digest are selected through consistent hashing.  Each digest
+ * is checked and inserted at the first <code>replicas</code> distinct nodes
+ * on the hash ring, where a digest is considered a replay if any of them has
+ * seen it.  Unreachable nodes are skipped; if none of the owners can be
+ * reached, the operation fails (closed).  The local partition is served
+ * to the other nodes by a {@link ReplayNodeServer}.
+ */
+class PartitionedReplayStore implements ReplayStore, Closeable {
+
+    static final int VIRTUAL_NODES          = 128;
+    static final int CONNECT_TIMEOUT        = 1000;
+    static final long REQUEST_TIMEOUT       = 2000;
+    static final long RECONNECT_DELAY       = 1000;
+
+    static Logger logger = Logger.getLogger(PartitionedReplayStore.class.getName());
+
+    /**
+     * Connection to a remote node.
+     *
+     * Requests are pipelined: callers do not wait for previous responses
+     * and responses are matched with requests by order.
+     */
+    static class RemoteNode {
+
+        String name;
+        InetSocketAddress address;
+
+        Socket socket;
+        DataOutputStream out;
+        long reconnectTime;
+        ArrayDeque<CompletableFuture<Boolean>> pending = new ArrayDeque<>();
+
+        RemoteNode(String name, InetSocketAddress address) {
+            this.name = name;
+            this.address = address;
+        }
+
+        synchronized CompletableFuture<Boolean> send(int op,
+                                                     byte[] digest,
+                                                     long expirationTime) {
+            CompletableFuture<Boolean> result = new CompletableFuture<>();
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                pending.add(result);
+                out.write(op);
+                out.writeLong(expirationTime);
+                out.write(digest);
+                out.flush();
+            } catch (IOException e) {
+                // Fails this and all other outstanding requests.
+                disconnect(socket, e);
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+
+        void connect() throws IOException {
+            // Nodes that are down must not stall every request.
+            if (System.currentTimeMillis() < reconnectTime) {
+                throw new IOException("Replay node down: " + name);
+            }
+            Socket newSocket = new Socket();
+            try {
+                newSocket.connect(address, CONNECT_TIMEOUT);
+                newSocket.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream(),
+                        ReplayNodeServer.FRAME_LENGTH));
+            } catch (IOException e) {
+                newSocket.close();
+                reconnectTime = System.currentTimeMillis() + RECONNECT_DELAY;
+                throw e;
+            }
+            socket = newSocket;
+            Thread reader = new Thread(() -> read(newSocket), "Replay node reader: " + name);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void read(Socket readerSocket) {
+            try {
+                InputStream in = new BufferedInputStream(readerSocket.getInputStream());
+                while (true) {
+                    int status = in.read();
+                    if (status < 0) {
+                        throw new IOException("Replay node closed connection: " + name);
+                    }
+                    CompletableFuture<Boolean> result;
+                    synchronized (this) {
+                        result = pending.poll();
+                    }
+                    if (result == null) {
+                        throw new IOException("Unexpected replay node response: " + name);
+                    }
+                    if (status == ReplayNodeServer.STATUS_ERROR) {
+                        result.completeExceptionally(
+                                new IOException("Replay node failure: " + name));
+                    } else {
+                        result.complete(status == ReplayNodeServer.STATUS_SEEN);
+                    }
+                }
+            } catch (IOException e) {
+                disconnect(readerSocket, e);
+            }
+        }
+
+        // Fails all outstanding requests of a broken connection.
+        synchronized void disconnect(Socket brokenSocket, IOException e) {
+            if (brokenSocket == null || brokenSocket != socket) {
+                return;
+            }
+            socket = null;
+            try {
+                brokenSocket.close();
+            } catch (IOException closeException) {
+            }
+            CompletableFuture<Boolean> result;
+            while ((result = pending.poll()) != null) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    ReplayStore localStore;
+    int replicas;
+
+    // Sorted ring positions (sign bit flipped for unsigned ordering) and their nodes.
+    long[] ringPositions;
+    int[] ringNodes;
+
+    // null for the local node.
+    RemoteNode[] nodes;
+
+    /**
+     * Create a partitioned replay store.
+     *
+     * @param localStore Store for the local partition
+     * @param nodeNames All nodes as "host:port", including the local node
+     * @param localNodeName The local node
+     * @param replicas Number of nodes holding each digest
+     */
+    PartitionedReplayStore(ReplayStore localStore,
+                           List<String> nodeNames,
+                           String localNodeName,
+                           int replicas) {
+        if (replicas < 1 || replicas > nodeNames.size() ||
+            !nodeNames.contains(localNodeName)) {
+            throw new IllegalArgumentException("Invalid replay node configuration");
+        }
+        this.localStore = localStore;
+        this.replicas = replicas;
+        nodes = new RemoteNode[nodeNames.size()];
+        long[][] ring = new long[nodeNames.size() * VIRTUAL_NODES][];
+        for (int i = 0; i < nodes.length; i++) {
+            String name = nodeNames.get(i);
+            if (!name.equals(localNodeName)) {
+                nodes[i] = new RemoteNode(name, parseAddress(name));
+            }
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                byte[] hash = HashAlgorithms.SHA256.digest(UTF8.encode(name + "#" + v));
+                ring[i * VIRTUAL_NODES + v] =
+                        new long[] {ReplayTable.getKeyLong(hash, 0) ^ Long.MIN_VALUE, i};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        ringPositions = new long[ring.length];
+        ringNodes = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            ringPositions[i] = ring[i][0];
+            ringNodes[i] = (int) ring[i][1];
+        }
+    }
+
+    static InetSocketAddress parseAddress(String name) {
+        int colon = name.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Missing port: " + name);
+        }
+        return new InetSocketAddress(name.substring(0, colon),
+                                     Integer.parseInt(name.substring(colon + 1)));
+    }
+
+    /**
+     * Owners of a digest in ring order.
+     */
+    int[] getOwners(byte[] digest) {
+        long position = ReplayTable.getKeyLong(digest, 3) ^ Long.MIN_VALUE;
+        int index = Arrays.binarySearch(ringPositions, position);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        int[] owners = new int[replicas];
+        int found = 0;
+        for (int i = 0; found < replicas; i++) {
+            int node = ringNodes[(index + i) % ringNodes.length];
+            boolean duplicate = false;
+            for (int j = 0; j < found; j++) {
+                duplicate |= owners[j] == node;
+            }
+            if (!duplicate) {
+                owners[found++] = node;
+            }
+        }
+        return owners;
+    }
+
+    boolean execute(int op, byte[] digest, long expirationTime) {
+        ReplayTable.checkDigest(digest);
+        int[] owners = getOwners(digest);
+        // Requests to remote owners are issued before waiting for any of them.
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (int owner : owners) {
+            if (nodes[owner] != null) {
+                results.add(nodes[owner].send(op, digest, expirationTime));
+            }
+        }
+        boolean seen = false;
+        int answers = 0;
+        for (int owner : owners) {
+            if (nodes[owner] == null) {
+                seen |= op == ReplayNodeServer.OP_ADD ?
+                        localStore.add(digest, expirationTime) : localStore.contains(digest);
+                answers++;
+            }
+        }
+        for (CompletableFuture<Boolean> result : results) {
+            try {
+                seen |= result.get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+                answers++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException e) {
+                logger.warning("Replay node unavailable: " + e.getMessage());
+            }
+        }
+        if (answers == 0) {
+            throw new IllegalStateException("No replay node available");
+        }
+        return seen;
+    }
+
+    @Override
+    public boolean add(byte[] digest, long expirationTime) {
+        return execute(ReplayNodeServer.OP_ADD, digest, expirationTime);
+    }
+
+    @Override
+    public boolean contains(byte[] digest) {
+        return execute(ReplayNodeServer.OP_CONTAINS, digest, 0);
+    }
+
+    @Override
+    public int expire(long now) {
+        return localStore.expire(now);
+    }
+
+    @Override
+    public void close() {
+        for (RemoteNode node : nodes) {
+            if (node != null) {
+                synchronized (node) {
+                    node.disconnect(node.socket, new IOException("Closed"));
+                }
+            }
+        }
+    }
+}
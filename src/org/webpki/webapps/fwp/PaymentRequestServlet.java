@@ -18,8 +18,6 @@ package org.webpki.webapps.fwp;
 
 import java.io.IOException;
 
-import java.sql.Connection;
-
 import java.util.ArrayList;
 
 import java.util.logging.Logger;
@@ -72,9 +70,7 @@ public class PaymentRequestServlet extends HttpServlet {
             
             // Lookup virtual cards in the wallet database
             ArrayList<DataBaseOperations.VirtualCard> virtualCards;
-            try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
-                virtualCards = DataBaseOperations.getVirtualCards(userId, connection);
-            }
+            virtualCards = WalletCache.getVirtualCards(userId);
             if (virtualCards.isEmpty()) {
                 response.sendRedirect("walletadmin");
                 return;
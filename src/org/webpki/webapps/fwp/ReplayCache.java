@@ -16,10 +16,15 @@
  */
 package org.webpki.webapps.fwp;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
+import java.util.HashSet;
+import java.util.List;
+
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -29,6 +34,8 @@ import java.util.logging.Logger;
  * if a received authorization has already expired, it should be rejected,
  * rather than being cached.
  * 
+ * SAD objects are represented by their SHA-256 digest in a primitive table
+ * where expired entries are removed through a timing wheel.
  */
 public enum ReplayCache {
 
@@ -38,34 +45,49 @@ public enum ReplayCache {
 
     private Logger logger = Logger.getLogger(ReplayCache.class.getName());
 
-    private final ConcurrentHashMap<ByteBuffer, Long> cache = new ConcurrentHashMap<>();
+    // SHA-256 digests of validated SAD objects.  May be replaced by a shared store.
+    private volatile ReplayStore sadStore = new ReplayTable();
+
+    // SHA-256 digests of encrypted (ESAD) versions of validated SAD objects.
+    private volatile ReplayStore esadStore = new ReplayTable();
+
+    // Optional file based SAD store, flushed at shutdown.
+    private MappedReplayStore mappedStore;
+
+    // Optional partitioning over multiple issuer nodes.
+    private ReplayNodeServer replayNodeServer;
+    private PartitionedReplayStore partitionedStore;
+
+    // Optional Bloom filter fronts of the ESAD and (bounded) SAD stores.
+    private volatile BloomReplayFront bloomFront;
+    private volatile BloomReplayFront sadBloomFront;
 
     private ReplayCache() {
-        new Thread(new Runnable() {
+        Thread sweeper = new Thread(new Runnable() {
 
             @Override
             public void run() {
                 while (true) {
                     try {
-                        Thread.sleep(IssuerServlet.AUTHORIZATION_MAX_AGE / 5);
-                        long now = System.currentTimeMillis();
-                        cache.forEach((hashableSadObject, expirationTime) -> {
-                            if (expirationTime < now) {
-                                // The authorization has apparently expired so we can safely
-                                // remove it from the replay cache in order to keep the cache
-                                // as small and up-to-date as possible.
-                                cache.remove(hashableSadObject);
-                                logger.info("Removed authorization token: " + 
-                                            hashableSadObject.hashCode());
-                            }
-                        });
+                        Thread.sleep(ReplayTable.TICK_MILLIS);
                     } catch (InterruptedException e) {
-                        new RuntimeException("Unexpected interrupt", e);
+                        return;
+                    }
+                    // Only entries that are due are touched.
+                    long now = System.currentTimeMillis();
+                    esadStore.expire(now);
+                    int removed = sadStore.expire(now);
+                    if (removed > 0 && logger.isLoggable(Level.FINE)) {
+                        logger.fine("Removed authorization tokens: " + removed +
+                                    ", Bloom filter fill level: " + getBloomFillLevel() +
+                                    ", overflows: " + getOverflows());
                     }
                 }
             }
            
-        }).start();
+        }, "ReplayCache sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
     }
     
     /**
@@ -74,11 +96,172 @@ public enum ReplayCache {
      * Note: the <code>expirationTime</code> stays the same for replayed SAD objects,
      * making rewrites benign.
      * 
-     * @param hashableSadObject The SAD object packaged to suit HashMap
+     * @param sadDigest SHA-256 of the SAD object
      * @param expirationTime For the SAD object
      * @return <code>true</code> if replay, else <code>false</code>
      */
-    public boolean add(ByteBuffer hashableSadObject, long expirationTime) {
-        return cache.put(hashableSadObject, expirationTime) != null;
+    public boolean add(byte[] sadDigest, long expirationTime) {
+        return sadStore.add(sadDigest, expirationTime);
+    }
+
+    /**
+     * Look-up-only check for already consumed encrypted authorizations.
+     *
+     * Since a replayed authorization is typically a byte-identical ESAD object,
+     * this check makes it possible rejecting replays before decryption.
+     * A negative result does not imply anything; the SAD must still be
+     * validated and added through {@link #add(byte[], long)}.
+     *
+     * @param esadDigest SHA-256 of the ESAD object
+     * @return <code>true</code> if replay, else <code>false</code>
+     */
+    public boolean isKnownEsad(byte[] esadDigest) {
+        return esadStore.contains(esadDigest);
+    }
+
+    /**
+     * Add the digest of a fully validated ESAD object.
+     *
+     * @param esadDigest SHA-256 of the ESAD object
+     * @param expirationTime For the enclosed SAD object
+     */
+    public void addEsad(byte[] esadDigest, long expirationTime) {
+        esadStore.add(esadDigest, expirationTime);
+    }
+
+    /**
+     * Replace the heap based SAD store.
+     *
+     * Must be called before the replay cache is put into service.
+     *
+     * @param sadStore For example a {@link MappedReplayStore}
+     */
+    void setSadStore(ReplayStore sadStore) {
+        this.sadStore = sadStore;
+        if (sadStore instanceof MappedReplayStore) {
+            mappedStore = (MappedReplayStore) sadStore;
+        }
+    }
+
+    /**
+     * Put a time-partitioned Bloom filter in front of the ESAD store.
+     *
+     * Without a bound the filter only pays off on the look-up-only
+     * {@link #isKnownEsad(byte[])} path where most digests have never been seen;
+     * SAD additions must reach the exact store anyway.
+     *
+     * With a bound the heap based ESAD and SAD tables hold at most
+     * <code>maxEntries</code> digests each.  Digests beyond that are only
+     * recorded by the filters (the budget is then split between the two stores),
+     * see {@link BloomReplayFront}.  Must be called before the replay cache is
+     * put into service.
+     *
+     * @param memoryBudget Total size of the filters in bytes
+     * @param falsePositiveRate Targeted false positive rate
+     * @param maxEntries Maximum number of digests per exact table, 0 = unbounded
+     * @return Number of authorizations per filter slice at the targeted rate
+     */
+    long setBloomFront(long memoryBudget, double falsePositiveRate, int maxEntries) {
+        if (maxEntries > 0) {
+            esadStore = new ReplayTable(maxEntries);
+            // File based and shared stores are bounded already.
+            if (sadStore instanceof ReplayTable) {
+                memoryBudget /= 2;
+                sadBloomFront = new BloomReplayFront(new ReplayTable(maxEntries),
+                                                     IssuerServlet.AUTHORIZATION_MAX_AGE,
+                                                     IssuerServlet.AUTHORIZATION_MAX_FUTURE,
+                                                     BloomReplayFront.DEFAULT_SLICES,
+                                                     memoryBudget,
+                                                     falsePositiveRate);
+                sadStore = sadBloomFront;
+            }
+        }
+        BloomReplayFront esadFront = 
+                new BloomReplayFront(esadStore,
+                                     IssuerServlet.AUTHORIZATION_MAX_AGE,
+                                     IssuerServlet.AUTHORIZATION_MAX_FUTURE,
+                                     BloomReplayFront.DEFAULT_SLICES,
+                                     memoryBudget,
+                                     falsePositiveRate);
+        esadStore = esadFront;
+        bloomFront = esadFront;
+        return esadFront.getSliceCapacity();
+    }
+
+    /**
+     * Bloom filter fill level metric.
+     *
+     * @return Fraction (0-1) of set bits in the fullest filter, 0 if not in use
+     */
+    public double getBloomFillLevel() {
+        BloomReplayFront bloomFront = this.bloomFront;
+        BloomReplayFront sadBloomFront = this.sadBloomFront;
+        return Math.max(bloomFront == null ? 0 : bloomFront.getFillLevel(),
+                        sadBloomFront == null ? 0 : sadBloomFront.getFillLevel());
+    }
+
+    /**
+     * Bounded mode metric.
+     *
+     * @return Number of digests that were only recorded by a Bloom filter
+     */
+    public long getOverflows() {
+        BloomReplayFront bloomFront = this.bloomFront;
+        BloomReplayFront sadBloomFront = this.sadBloomFront;
+        return (bloomFront == null ? 0 : bloomFront.overflows.sum()) +
+               (sadBloomFront == null ? 0 : sadBloomFront.overflows.sum());
+    }
+
+    /**
+     * Partition SAD replay detection over multiple issuer nodes.
+     *
+     * The current SAD store becomes the local partition which is also served
+     * to the other nodes.  Must be called before the replay cache is put into service.
+     *
+     * @param nodeNames All nodes as "host:port", including the local node
+     * @param localNodeName The local node
+     * @param replicas Number of nodes holding each SAD digest
+     * @throws IOException
+     */
+    void setPartitioning(List<String> nodeNames, 
+                         String localNodeName,
+                         int replicas) throws IOException {
+        partitionedStore = new PartitionedReplayStore(sadStore, 
+                                                      nodeNames,
+                                                      localNodeName,
+                                                      replicas);
+        HashSet<InetAddress> peers = new HashSet<>();
+        for (String nodeName : nodeNames) {
+            InetSocketAddress address = PartitionedReplayStore.parseAddress(nodeName);
+            if (address.isUnresolved()) {
+                throw new IOException("Unresolvable replay node: " + nodeName);
+            }
+            peers.add(address.getAddress());
+        }
+        // Each node keeps a single connection to each other node.
+        replayNodeServer = new ReplayNodeServer(sadStore,
+                                                PartitionedReplayStore.parseAddress(localNodeName),
+                                                peers,
+                                                nodeNames.size() * 2);
+        sadStore = partitionedStore;
+    }
+
+    /**
+     * Release network resources and flush the file based store.
+     */
+    void shutdown() {
+        if (partitionedStore != null) {
+            partitionedStore.close();
+        }
+        if (replayNodeServer != null) {
+            try {
+                replayNodeServer.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Replay node server close failed", e);
+            }
+        }
+        if (mappedStore != null) {
+            mappedStore.force();
+        }
     }
 }
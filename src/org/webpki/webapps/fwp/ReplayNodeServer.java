@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the local replay store to other issuer nodes.
+ *
+ * Protocol: requests are fixed size frames holding an operation code (1 byte),
+ * an expiration time (8 bytes) and a digest (32 bytes).  Each request is
+ * answered by a single status byte.  Responses are returned in request
+ * order which enables pipelining.
+ *
+ * Only connections from the configured issuer nodes are accepted and the
+ * number of connections is limited.  Expiration times are capped by the
+ * maximum lifetime of authorizations.
+ */
+class ReplayNodeServer implements Closeable {
+
+    static final int OP_ADD             = 1;
+    static final int OP_CONTAINS        = 2;
+
+    static final int STATUS_NOT_SEEN    = 0;
+    static final int STATUS_SEEN        = 1;
+    static final int STATUS_ERROR       = 2;
+
+    static final int FRAME_LENGTH       = 1 + 8 + ReplayTable.DIGEST_LENGTH;
+
+    static Logger logger = Logger.getLogger(ReplayNodeServer.class.getName());
+
+    static final long MAX_LIFETIME      = IssuerServlet.AUTHORIZATION_MAX_AGE +
+                                          IssuerServlet.AUTHORIZATION_MAX_FUTURE;
+
+    ReplayStore store;
+    Set<InetAddress> peers;
+    ServerSocket serverSocket;
+    ThreadPoolExecutor workers;
+    Set<Socket> connections = Collections.synchronizedSet(new HashSet<>());
+
+    /**
+     * Start serving a replay store.
+     *
+     * @param store Local replay store
+     * @param address Address to listen to (port 0 = any free port)
+     * @param peers Addresses of the nodes that may connect
+     * @param maxConnections Maximum number of concurrent connections
+     * @throws IOException
+     */
+    ReplayNodeServer(ReplayStore store,
+                     InetSocketAddress address,
+                     Set<InetAddress> peers,
+                     int maxConnections) throws IOException {
+        this.store = store;
+        this.peers = peers;
+        workers = new ThreadPoolExecutor(maxConnections,
+                                         maxConnections,
+                                         0,
+                                         TimeUnit.MILLISECONDS,
+                                         new SynchronousQueue<>(),
+                                         (runnable) -> {
+            Thread thread = new Thread(runnable, "Replay node connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        Thread acceptor = new Thread(this::accept, "Replay node acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (!peers.contains(socket.getInetAddress())) {
+                    logger.warning("Replay node connection refused: " + socket.getInetAddress());
+                    socket.close();
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                try {
+                    workers.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    logger.warning("Replay node connection limit reached");
+                    connections.remove(socket);
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.log(Level.WARNING, "Replay node accept failed", e);
+                }
+            }
+        }
+    }
+
+    void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            byte[] digest = new byte[ReplayTable.DIGEST_LENGTH];
+            while (true) {
+                int op = in.read();
+                if (op < 0) {
+                    break;
+                }
+                long expirationTime = in.readLong();
+                in.readFully(digest);
+                out.write(process(op, digest, expirationTime));
+                // Responses to pipelined requests are sent together.
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // Peer closed in the middle of a frame.
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) {
+                logger.log(Level.WARNING, "Replay node connection failed", e);
+            }
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    int process(int op, byte[] digest, long expirationTime) {
+        // Peers cannot keep digests longer than authorizations are valid.
+        expirationTime = Math.min(expirationTime, System.currentTimeMillis() + MAX_LIFETIME);
+        try {
+            switch (op) {
+                case OP_ADD:
+                    return store.add(digest, expirationTime) ? STATUS_SEEN : STATUS_NOT_SEEN;
+
+                case OP_CONTAINS:
+                    return store.contains(digest) ? STATUS_SEEN : STATUS_NOT_SEEN;
+
+                default:
+                    return STATUS_ERROR;
+            }
+        } catch (RuntimeException e) {
+            // For example a full replay store.
+            logger.log(Level.WARNING, "Replay node request failed", e);
+            return STATUS_ERROR;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        workers.shutdown();
+        synchronized (connections) {
+            for (Socket socket : connections) {
+                socket.close();
+            }
+        }
+    }
+}
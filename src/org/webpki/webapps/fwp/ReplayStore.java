@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+/**
+ * Storage of consumed authorizations, keyed by 32-byte (SHA-256) digests.
+ */
+interface ReplayStore {
+
+    /**
+     * Add digest to the store.
+     *
+     * @param digest SHA-256 digest
+     * @param expirationTime Time in milliseconds after which the entry may be removed
+     * @return <code>true</code> if the digest was already present, else <code>false</code>
+     */
+    boolean add(byte[] digest, long expirationTime);
+
+    /**
+     * Look-up-only check.
+     *
+     * @param digest SHA-256 digest
+     * @return <code>true</code> if the digest is present and not expired
+     */
+    boolean contains(byte[] digest);
+
+    /**
+     * Remove expired entries.
+     *
+     * Called once per tick by the replay cache sweeper.
+     *
+     * @param now Current time in milliseconds
+     * @return Number of removed entries
+     */
+    int expire(long now);
+}
@@ -0,0 +1,359 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.nio.ByteOrder;
+
+/**
+ * Replay table keyed by 32-byte (SHA-256) digests.
+ *
+ * Entries are stored in primitive open addressing (linear probing) tables
+ * which are split into independently locked segments.  Expiry is handled
+ * by a hierarchical timing wheel per segment so that each tick only deals
+ * with the entries that are actually due.
+ *
+ * A table may be bounded, in which case {@link #tryAdd(byte[], long)} refuses
+ * new digests when the segment of the digest is full.
+ */
+class ReplayTable implements ReplayStore {
+
+    static final int DIGEST_LENGTH      = 32;
+    static final int KEY_LONGS          = DIGEST_LENGTH / 8;
+
+    static final int SEGMENT_BITS       = 6;
+    static final int SEGMENTS           = 1 << SEGMENT_BITS;
+    static final int INITIAL_CAPACITY   = 1024;  // Per segment, must be a power of two
+
+    static final long TICK_MILLIS       = 1000;
+
+    // Results of tryAdd().
+    static final int ADDED              = 0;
+    static final int REPLAY             = 1;
+    static final int FULL               = 2;
+
+    // Level 0: 256 slots of one tick.  Level 1: 64 slots of 256 ticks (~4.5 hours).
+    static final int LEVEL0_BITS        = 8;
+    static final int LEVEL0_SLOTS       = 1 << LEVEL0_BITS;
+    static final int LEVEL1_SLOTS       = 64;
+
+    static final VarHandle LONG_VIEW =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * Timing wheel bucket holding digests (as longs).
+     */
+    static class Bucket {
+
+        long[] keys = new long[KEY_LONGS * 8];
+        int count;
+
+        void add(long k0, long k1, long k2, long k3) {
+            int offset = count * KEY_LONGS;
+            if (offset == keys.length) {
+                long[] expanded = new long[keys.length * 2];
+                System.arraycopy(keys, 0, expanded, 0, offset);
+                keys = expanded;
+            }
+            keys[offset] = k0;
+            keys[offset + 1] = k1;
+            keys[offset + 2] = k2;
+            keys[offset + 3] = k3;
+            count++;
+        }
+    }
+
+    static class Segment {
+
+        int mask;
+        int size;
+        long[] keys;
+        long[] expirations;  // 0 = free slot
+
+        Bucket[] level0 = new Bucket[LEVEL0_SLOTS];
+        Bucket[] level1 = new Bucket[LEVEL1_SLOTS];
+        long currentTick;
+
+        Segment(long now) {
+            allocate(INITIAL_CAPACITY);
+            currentTick = now / TICK_MILLIS;
+        }
+
+        void allocate(int capacity) {
+            mask = capacity - 1;
+            keys = new long[capacity * KEY_LONGS];
+            expirations = new long[capacity];
+        }
+
+        // Returns the slot of the key or -1 if not found.
+        int find(long k0, long k1, long k2, long k3) {
+            int slot = (int) k0 & mask;
+            while (expirations[slot] != 0) {
+                int offset = slot * KEY_LONGS;
+                if (keys[offset] == k0 && keys[offset + 1] == k1 &&
+                    keys[offset + 2] == k2 && keys[offset + 3] == k3) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void insert(long k0, long k1, long k2, long k3, long expirationTime) {
+            int slot = (int) k0 & mask;
+            while (expirations[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            int offset = slot * KEY_LONGS;
+            keys[offset] = k0;
+            keys[offset + 1] = k1;
+            keys[offset + 2] = k2;
+            keys[offset + 3] = k3;
+            expirations[slot] = expirationTime;
+        }
+
+        int add(long k0, long k1, long k2, long k3, long expirationTime, int limit) {
+            if (find(k0, k1, k2, k3) >= 0) {
+                return REPLAY;
+            }
+            if (size >= limit) {
+                return FULL;
+            }
+            // Keep the load factor below 0.75.
+            if ((size + 1) * 4L > (mask + 1) * 3L) {
+                long[] oldKeys = keys;
+                long[] oldExpirations = expirations;
+                allocate((mask + 1) * 2);
+                for (int slot = 0; slot < oldExpirations.length; slot++) {
+                    if (oldExpirations[slot] != 0) {
+                        int offset = slot * KEY_LONGS;
+                        insert(oldKeys[offset], oldKeys[offset + 1],
+                               oldKeys[offset + 2], oldKeys[offset + 3],
+                               oldExpirations[slot]);
+                    }
+                }
+            }
+            insert(k0, k1, k2, k3, expirationTime);
+            size++;
+            schedule(k0, k1, k2, k3, expirationTime / TICK_MILLIS + 1);
+            return ADDED;
+        }
+
+        // Backward shift deletion which keeps probe sequences intact.
+        void delete(int slot) {
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (expirations[next] != 0) {
+                int home = (int) keys[next * KEY_LONGS] & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    System.arraycopy(keys, next * KEY_LONGS, keys, hole * KEY_LONGS, KEY_LONGS);
+                    expirations[hole] = expirations[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            expirations[hole] = 0;
+            size--;
+        }
+
+        static Bucket getBucket(Bucket[] level, int index) {
+            Bucket bucket = level[index];
+            if (bucket == null) {
+                level[index] = bucket = new Bucket();
+            }
+            return bucket;
+        }
+
+        void schedule(long k0, long k1, long k2, long k3, long expirationTick) {
+            if (expirationTick - currentTick < LEVEL0_SLOTS) {
+                // Overdue entries are handled by the next tick.
+                long tick = Math.max(expirationTick, currentTick);
+                getBucket(level0, (int) tick & (LEVEL0_SLOTS - 1)).add(k0, k1, k2, k3);
+            } else {
+                // Far away entries are rescheduled when their level 1 slot is due.
+                long block = Math.min(expirationTick >>> LEVEL0_BITS,
+                                      (currentTick >>> LEVEL0_BITS) + LEVEL1_SLOTS - 1);
+                getBucket(level1, (int) block & (LEVEL1_SLOTS - 1)).add(k0, k1, k2, k3);
+            }
+        }
+
+        // Removes due entries and reschedules the rest.
+        int processBucket(Bucket[] level, int index, long now) {
+            Bucket bucket = level[index];
+            if (bucket == null || bucket.count == 0) {
+                return 0;
+            }
+            // Rescheduling may add entries to the same level.
+            level[index] = null;
+            int removed = 0;
+            for (int i = 0; i < bucket.count; i++) {
+                int offset = i * KEY_LONGS;
+                long k0 = bucket.keys[offset];
+                long k1 = bucket.keys[offset + 1];
+                long k2 = bucket.keys[offset + 2];
+                long k3 = bucket.keys[offset + 3];
+                int slot = find(k0, k1, k2, k3);
+                if (slot < 0) {
+                    continue;
+                }
+                if (expirations[slot] < now) {
+                    delete(slot);
+                    removed++;
+                } else {
+                    schedule(k0, k1, k2, k3, expirations[slot] / TICK_MILLIS + 1);
+                }
+            }
+            // Reuse moderately sized buckets.
+            if (level[index] == null && bucket.keys.length <= KEY_LONGS * 1024) {
+                bucket.count = 0;
+                level[index] = bucket;
+            }
+            return removed;
+        }
+
+        int expire(long now) {
+            int removed = 0;
+            long nowTick = now / TICK_MILLIS;
+            while (currentTick <= nowTick) {
+                if ((currentTick & (LEVEL0_SLOTS - 1)) == 0) {
+                    removed += processBucket(level1,
+                                             (int) (currentTick >>> LEVEL0_BITS) &
+                                                 (LEVEL1_SLOTS - 1),
+                                             now);
+                }
+                removed += processBucket(level0, (int) currentTick & (LEVEL0_SLOTS - 1), now);
+                currentTick++;
+            }
+            return removed;
+        }
+    }
+
+    Segment[] segments = new Segment[SEGMENTS];
+
+    // Entries per segment for tryAdd().
+    int segmentLimit = Integer.MAX_VALUE;
+
+    ReplayTable() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(now);
+        }
+    }
+
+    /**
+     * Create a bounded table.
+     *
+     * @param maxEntries Approximate maximum number of entries
+     */
+    ReplayTable(int maxEntries) {
+        this();
+        segmentLimit = Math.max(1, maxEntries / SEGMENTS);
+    }
+
+    boolean isBounded() {
+        return segmentLimit != Integer.MAX_VALUE;
+    }
+
+    static long getKeyLong(byte[] digest, int index) {
+        return (long) LONG_VIEW.get(digest, index * 8);
+    }
+
+    Segment getSegment(long k1) {
+        return segments[(int) (k1 >>> (64 - SEGMENT_BITS))];
+    }
+
+    static void checkDigest(byte[] digest) {
+        if (digest.length != DIGEST_LENGTH) {
+            throw new IllegalArgumentException("Digest length must be " + DIGEST_LENGTH);
+        }
+    }
+
+    /**
+     * Add digest to the table.
+     */
+    @Override
+    public boolean add(byte[] digest, long expirationTime) {
+        checkDigest(digest);
+        long k0 = getKeyLong(digest, 0);
+        long k1 = getKeyLong(digest, 1);
+        long k2 = getKeyLong(digest, 2);
+        long k3 = getKeyLong(digest, 3);
+        Segment segment = getSegment(k1);
+        synchronized (segment) {
+            return segment.add(k0, k1, k2, k3, Math.max(expirationTime, 1),
+                               Integer.MAX_VALUE) == REPLAY;
+        }
+    }
+
+    /**
+     * Add digest to the table unless its segment is full.
+     *
+     * @return {@link #ADDED}, {@link #REPLAY} or {@link #FULL}
+     */
+    int tryAdd(byte[] digest, long expirationTime) {
+        checkDigest(digest);
+        long k0 = getKeyLong(digest, 0);
+        long k1 = getKeyLong(digest, 1);
+        long k2 = getKeyLong(digest, 2);
+        long k3 = getKeyLong(digest, 3);
+        Segment segment = getSegment(k1);
+        synchronized (segment) {
+            return segment.add(k0, k1, k2, k3, Math.max(expirationTime, 1), segmentLimit);
+        }
+    }
+
+    @Override
+    public boolean contains(byte[] digest) {
+        checkDigest(digest);
+        long k0 = getKeyLong(digest, 0);
+        long k1 = getKeyLong(digest, 1);
+        long k2 = getKeyLong(digest, 2);
+        long k3 = getKeyLong(digest, 3);
+        Segment segment = getSegment(k1);
+        synchronized (segment) {
+            return segment.find(k0, k1, k2, k3) >= 0;
+        }
+    }
+
+    /**
+     * Remove expired entries.
+     *
+     * Missed ticks are caught up.
+     */
+    @Override
+    public int expire(long now) {
+        int removed = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                removed += segment.expire(now);
+            }
+        }
+        return removed;
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+}
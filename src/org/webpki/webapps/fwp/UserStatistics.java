@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind user activity counters.
+ *
+ * Increments are collected in memory and periodically added to the USERS
+ * table by batched updates, rather than updating the same rows for every
+ * request.  These are statistics: an increment racing with the removal of
+ * an idle counter may be lost.
+ */
+class UserStatistics {
+
+    static Logger logger = Logger.getLogger(UserStatistics.class.getName());
+
+    static final long FLUSH_INTERVAL = 10000;
+
+    enum Counter {
+        FWP_STEPS ("FWPSteps"),
+        WEBAUTHN  ("WebAuthn"),
+        BASIC_BUY ("BasicBuy");
+
+        String column;
+
+        Counter(String column) {
+            this.column = column;
+        }
+    }
+
+    static final UserStatistics INSTANCE = new UserStatistics();
+
+    @SuppressWarnings("unchecked")
+    ConcurrentHashMap<String, LongAdder>[] counters =
+            new ConcurrentHashMap[Counter.values().length];
+
+    Thread flusher;
+
+    private UserStatistics() {
+        for (Counter counter : Counter.values()) {
+            counters[counter.ordinal()] = new ConcurrentHashMap<>();
+        }
+    }
+
+    void increment(Counter counter, String userId) {
+        counters[counter.ordinal()].computeIfAbsent(userId, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Write pending increments to the database.
+     *
+     * @return Number of updated counters
+     */
+    synchronized int flush() throws SQLException {
+        int updates = 0;
+        try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
+            for (Counter counter : Counter.values()) {
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "UPDATE USERS SET " + counter.column + " = " + counter.column +
+                        " + ? WHERE UserId = ?;");) {
+                    ArrayList<Map.Entry<String, Long>> batched = new ArrayList<>();
+                    for (Map.Entry<String, LongAdder> entry :
+                            counters[counter.ordinal()].entrySet()) {
+                        long increment = entry.getValue().sumThenReset();
+                        if (increment == 0) {
+                            // Idle since the previous flush.
+                            counters[counter.ordinal()].remove(entry.getKey(), entry.getValue());
+                            continue;
+                        }
+                        stmt.setLong(1, increment);
+                        stmt.setString(2, entry.getKey());
+                        stmt.addBatch();
+                        batched.add(Map.entry(entry.getKey(), increment));
+                    }
+                    if (!batched.isEmpty()) {
+                        try {
+                            stmt.executeBatch();
+                        } catch (SQLException e) {
+                            // Keep the increments that were not applied for the next
+                            // attempt.  Without update counts nothing is known to be applied.
+                            int[] updateCounts = e instanceof BatchUpdateException ?
+                                    ((BatchUpdateException) e).getUpdateCounts() : null;
+                            if (updateCounts == null) {
+                                updateCounts = new int[0];
+                            }
+                            for (int i = 0; i < batched.size(); i++) {
+                                if (i < updateCounts.length &&
+                                    updateCounts[i] != Statement.EXECUTE_FAILED) {
+                                    continue;
+                                }
+                                Map.Entry<String, Long> increment = batched.get(i);
+                                counters[counter.ordinal()].computeIfAbsent(
+                                        increment.getKey(), k -> new LongAdder())
+                                                .add(increment.getValue());
+                            }
+                            throw e;
+                        }
+                        updates += batched.size();
+                    }
+                }
+            }
+        }
+        return updates;
+    }
+
+    void start() {
+        flusher = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(FLUSH_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        flush();
+                    } catch (SQLException e) {
+                        logger.log(Level.WARNING, "User statistics flush failed", e);
+                    }
+                }
+            }
+
+        }, "UserStatistics flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Stops the flusher and writes what remains.
+    void shutdown() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.interrupt();
+        try {
+            flush();
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Final user statistics flush failed", e);
+        }
+    }
+}
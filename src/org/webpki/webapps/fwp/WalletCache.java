@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import java.io.IOException;
+
+import java.security.GeneralSecurityException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of per-user wallet data.
+ *
+ * Entries expire after a fixed time and the number of cached users is
+ * bounded.  Concurrent misses for the same user share a single database
+ * load.  Enrollment and deletion of cards on this node invalidate the
+ * user's entries; the TTL bounds the staleness caused by other nodes.
+ *
+ * Cached data is shared and must not be modified by callers.
+ */
+class WalletCache<V> {
+
+    // Longest time to wait for another caller's load.
+    static final long LOAD_TIMEOUT = 30000;
+
+    interface Loader<V> {
+        V load(String userId, Connection connection)
+                throws IOException, SQLException, GeneralSecurityException;
+    }
+
+    static class Entry<V> {
+        CompletableFuture<V> value = new CompletableFuture<>();
+        long expirationTime;  // Valid when the value is done
+    }
+
+    // Non-null if wallet data is cached.
+    static WalletCache<ArrayList<DataBaseOperations.VirtualCard>> virtualCards;
+    static WalletCache<DataBaseOperations.CoreClientData> coreClientData;
+
+    String name;
+    Loader<V> loader;
+    long ttl;
+    int maxUsers;
+
+    ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    LongAdder hits = new LongAdder();
+    LongAdder loads = new LongAdder();
+    LongAdder evictions = new LongAdder();
+
+    WalletCache(String name, Loader<V> loader, long ttl, int maxUsers) {
+        this.name = name;
+        this.loader = loader;
+        this.ttl = ttl;
+        this.maxUsers = maxUsers;
+    }
+
+    /**
+     * Enable caching.
+     *
+     * @param ttl Time in milliseconds until cached data is reloaded
+     * @param maxUsers Maximum number of users per cache
+     */
+    static void configure(long ttl, int maxUsers) {
+        virtualCards = new WalletCache<>("virtualCards",
+                                         DataBaseOperations::getVirtualCards,
+                                         ttl,
+                                         maxUsers);
+        coreClientData = new WalletCache<>("coreClientData",
+                                           DataBaseOperations::getCoreClientData,
+                                           ttl,
+                                           maxUsers);
+    }
+
+    static ArrayList<DataBaseOperations.VirtualCard> getVirtualCards(String userId)
+            throws IOException, SQLException, GeneralSecurityException {
+        WalletCache<ArrayList<DataBaseOperations.VirtualCard>> cache = virtualCards;
+        if (cache == null) {
+            try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
+                return DataBaseOperations.getVirtualCards(userId, connection);
+            }
+        }
+        return cache.get(userId);
+    }
+
+    static DataBaseOperations.CoreClientData getCoreClientData(String userId)
+            throws IOException, SQLException, GeneralSecurityException {
+        WalletCache<DataBaseOperations.CoreClientData> cache = coreClientData;
+        if (cache == null) {
+            try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
+                return DataBaseOperations.getCoreClientData(userId, connection);
+            }
+        }
+        return cache.get(userId);
+    }
+
+    static boolean hasVirtualCards(String userId) throws SQLException {
+        WalletCache<ArrayList<DataBaseOperations.VirtualCard>> cache = virtualCards;
+        if (cache != null) {
+            ArrayList<DataBaseOperations.VirtualCard> cached = cache.getIfPresent(userId);
+            if (cached != null) {
+                return !cached.isEmpty();
+            }
+        }
+        try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
+            return DataBaseOperations.getVirtualCardCount(userId, connection) > 0;
+        }
+    }
+
+    static void invalidate(String userId) {
+        if (virtualCards != null) {
+            virtualCards.entries.remove(userId);
+            coreClientData.entries.remove(userId);
+        }
+    }
+
+    V get(String userId) throws IOException, SQLException, GeneralSecurityException {
+        while (true) {
+            Entry<V> entry = entries.get(userId);
+            if (entry == null) {
+                Entry<V> newEntry = new Entry<>();
+                entry = entries.putIfAbsent(userId, newEntry);
+                if (entry == null) {
+                    return load(userId, newEntry);
+                }
+            }
+            if (entry.value.isDone() && entry.expirationTime < System.currentTimeMillis()) {
+                entries.remove(userId, entry);
+                continue;
+            }
+            hits.increment();
+            return await(userId, entry);
+        }
+    }
+
+    V getIfPresent(String userId) {
+        Entry<V> entry = entries.get(userId);
+        if (entry == null || !entry.value.isDone() || entry.value.isCompletedExceptionally() ||
+            entry.expirationTime < System.currentTimeMillis()) {
+            return null;
+        }
+        hits.increment();
+        return entry.value.join();
+    }
+
+    V load(String userId, Entry<V> entry)
+            throws IOException, SQLException, GeneralSecurityException {
+        loads.increment();
+        V value;
+        try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
+            value = loader.load(userId, connection);
+        } catch (Throwable e) {
+            // Waiting callers get the error, later ones try again.
+            entries.remove(userId, entry);
+            entry.value.completeExceptionally(e);
+            throw e;
+        }
+        entry.expirationTime = System.currentTimeMillis() + ttl;
+        entry.value.complete(value);
+        if (entries.size() > maxUsers) {
+            evict();
+        }
+        return value;
+    }
+
+    // Removes expired entries, then arbitrary ones until within bounds.
+    void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry<V>>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<V> entry = iterator.next().getValue();
+            if (entry.value.isDone() && entry.expirationTime < now) {
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+        iterator = entries.entrySet().iterator();
+        while (entries.size() > maxUsers && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    V await(String userId, Entry<V> entry)
+            throws IOException, SQLException, GeneralSecurityException {
+        try {
+            return entry.value.get(LOAD_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (TimeoutException e) {
+            // A hanging load must not block the user forever; later callers try again.
+            entries.remove(userId, entry);
+            throw new IOException("Wallet data load timed out", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Wallet cache " + name + ": users=" + entries.size() +
+               ", hits=" + hits.sum() +
+               ", loads=" + loads.sum() +
+               ", evictions=" + evictions.sum();
+    }
+}
@@ -20,7 +20,6 @@ import java.io.IOException;
 
 import java.security.GeneralSecurityException;
 
-import java.sql.Connection;
 import java.sql.SQLException;
 
 import java.util.logging.Logger;
@@ -32,6 +31,8 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.webpki.cbor.CBORObject;
+
 import org.webpki.json.JSONObjectReader;
 import org.webpki.json.JSONObjectWriter;
 import org.webpki.json.JSONOutputFormats;
@@ -56,6 +57,7 @@ public class WalletCore {
 
     static final String JSON_CONTENT_TYPE        = "application/json";
     static final String SVG_CONTENT_TYPE         = "image/svg+xml";
+    static final String CBOR_CONTENT_TYPE        = "application/cbor";
     
     // Used by the client and server to keep sync
     static final String PHASE_JSON               = "phase";
@@ -169,9 +171,7 @@ public class WalletCore {
         if (claimedUserId == null) {
             return false;
         }
-        try (Connection connection = ApplicationService.jdbcDataSource.getConnection();) {
-            return !DataBaseOperations.getVirtualCards(claimedUserId, connection).isEmpty();
-        }
+        return WalletCache.hasVirtualCards(claimedUserId);
     }
 
     static JSONObjectReader getJSON(HttpServletRequest request) throws IOException {
@@ -202,6 +202,21 @@ public class WalletCore {
         serverOutputStream.flush();
     }
     
+    static void returnCBOR(HttpServletResponse response, CBORObject cbor) throws IOException {
+        if (ApplicationService.logging) {
+            logger.info("To be returned: " + cbor.toString());
+        }
+        byte[] rawData = cbor.encode();
+        response.setContentType(CBOR_CONTENT_TYPE);
+        response.setHeader(HTTP_PRAGMA, "No-Cache");
+        response.setDateHeader(HTTP_EXPIRES, 0);
+        // Explicit length keeps machine-to-machine connections alive
+        response.setContentLength(rawData.length);
+        ServletOutputStream serverOutputStream = response.getOutputStream();
+        serverOutputStream.write(rawData);
+        serverOutputStream.flush();
+    }
+    
     static void returnSVG(HttpServletResponse response, String svg) throws IOException {
         byte[] rawData = UTF8.encode(svg);
         response.setContentType(SVG_CONTENT_TYPE);
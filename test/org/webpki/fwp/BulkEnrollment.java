@@ -0,0 +1,344 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.fwp;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import java.nio.charset.StandardCharsets;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.webpki.cbor.CBORDecoder;
+
+import org.webpki.crypto.HashAlgorithms;
+
+import org.webpki.json.JSONArrayReader;
+import org.webpki.json.JSONObjectReader;
+import org.webpki.json.JSONParser;
+
+/**
+ * Bulk import of FWP enrollments.
+ *
+ * The input file holds one JSON object per line:
+ * <pre>
+ * {"userId": "UUID",
+ *  "cardHolder": "Name",
+ *  "attestationObject": "Base64Url",
+ *  "cards": [{"accountId": "Account", "paymentNetworkId": "URL"}...]}
+ * </pre>
+ * The file is read in a streaming fashion while attestations are parsed and
+ * verified by a pool of threads.  Verified records replace existing users
+ * (like <code>InitiateUserAccountSP</code>) using multi-row inserts into
+ * USERS and PAYMENT_CARDS, committed after a configurable number of records.
+ * Records that fail are reported by line number and skipped.  Any other
+ * failure terminates the import with exit status 1.
+ *
+ * A running server does not notice imported users immediately: card index
+ * entries (see <code>card-index-ttl</code>) and cached wallet data (see
+ * <code>wallet-cache-ttl</code>) of replaced users stay in use until they expire.
+ */
+public class BulkEnrollment {
+
+    static final String USER_ID             = "userId";
+    static final String CARD_HOLDER         = "cardHolder";
+    static final String ATTESTATION_OBJECT  = "attestationObject";
+    static final String CARDS               = "cards";
+    static final String ACCOUNT_ID          = "accountId";
+    static final String PAYMENT_NETWORK_ID  = "paymentNetworkId";
+
+    static final String CLIENT_IP_ADDRESS   = "bulk-import";
+
+    static final int ROWS_PER_INSERT        = 500;
+    static final int QUEUE_SIZE             = 10000;
+    static final long PROGRESS_INTERVAL     = 10000;
+
+    // Marks the end of verified records
+    static final Enrollment END = new Enrollment(0, null);
+
+    static class Card {
+        String accountId;
+        String paymentNetworkId;
+    }
+
+    static class Enrollment {
+
+        long lineNumber;
+        String line;
+
+        String userId;
+        String cardHolder;
+        byte[] credentialId;
+        byte[] rawCosePublicKey;
+        ArrayList<Card> cards = new ArrayList<>();
+
+        Enrollment(long lineNumber, String line) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+        }
+
+        void verify(byte[] rpIdHash) throws IOException {
+            JSONObjectReader json = JSONParser.parse(line);
+            line = null;
+            userId = json.getString(USER_ID);
+            cardHolder = json.getString(CARD_HOLDER);
+            byte[] attestationObject = json.getBinary(ATTESTATION_OBJECT);
+            byte[] authData = CBORDecoder.decode(attestationObject)
+                    .getMap().get(FWPCrypto.AUTH_DATA_CBOR).getBytes();
+            if (!Arrays.equals(authData, 0, rpIdHash.length, rpIdHash, 0, rpIdHash.length)) {
+                throw new IOException("RP ID mismatch");
+            }
+            FWPCrypto.UserCredential userCredential =
+                    FWPCrypto.extractUserCredential(attestationObject);
+            credentialId = userCredential.credentialId;
+            rawCosePublicKey = userCredential.rawCosePublicKey;
+            JSONArrayReader cardArray = json.getArray(CARDS);
+            while (cardArray.hasMore()) {
+                JSONObjectReader cardJson = cardArray.getObject();
+                Card card = new Card();
+                card.accountId = cardJson.getString(ACCOUNT_ID);
+                card.paymentNetworkId = cardJson.getString(PAYMENT_NETWORK_ID);
+                cards.add(card);
+            }
+            json.checkForUnread();
+        }
+    }
+
+    String rpId;
+    int commitSize;
+
+    ArrayBlockingQueue<Enrollment> verified = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    Thread writer;
+
+    AtomicLong read = new AtomicLong();
+    AtomicLong failed = new AtomicLong();
+    AtomicLong enrolled = new AtomicLong();
+
+    long startTime = System.currentTimeMillis();
+
+    BulkEnrollment(String rpId, int commitSize) {
+        this.rpId = rpId;
+        this.commitSize = commitSize;
+    }
+
+    static String valueList(int rows, int columns) {
+        StringBuilder values = new StringBuilder();
+        for (int row = 0; row < rows; row++) {
+            values.append(row == 0 ? "(" : ",(");
+            for (int column = 0; column < columns; column++) {
+                values.append(column == 0 ? "?" : ",?");
+            }
+            values.append(')');
+        }
+        return values.toString();
+    }
+
+    // Replaces the users of a chunk, the cards follow through the cascade.
+    void write(ArrayList<Enrollment> chunk, Connection connection) throws SQLException {
+        // The last record of a user wins.
+        LinkedHashMap<String, Enrollment> users = new LinkedHashMap<>();
+        for (Enrollment record : chunk) {
+            users.remove(record.userId);
+            users.put(record.userId, record);
+        }
+        StringBuilder sql = new StringBuilder("DELETE FROM USERS WHERE UserId IN (");
+        for (int q = 0; q < users.size(); q++) {
+            sql.append(q == 0 ? "?" : ",?");
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(sql.append(");").toString());) {
+            int index = 1;
+            for (String userId : users.keySet()) {
+                stmt.setString(index++, userId);
+            }
+            stmt.executeUpdate();
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "INSERT INTO USERS(UserId, CardHolder, CredentialId, RpId, PublicKey, " +
+                    "S256KeyHash, ClientIpAddress) VALUES " +
+                    valueList(users.size(), 7) + ";");) {
+            int index = 1;
+            for (Enrollment record : users.values()) {
+                stmt.setString(index++, record.userId);
+                stmt.setString(index++, record.cardHolder);
+                stmt.setBytes(index++, record.credentialId);
+                stmt.setString(index++, rpId);
+                stmt.setBytes(index++, record.rawCosePublicKey);
+                stmt.setBytes(index++, HashAlgorithms.SHA256.digest(record.rawCosePublicKey));
+                stmt.setString(index++, CLIENT_IP_ADDRESS);
+            }
+            stmt.executeUpdate();
+        }
+        ArrayList<String[]> cards = new ArrayList<>();
+        for (Enrollment record : users.values()) {
+            for (Card card : record.cards) {
+                cards.add(new String[] {record.userId, card.accountId, card.paymentNetworkId});
+            }
+        }
+        for (int start = 0; start < cards.size(); start += ROWS_PER_INSERT) {
+            int rows = Math.min(ROWS_PER_INSERT, cards.size() - start);
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "INSERT INTO PAYMENT_CARDS(UserId, AccountId, PaymentNetworkId) VALUES " +
+                        valueList(rows, 3) + ";");) {
+                int index = 1;
+                for (String[] card : cards.subList(start, start + rows)) {
+                    for (String column : card) {
+                        stmt.setString(index++, column);
+                    }
+                }
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    // Runs in the writer thread until the end marker.
+    void store(String jdbcUrl, String dbUser, String dbPassword)
+            throws SQLException, InterruptedException {
+        try (Connection connection = DriverManager.getConnection(jdbcUrl, dbUser, dbPassword);) {
+            connection.setAutoCommit(false);
+            ArrayList<Enrollment> chunk = new ArrayList<>();
+            int uncommitted = 0;
+            while (true) {
+                Enrollment record = verified.take();
+                if (record != END) {
+                    chunk.add(record);
+                }
+                if (chunk.size() == Math.min(ROWS_PER_INSERT, commitSize) ||
+                    (record == END && !chunk.isEmpty())) {
+                    write(chunk, connection);
+                    uncommitted += chunk.size();
+                    chunk.clear();
+                }
+                if (uncommitted >= commitSize || (record == END && uncommitted > 0)) {
+                    connection.commit();
+                    enrolled.addAndGet(uncommitted);
+                    uncommitted = 0;
+                }
+                if (record == END) {
+                    return;
+                }
+            }
+        }
+    }
+
+    void progress() {
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        System.out.println(String.format("Read=%d, enrolled=%d, failed=%d, %.0f enrollments/s",
+                                         read.get(),
+                                         enrolled.get(),
+                                         failed.get(),
+                                         enrolled.get() * 1000.0 / elapsed));
+    }
+
+    void run(String fileName, int threads, String jdbcUrl, String dbUser, String dbPassword)
+            throws Exception {
+        byte[] rpIdHash = HashAlgorithms.SHA256.digest(rpId.getBytes(StandardCharsets.UTF_8));
+        Exception[] writerError = new Exception[1];
+        writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    store(jdbcUrl, dbUser, dbPassword);
+                } catch (Exception e) {
+                    writerError[0] = e;
+                }
+            }
+
+        }, "BulkEnrollment writer");
+        writer.start();
+        // A full queue makes the reader verify records itself which limits memory use.
+        ThreadPoolExecutor verifiers = new ThreadPoolExecutor(threads,
+                                                              threads,
+                                                              0,
+                                                              TimeUnit.MILLISECONDS,
+                                                              new ArrayBlockingQueue<>(QUEUE_SIZE),
+                                                              new ThreadPoolExecutor.CallerRunsPolicy());
+        long lastProgress = System.currentTimeMillis();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(fileName), StandardCharsets.UTF_8));) {
+            String line;
+            while ((line = reader.readLine()) != null && writer.isAlive()) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                Enrollment record = new Enrollment(read.incrementAndGet(), line);
+                verifiers.execute(() -> {
+                    try {
+                        record.verify(rpIdHash);
+                        // Give up if the writer has failed.
+                        while (!verified.offer(record, 1000, TimeUnit.MILLISECONDS)) {
+                            if (!writer.isAlive()) {
+                                return;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        System.out.println("Enrollment " + record.lineNumber + " failed: " +
+                                           e.getMessage());
+                    }
+                });
+                if (System.currentTimeMillis() - lastProgress > PROGRESS_INTERVAL) {
+                    lastProgress = System.currentTimeMillis();
+                    progress();
+                }
+            }
+        } finally {
+            verifiers.shutdown();
+            verifiers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (writer.isAlive()) {
+            verified.put(END);
+        }
+        writer.join();
+        progress();
+        if (writerError[0] != null) {
+            throw writerError[0];
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length != 7) {
+                throw new IOException("Parameters: file rpId jdbcUrl user password " +
+                                      "commitSize threads");
+            }
+            new BulkEnrollment(args[1], Integer.parseInt(args[5]))
+                .run(args[0], Integer.parseInt(args[6]), args[2], args[3], args[4]);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
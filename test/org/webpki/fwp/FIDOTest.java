@@ -23,15 +23,29 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 
+import java.math.BigInteger;
+
 import java.net.URL;
 
 import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
 import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+
+import java.security.spec.X509EncodedKeySpec;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HexFormat;
+import java.util.List;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -44,6 +58,7 @@ import org.webpki.cbor.CBORObject;
 import org.webpki.cbor.CBORPublicKey;
 import org.webpki.cbor.CBORString;
 
+import org.webpki.crypto.AsymSignatureAlgorithms;
 import org.webpki.crypto.CustomCryptoProvider;
 import org.webpki.crypto.HashAlgorithms;
 
@@ -189,6 +204,13 @@ public class FIDOTest {
     byte[] buildGoodPaymenRequest(String networkOptions,
                                   PrivateKey privateKey) throws IOException,
                                                                 GeneralSecurityException {
+        return buildGoodPaymenRequest(networkOptions, privateKey, false);
+    }
+    
+    byte[] buildGoodPaymenRequest(String networkOptions,
+                                  PrivateKey privateKey,
+                                  boolean ctap2) throws IOException,
+                                                        GeneralSecurityException {
         return FWPCrypto.directSign(new FWPAssertionBuilder()
                                         .setPaymentRequest(getPaymentRequest(true))
                                         .setPayeeHost("spaceshop.com")
@@ -201,7 +223,7 @@ public class FIDOTest {
                                     privateKey, 
                                     "https://mybank.com",
                                     FWPCrypto.FLAG_UP + FWPCrypto.FLAG_UV,
-                                    false);
+                                    ctap2);
     }
     
     @Test
@@ -268,6 +290,454 @@ public class FIDOTest {
         }
     }
     
+    @Test
+    public void BatchDecodeAssertions() throws Exception {
+        KeyPair keyPair = readKey("p256");
+        fwpPreSigner = new FWPCrypto.FWPPreSigner(
+             CBORPublicKey.convert(keyPair.getPublic()).encode());
+        byte[] goodAssertion = buildGoodPaymenRequest(null, keyPair.getPrivate());
+        byte[] badAssertion = Arrays.copyOf(goodAssertion, goodAssertion.length);
+        // Corrupt the last byte (belonging to the authorization container).
+        badAssertion[badAssertion.length - 1] ^= 0x01;
+        List<FWPAssertionDecoder.DecodingResult> results = 
+                FWPAssertionDecoder.decodeAll(Arrays.asList(goodAssertion,
+                                                            badAssertion,
+                                                            goodAssertion));
+        assertTrue("size", results.size() == 3);
+        assertTrue("good1", results.get(0).isValid());
+        assertTrue("bad", !results.get(1).isValid() && results.get(1).getFailure() != null);
+        assertTrue("good2", results.get(2).getDecoder().getAccountId()
+                .equals("FR7630002111110020050014382"));
+    }
+    
+    byte[] buildEd25519PaymentRequest(KeyPair keyPair) throws Exception {
+        fwpPreSigner = new FWPCrypto.FWPPreSigner(
+             CBORPublicKey.convert(keyPair.getPublic()).encode());
+        return buildGoodPaymenRequest(null, keyPair.getPrivate());
+    }
+
+    @Test
+    public void BatchDecodeEd25519() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("Ed25519");
+        KeyPair keyPair1 = generator.generateKeyPair();
+        KeyPair keyPair2 = generator.generateKeyPair();
+        ArrayList<byte[]> fwpAssertions = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            fwpAssertions.add(buildEd25519PaymentRequest(i % 2 == 0 ? keyPair1 : keyPair2));
+        }
+        KeyPair p256 = readKey("p256");
+        fwpPreSigner = new FWPCrypto.FWPPreSigner(
+             CBORPublicKey.convert(p256.getPublic()).encode());
+        fwpAssertions.add(buildGoodPaymenRequest(null, p256.getPrivate()));
+        for (FWPAssertionDecoder.DecodingResult result : 
+                FWPAssertionDecoder.decodeAll(fwpAssertions)) {
+            assertTrue("good", result.isValid());
+        }
+        // Replace a signature with a signature over other data.
+        CBORMap tampered = CBORDecoder.decode(fwpAssertions.get(3)).getMap();
+        CBORMap authorization = 
+                tampered.get(FWPElements.AUTHORIZATION.cborLabel).getMap();
+        authorization.remove(FWPCrypto.AS_SIGNATURE);
+        authorization.set(FWPCrypto.AS_SIGNATURE, 
+                          CBORDecoder.decode(fwpAssertions.get(1)).getMap()
+                              .get(FWPElements.AUTHORIZATION.cborLabel).getMap()
+                                  .get(FWPCrypto.AS_SIGNATURE));
+        fwpAssertions.set(3, tampered.encode());
+        List<FWPAssertionDecoder.DecodingResult> results = 
+                FWPAssertionDecoder.decodeAll(fwpAssertions);
+        for (int i = 0; i < results.size(); i++) {
+            assertTrue("batch", results.get(i).isValid() == (i != 3));
+        }
+        assertTrue("culprit", results.get(3).getFailure() != null);
+    }
+
+    static byte[] encodePoint(FWPEd25519BatchVerifier.Point point) {
+        int[] zInverse = FWPField25519.create();
+        FWPField25519.invert(zInverse, point.z);
+        int[] x = FWPField25519.create();
+        int[] y = FWPField25519.create();
+        FWPField25519.mul(x, point.x, zInverse);
+        FWPField25519.mul(y, point.y, zInverse);
+        byte[] encoded = FWPField25519.toBytes(y);
+        if (FWPField25519.isNegative(x)) {
+            encoded[31] |= (byte) 0x80;
+        }
+        return encoded;
+    }
+
+    static PublicKey ed25519PublicKey(byte[] rawKey) throws Exception {
+        byte[] spki = HexFormat.of().parseHex("302a300506032b6570032100");
+        spki = Arrays.copyOf(spki, spki.length + rawKey.length);
+        System.arraycopy(rawKey, 0, spki, spki.length - rawKey.length, rawKey.length);
+        return KeyFactory.getInstance("Ed25519").generatePublic(new X509EncodedKeySpec(spki));
+    }
+
+    static FWPCrypto.FidoSignature ed25519Signature(PublicKey publicKey,
+                                                    byte[] message,
+                                                    byte[] signature) {
+        // The message is treated as authenticator data with an empty hash.
+        FWPCrypto.FidoSignature fidoSignature = new FWPCrypto.FidoSignature();
+        fidoSignature.algorithm = AsymSignatureAlgorithms.ED25519;
+        fidoSignature.publicKey = publicKey;
+        fidoSignature.authenticatorData = message;
+        fidoSignature.signedDataHash = new byte[0];
+        fidoSignature.signature = signature;
+        return fidoSignature;
+    }
+
+    static boolean jcaVerify(FWPCrypto.FidoSignature fidoSignature) throws Exception {
+        Signature jca = Signature.getInstance("Ed25519");
+        jca.initVerify(fidoSignature.publicKey);
+        jca.update(fidoSignature.authenticatorData);
+        jca.update(fidoSignature.signedDataHash);
+        try {
+            return jca.verify(fidoSignature.signature);
+        } catch (SignatureException e) {
+            // Invalid R encoding.
+            return false;
+        }
+    }
+
+    // RFC 8032, 7.1 TEST 1, TEST 2 and TEST 3: public key, message, signature.
+    static final String[][] RFC8032_VECTORS = {
+        {"d75a980182b10ab7d54bfed3c964073a0ee172f3daa62325af021a68f707511a",
+         "",
+         "e5564300c360ac729086e2cc806e828a84877f1eb8e5d974d873e065224901555fb8821590a33bacc61e39701cf9b46bd25bf5f0595bbe24655141438e7a100b"},
+        {"3d4017c3e843895a92b70aa74d1b7ebc9c982ccf2ec4968cc0cd55f12af4660c",
+         "72",
+         "92a009a9f0d4cab8720e820b5f642540a2b27b5416503f8fb3762223ebdb69da085ac1e43e15996e458f3613d0f11d8c387b2eaeb4302aeeb00d291612bb0c00"},
+        {"fc51cd8e6218a1a38da47ed00230f0580816ed13ba3303ac5deb911548908025",
+         "af82",
+         "6291d657deec24024827e69c3abe01a30ce548a284743a445e3680d7db5ac3ac18ff9b538d16f290ae67f760984dc6594a7c15e9716ed28dc027beceea1ec40a"}};
+
+    @Test
+    public void Ed25519TestVectors() throws Exception {
+        ArrayList<FWPCrypto.FidoSignature> vectors = new ArrayList<>();
+        for (String[] vector : RFC8032_VECTORS) {
+            FWPCrypto.FidoSignature fidoSignature = ed25519Signature(
+                    ed25519PublicKey(HexFormat.of().parseHex(vector[0])),
+                    HexFormat.of().parseHex(vector[1]),
+                    HexFormat.of().parseHex(vector[2]));
+            assertTrue("jca", jcaVerify(fidoSignature));
+            assertTrue("single", FWPEd25519BatchVerifier.verify(List.of(fidoSignature)));
+            fidoSignature.validate();
+            vectors.add(fidoSignature);
+        }
+        assertTrue("batch", FWPEd25519BatchVerifier.verify(vectors));
+        FWPCrypto.FidoSignature tampered = vectors.get(2);
+        tampered.authenticatorData = HexFormat.of().parseHex("af83");
+        assertTrue("jca tampered", !jcaVerify(tampered));
+        assertTrue("batch tampered", !FWPEd25519BatchVerifier.verify(vectors));
+    }
+
+    @Test
+    public void Ed25519CrossCheck() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("Ed25519");
+        SecureRandom random = new SecureRandom();
+        ArrayList<FWPCrypto.FidoSignature> signatures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            KeyPair keyPair = generator.generateKeyPair();
+            byte[] message = new byte[i * 7];
+            random.nextBytes(message);
+            Signature signer = Signature.getInstance("Ed25519");
+            signer.initSign(keyPair.getPrivate());
+            signer.update(message);
+            signatures.add(ed25519Signature(keyPair.getPublic(), message, signer.sign()));
+        }
+        assertTrue("batch", FWPEd25519BatchVerifier.verify(signatures));
+        for (int i = 0; i < signatures.size(); i++) {
+            FWPCrypto.FidoSignature fidoSignature = signatures.get(i);
+            byte[] signature = fidoSignature.signature.clone();
+            // Corrupt R, S or the message.
+            switch (i % 3) {
+                case 0 -> fidoSignature.signature[i % 32]++;
+                case 1 -> fidoSignature.signature[32 + i % 31]++;
+                default -> fidoSignature.signedDataHash = new byte[] {(byte) i};
+            }
+            boolean jca = jcaVerify(fidoSignature);
+            assertTrue("jca", !jca);
+            assertTrue("single", FWPEd25519BatchVerifier.verify(List.of(fidoSignature)) == jca);
+            assertTrue("batch", !FWPEd25519BatchVerifier.verify(signatures));
+            fidoSignature.signature = signature;
+            fidoSignature.signedDataHash = new byte[0];
+            assertTrue("restored", jcaVerify(fidoSignature));
+        }
+        assertTrue("batch restored", FWPEd25519BatchVerifier.verify(signatures));
+    }
+
+    @Test
+    public void Ed25519SmallOrder() throws Exception {
+        KeyPair keyPair = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+        // Private scalar from the seed (RFC 8032, 5.1.5).
+        byte[] seed = Arrays.copyOfRange(keyPair.getPrivate().getEncoded(), 16, 48);
+        byte[] h = MessageDigest.getInstance("SHA-512").digest(seed);
+        h[0] &= (byte) 0xf8;
+        h[31] &= 0x7f;
+        h[31] |= 0x40;
+        BigInteger a = FWPEd25519BatchVerifier.decodeScalar(h, 0, 32);
+        byte[] spki = keyPair.getPublic().getEncoded();
+        byte[] authenticatorData = new byte[37];
+        byte[] clientDataHash = new byte[32];
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(authenticatorData);
+        random.nextBytes(clientDataHash);
+
+        // R = rB + T where T is a point of order 8.
+        byte[] torsionEncoding = HexFormat.of().parseHex(
+                "c7176a703d4dd84fba3c0b760d10670f2a2053fa2c39ccc64ec7fd7792ac037a");
+        FWPEd25519BatchVerifier.Point torsion =
+                FWPEd25519BatchVerifier.decodeUnchecked(torsionEncoding, 0);
+        assertTrue("torsion", FWPEd25519BatchVerifier.decode(torsionEncoding, 0) == null);
+        BigInteger r = new BigInteger(250, random);
+        FWPEd25519BatchVerifier.Point rPoint = FWPEd25519BatchVerifier.multiScalarMultiply(
+                Collections.singletonList(FWPEd25519BatchVerifier.BASE_TABLE),
+                Collections.singletonList(FWPEd25519BatchVerifier.slide(r)));
+        assertTrue("subgroup", FWPEd25519BatchVerifier.decode(encodePoint(rPoint), 0) != null);
+        rPoint.add(torsion.cached(), false);
+        byte[] signature = Arrays.copyOf(encodePoint(rPoint), 64);
+        assertTrue("mixed", FWPEd25519BatchVerifier.decode(signature, 0) == null);
+        MessageDigest sha512 = MessageDigest.getInstance("SHA-512");
+        sha512.update(signature, 0, 32);
+        sha512.update(spki, spki.length - 32, 32);
+        sha512.update(authenticatorData);
+        sha512.update(clientDataHash);
+        BigInteger k = FWPEd25519BatchVerifier.decodeScalar(sha512.digest(), 0, 64)
+                .mod(FWPEd25519BatchVerifier.L);
+        System.arraycopy(FWPEd25519BatchVerifier.encodeScalar(
+                r.add(k.multiply(a)).mod(FWPEd25519BatchVerifier.L)), 0, signature, 32, 32);
+
+        // Only valid according to the cofactored equation which neither path may use.
+        FWPCrypto.FidoSignature fidoSignature = new FWPCrypto.FidoSignature();
+        fidoSignature.algorithm = AsymSignatureAlgorithms.ED25519;
+        fidoSignature.publicKey = keyPair.getPublic();
+        fidoSignature.authenticatorData = authenticatorData;
+        fidoSignature.signedDataHash = clientDataHash;
+        fidoSignature.signature = signature;
+        assertTrue("cofactorless", !jcaVerify(fidoSignature));
+        try {
+            fidoSignature.validate();
+            fail("Must not execute");
+        } catch (FWPRejection e) {
+            assertTrue("code", e.getCode() == FWPRejection.Code.SIGNATURE_INVALID);
+        }
+        assertTrue("batch", !FWPEd25519BatchVerifier.verify(
+                List.of(fidoSignature, fidoSignature)));
+    }
+
+    void doOneSignedDataTest(KeyPair keyPair, boolean ctap2) throws Exception {
+        byte[] fwpAssertion = buildGoodPaymenRequest(null, keyPair.getPrivate(), ctap2);
+        byte[] publicKey = new FWPAssertionDecoder(fwpAssertion).getPublicKey();
+        assertTrue("map", Arrays.equals(publicKey, new FWPAssertionDecoder(
+                CBORDecoder.decode(fwpAssertion).getMap()).getPublicKey()));
+        CBORMap tampered = CBORDecoder.decode(fwpAssertion).getMap();
+        tampered.remove(FWPElements.PAYEE_HOST.cborLabel);
+        tampered.set(FWPElements.PAYEE_HOST.cborLabel, new CBORString("evilshop.com"));
+        try {
+            new FWPAssertionDecoder(tampered.encode());
+            fail("Must not execute");
+        } catch (Exception e) {
+            assertTrue("tampered", e.getMessage().contains(
+                    ctap2 ? "Signature validation failed" : "Message hash mismatch"));
+            assertTrue("stackless", e instanceof FWPRejection && e.getStackTrace().length == 0);
+        }
+    }
+
+    @Test
+    public void SignedData() throws Exception {
+        KeyPair keyPair = readKey("p256");
+        fwpPreSigner = new FWPCrypto.FWPPreSigner(
+             CBORPublicKey.convert(keyPair.getPublic()).encode());
+        doOneSignedDataTest(keyPair, false);
+        doOneSignedDataTest(keyPair, true);
+    }
+    
+    @Test
+    public void TimeStamps() throws Exception {
+        assertTrue("utc", FWPAssertionDecoder.parseTimeStamp("2021-06-18T10:20:30Z") ==
+                1624011630000L);
+        assertTrue("offset", FWPAssertionDecoder.parseTimeStamp("2021-06-18T12:20:30+02:00") ==
+                1624011630000L);
+        assertTrue("negative", FWPAssertionDecoder.parseTimeStamp("2021-06-18T05:50:30-04:30") ==
+                1624011630000L);
+        assertTrue("fraction", FWPAssertionDecoder.parseTimeStamp("2021-06-18T10:20:30.25Z") ==
+                1624011630250L);
+        assertTrue("leap", FWPAssertionDecoder.parseTimeStamp("2020-02-29T00:00:00Z") ==
+                1582934400000L);
+        for (String invalid : new String[] {"2021-06-18T10:20:30+24:00",
+                                            "2021-06-18T10:20:30-99:00",
+                                            "2021-06-18T10:20:30+01:60",
+                                            "2021-06-18T24:20:30Z",
+                                            "2021-02-29T10:20:30Z"}) {
+            try {
+                FWPAssertionDecoder.parseTimeStamp(invalid);
+                fail("Must not execute: " + invalid);
+            } catch (Exception e) {
+            }
+        }
+        KeyPair keyPair = readKey("p256");
+        fwpPreSigner = new FWPCrypto.FWPPreSigner(
+             CBORPublicKey.convert(keyPair.getPublic()).encode());
+        byte[] fwpAssertion = buildGoodPaymenRequest(null, keyPair.getPrivate());
+        FWPAssertionDecoder decoder = new FWPAssertionDecoder(fwpAssertion);
+        assertTrue("decoder", decoder.getTimeStampMillis() == 
+                decoder.getTimeStamp().getTimeInMillis());
+        FWPAssertionDecoder.UnverifiedClaims claims = 
+                new FWPAssertionDecoder.UnverifiedClaims(fwpAssertion);
+        assertTrue("claims", claims.getTimeStampMillis() == decoder.getTimeStampMillis());
+        assertTrue("host", claims.getPayeeHost().equals(decoder.getPayeeHost()));
+        assertTrue("request", claims.getPaymentRequest().equals(decoder.getPaymentRequest()));
+    }
+    
+    @Test
+    public void IssuerRequestCBOR() throws Exception {
+        PSPRequest pspRequest = new PSPRequest(
+                new FWPPaymentRequest("Space Shop", "7040566321", "435.00", "EUR"),
+                new FWPJsonAssertion("https://banknet2.org", 
+                                     "https://mybank.fr/payment",
+                                     new byte[] {(byte)0xd8, 0x41, 1, 2, 3}),
+                "FR7630002111110020050012733",
+                "220.13.198.144",
+                new GregorianCalendar());
+        IssuerRequest issuerRequest = 
+                new IssuerRequest(pspRequest, "spaceshop.com", new GregorianCalendar());
+        byte[] encoded = issuerRequest.serializeAsCBOR().encode();
+        IssuerRequest decoded = new IssuerRequest(CBORDecoder.decode(encoded));
+        assertTrue("cbor", Arrays.equals(encoded, decoded.serializeAsCBOR().encode()));
+        assertTrue("json", issuerRequest.serialize().equals(decoded.serialize()));
+    }
+    
+    @Test
+    public void LazyDecodeAssertions() throws Exception {
+        KeyPair keyPair = readKey("p256");
+        fwpPreSigner = new FWPCrypto.FWPPreSigner(
+             CBORPublicKey.convert(keyPair.getPublic()).encode());
+        byte[] fwpAssertion = buildGoodPaymenRequest(null, keyPair.getPrivate());
+        FWPAssertionDecoder decoder = new FWPAssertionDecoder(fwpAssertion,
+                                                              FWPElements.ACCOUNT_ID,
+                                                              FWPElements.SERIAL_NUMBER,
+                                                              FWPElements.TIME_STAMP);
+        assertTrue("account", decoder.getAccountId().equals("FR7630002111110020050014382"));
+        assertTrue("sn", decoder.getSerialNumber().equals("057862932"));
+        assertTrue("time", decoder.getTimeStamp().getTimeInMillis() == 
+                new FWPAssertionDecoder(fwpAssertion).getTimeStamp().getTimeInMillis());
+        assertTrue("uv", decoder.getUserValidation().contains(FWPCrypto.UserValidation.VERIFIED));
+        try {
+            decoder.getPayeeHost();
+            fail("Must not execute");
+        } catch (Exception e) {
+            checkException(e, "Undeclared element: PAYEE_HOST");
+        }
+        decoder = new FWPAssertionDecoder(fwpAssertion, FWPElements.LOCATION);
+        assertTrue("location", decoder.getLocation() == null);
+        CBORMap extended = CBORDecoder.decode(fwpAssertion).getMap();
+        extended.set(new CBORInt(10), new CBORString("something"));
+        try {
+            new FWPAssertionDecoder(extended.encode(), FWPElements.ACCOUNT_ID);
+            fail("Must not execute");
+        } catch (Exception e) {
+            checkException(e, "Unknown element(s) in SAD");
+        }
+        CBORMap incomplete = CBORDecoder.decode(fwpAssertion).getMap();
+        incomplete.remove(FWPElements.PAYEE_HOST.cborLabel);
+        try {
+            new FWPAssertionDecoder(incomplete.encode(), FWPElements.ACCOUNT_ID);
+            fail("Must not execute");
+        } catch (Exception e) {
+            checkException(e, "Missing element: PAYEE_HOST");
+        }
+    }
+    
+    @Test
+    public void ClientDataOrigins() throws Exception {
+        KeyPair keyPair = readKey("p256");
+        fwpPreSigner = new FWPCrypto.FWPPreSigner(
+             CBORPublicKey.convert(keyPair.getPublic()).encode());
+        byte[] fwpAssertion = buildGoodPaymenRequest(null, keyPair.getPrivate());
+        try {
+            FWPCrypto.setAllowedOrigins("https://example.com", "https://mybank.com");
+            new FWPAssertionDecoder(fwpAssertion);
+            FWPCrypto.setAllowedOrigins("https://example.com");
+            try {
+                new FWPAssertionDecoder(fwpAssertion);
+                fail("Must not execute");
+            } catch (FWPRejection e) {
+                assertTrue("origin", e.getCode() == FWPRejection.Code.CLIENT_DATA_MISMATCH);
+            }
+        } finally {
+            FWPCrypto.setAllowedOrigins((String[]) null);
+        }
+    }
+    
+    @Test
+    public void PublicKeyCache() throws Exception {
+        FWPPublicKeyCache savedCache = FWPCrypto.getPublicKeyCache();
+        try {
+            FWPPublicKeyCache publicKeyCache = new FWPPublicKeyCache(100, 60000);
+            FWPCrypto.setPublicKeyCache(publicKeyCache);
+            KeyPair keyPair = readKey("p256");
+            fwpPreSigner = new FWPCrypto.FWPPreSigner(
+                 CBORPublicKey.convert(keyPair.getPublic()).encode());
+            byte[] fwpAssertion = buildGoodPaymenRequest(null, keyPair.getPrivate());
+            assertTrue("miss", publicKeyCache.getMisses() == 1 && publicKeyCache.getHits() == 0);
+            new FWPAssertionDecoder(fwpAssertion);
+            new FWPAssertionDecoder(fwpAssertion);
+            assertTrue("hit", publicKeyCache.getMisses() == 1 && publicKeyCache.getHits() == 2);
+            assertTrue("size", publicKeyCache.size() == 1);
+        } finally {
+            FWPCrypto.setPublicKeyCache(savedCache);
+        }
+    }
+    
+    @Test
+    public void P256Engine() throws Exception {
+        try {
+            FWPP256Engine p256Engine = new FWPP256Engine(1, 10);
+            FWPCrypto.setP256Engine(p256Engine);
+            KeyPair keyPair = readKey("p256");
+            fwpPreSigner = new FWPCrypto.FWPPreSigner(
+                 CBORPublicKey.convert(keyPair.getPublic()).encode());
+            byte[] fwpAssertion = buildGoodPaymenRequest(null, keyPair.getPrivate(), true);
+            // JCA, table creation, table hit.
+            for (int i = 0; i < 3; i++) {
+                new FWPAssertionDecoder(fwpAssertion);
+            }
+            assertTrue("builds", p256Engine.getTableBuilds() == 1);
+            assertTrue("hits", p256Engine.getTableHits() == 1);
+            doOneSignedDataTest(keyPair, true);
+            // Cross-check with JCA.
+            FWPP256Engine.KeyTable keyTable = p256Engine.getKeyTable(keyPair.getPublic());
+            Signature signer = Signature.getInstance("SHA256withECDSA");
+            Signature verifier = Signature.getInstance("SHA256withECDSA");
+            byte[] authenticatorData = new byte[37];
+            byte[] clientDataHash = new byte[32];
+            for (int i = 0; i < 20; i++) {
+                authenticatorData[i] = (byte) i;
+                signer.initSign(keyPair.getPrivate());
+                signer.update(authenticatorData);
+                signer.update(clientDataHash);
+                byte[] signature = signer.sign();
+                if (i % 2 == 1) {
+                    signature[signature.length - 1 - i] ^= 0x10;
+                }
+                boolean jcaResult;
+                try {
+                    verifier.initVerify(keyPair.getPublic());
+                    verifier.update(authenticatorData);
+                    verifier.update(clientDataHash);
+                    jcaResult = verifier.verify(signature);
+                } catch (GeneralSecurityException e) {
+                    jcaResult = false;
+                }
+                assertTrue("jca", jcaResult == (i % 2 == 0));
+                assertTrue("engine", keyTable.verify(authenticatorData, 
+                                                     clientDataHash,
+                                                     signature) == jcaResult);
+            }
+        } finally {
+            FWPCrypto.setP256Engine(null);
+        }
+    }
+    
     void doOneAttestation(boolean hugeCi, boolean extension) throws Exception {
         String rpUrl = "https://example.com/g"; 
         KeyPair keyPair = readKey("p256");
@@ -20,6 +20,11 @@ import java.io.IOException;
 
 import java.util.GregorianCalendar;
 
+import org.webpki.cbor.CBORInt;
+import org.webpki.cbor.CBORMap;
+import org.webpki.cbor.CBORObject;
+import org.webpki.cbor.CBORString;
+
 import org.webpki.json.JSONObjectReader;
 import org.webpki.json.JSONObjectWriter;
 import org.webpki.json.JSONOutputFormats;
@@ -34,6 +39,10 @@ public class IssuerRequest {
     public static final String PSP_REQUEST     = "pspRequest";
     public static final String PAYEE_HOST      = "payeeHost";
     public static final String TIME_STAMP      = "timeStamp";
+
+    public static final CBORInt CBOR_PSP_REQUEST = new CBORInt(1);
+    public static final CBORInt CBOR_PAYEE_HOST  = new CBORInt(2);
+    public static final CBORInt CBOR_TIME_STAMP  = new CBORInt(3);
     
     PSPRequest pspRequest;
     public PSPRequest getPspRequest() {
@@ -56,6 +65,15 @@ public class IssuerRequest {
         timeStamp = reader.getDateTime(TIME_STAMP, ISODateTime.COMPLETE);
     }
     
+    public IssuerRequest(CBORObject cborObject) {
+        CBORMap cborIssuerRequest = cborObject.getMap();
+        pspRequest = new PSPRequest(cborIssuerRequest.get(CBOR_PSP_REQUEST));
+        payeeHost = cborIssuerRequest.get(CBOR_PAYEE_HOST).getString();
+        timeStamp = ISODateTime.decode(cborIssuerRequest.get(CBOR_TIME_STAMP).getString(),
+                                       ISODateTime.COMPLETE);
+        cborObject.checkForUnread();
+    }
+    
     public IssuerRequest(PSPRequest pspRequest,
                          String payeeHost,
                          GregorianCalendar timeStamp) {
@@ -68,6 +86,14 @@ public class IssuerRequest {
         return getWriter().serializeToString(JSONOutputFormats.NORMALIZED);
     }
     
+    public CBORMap serializeAsCBOR() {
+        return new CBORMap()
+                .set(CBOR_PSP_REQUEST, pspRequest.serializeAsCBOR())
+                .set(CBOR_PAYEE_HOST, new CBORString(payeeHost))
+                .set(CBOR_TIME_STAMP, new CBORString(
+                        ISODateTime.encode(timeStamp, ISODateTime.UTC_NO_SUBSECONDS)));
+    }
+    
     public JSONObjectWriter getWriter() throws IOException {
         return new JSONObjectWriter()
                 .setObject(PSP_REQUEST, pspRequest.getWriter())
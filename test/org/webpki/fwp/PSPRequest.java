@@ -20,6 +20,11 @@ import java.io.IOException;
 
 import java.util.GregorianCalendar;
 
+import org.webpki.cbor.CBORInt;
+import org.webpki.cbor.CBORMap;
+import org.webpki.cbor.CBORObject;
+import org.webpki.cbor.CBORString;
+
 import org.webpki.json.JSONObjectReader;
 import org.webpki.json.JSONObjectWriter;
 import org.webpki.json.JSONOutputFormats;
@@ -37,6 +42,12 @@ public class PSPRequest {
     public static final String CLIENT_IP_ADDRESS = "clientIpAddress";
     public static final String TIME_STAMP        = "timeStamp";
 
+    public static final CBORInt CBOR_PAYMENT_REQUEST   = new CBORInt(1);
+    public static final CBORInt CBOR_FWP_ASSERTION     = new CBORInt(2);
+    public static final CBORInt CBOR_RECEIVE_ACCOUNT   = new CBORInt(3);
+    public static final CBORInt CBOR_CLIENT_IP_ADDRESS = new CBORInt(4);
+    public static final CBORInt CBOR_TIME_STAMP        = new CBORInt(5);
+
     
     FWPPaymentRequest paymentRequest;
     public FWPPaymentRequest getPaymentRequest() {
@@ -74,6 +85,16 @@ public class PSPRequest {
         timeStamp = reader.getDateTime(TIME_STAMP, ISODateTime.COMPLETE);
     }
     
+    public PSPRequest(CBORObject cborObject) {
+        CBORMap cborPspRequest = cborObject.getMap();
+        paymentRequest = new FWPPaymentRequest(cborPspRequest.get(CBOR_PAYMENT_REQUEST));
+        fwpAssertion = new FWPJsonAssertion(cborPspRequest.get(CBOR_FWP_ASSERTION));
+        receiveAccount = cborPspRequest.get(CBOR_RECEIVE_ACCOUNT).getString();
+        clientIpAddress = cborPspRequest.get(CBOR_CLIENT_IP_ADDRESS).getString();
+        timeStamp = ISODateTime.decode(cborPspRequest.get(CBOR_TIME_STAMP).getString(),
+                                       ISODateTime.COMPLETE);
+    }
+    
     public PSPRequest(FWPPaymentRequest paymentRequest,
                       FWPJsonAssertion fwpAssertion,
                       String receiveAccount,
@@ -90,6 +111,16 @@ public class PSPRequest {
         return getWriter().serializeToString(JSONOutputFormats.NORMALIZED);
     }
     
+    public CBORMap serializeAsCBOR() {
+        return new CBORMap()
+                .set(CBOR_PAYMENT_REQUEST, paymentRequest.serializeAsCBOR())
+                .set(CBOR_FWP_ASSERTION, fwpAssertion.serializeAsCBOR())
+                .set(CBOR_RECEIVE_ACCOUNT, new CBORString(receiveAccount))
+                .set(CBOR_CLIENT_IP_ADDRESS, new CBORString(clientIpAddress))
+                .set(CBOR_TIME_STAMP, new CBORString(
+                        ISODateTime.encode(timeStamp, ISODateTime.UTC_NO_SUBSECONDS)));
+    }
+    
     public JSONObjectWriter getWriter() throws IOException {
         return new JSONObjectWriter()
                 .setObject(PAYMENT_REQUEST, paymentRequest.getWriter())
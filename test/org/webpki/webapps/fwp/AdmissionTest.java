@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Admission control JUnit suite
+ */
+public class AdmissionTest {
+
+    static final long LATENCY_TARGET = 50;  // Milliseconds
+
+    static final long SLOW = (LATENCY_TARGET + 1) * 1000000;
+
+    static AdaptiveLimiter[] createLimiters() {
+        return new AdaptiveLimiter[] {
+            new AdaptiveLimiter("payment", 1, 4, LATENCY_TARGET),
+            new AdaptiveLimiter("fido", 1, 32, LATENCY_TARGET),
+            new AdaptiveLimiter("other", 1, 16, LATENCY_TARGET)
+        };
+    }
+
+    // Lets the decrease period of the latest slow request pass.
+    static void waitForPeriod() throws Exception {
+        Thread.sleep(LATENCY_TARGET * 2);
+    }
+
+    @Test
+    public void MinimumLimit() throws Exception {
+        AdaptiveLimiter[] limiters = createLimiters();
+        AdaptiveLimiter payment = limiters[AdmissionFilter.EndpointClass.PAYMENT.ordinal()];
+        // Repeated overload episodes drive the payment limit to the minimum.
+        while (payment.getLimit() > payment.minLimit) {
+            waitForPeriod();
+            assertTrue("acquire", payment.tryAcquire());
+            payment.release(SLOW);
+        }
+        assertTrue("congested", payment.isCongested());
+        assertFalse("fido shed", AdmissionFilter.admit(limiters,
+                                                       AdmissionFilter.EndpointClass.FIDO));
+        waitForPeriod();
+        // Idle at the minimum limit: lower classes are admitted again.
+        assertFalse("idle", payment.isCongested());
+        for (AdmissionFilter.EndpointClass endpointClass :
+                new AdmissionFilter.EndpointClass[] {AdmissionFilter.EndpointClass.FIDO,
+                                                     AdmissionFilter.EndpointClass.OTHER}) {
+            assertTrue("admitted", AdmissionFilter.admit(limiters, endpointClass));
+            limiters[endpointClass.ordinal()].release(0);
+        }
+        // A payment in flight at the minimum limit still gives it priority.
+        assertTrue("payment", AdmissionFilter.admit(limiters,
+                                                    AdmissionFilter.EndpointClass.PAYMENT));
+        assertTrue("busy", payment.isCongested());
+        assertFalse("other shed", AdmissionFilter.admit(limiters,
+                                                        AdmissionFilter.EndpointClass.OTHER));
+        payment.release(0);
+        assertTrue("other", AdmissionFilter.admit(limiters, AdmissionFilter.EndpointClass.OTHER));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Host name resolver JUnit suite
+ */
+public class HostNameTest {
+
+    static final String KNOWN_ADDRESS    = "192.0.2.1";
+    static final String UNKNOWN_ADDRESS  = "192.0.2.2";
+    static final String FAILING_ADDRESS  = "192.0.2.3";
+
+    /**
+     * Resolver stub that counts queries and may hold them.
+     */
+    static class StubResolver implements HostNameResolver.Resolver {
+
+        ConcurrentHashMap<String, AtomicInteger> queries = new ConcurrentHashMap<>();
+        CountDownLatch release = new CountDownLatch(0);
+
+        @Override
+        public String getHostName(String ipAddress) throws IOException, InterruptedException {
+            queries.computeIfAbsent(ipAddress, (key) -> new AtomicInteger()).incrementAndGet();
+            release.await();
+            if (ipAddress.equals(FAILING_ADDRESS)) {
+                throw new IOException("No DNS");
+            }
+            return ipAddress.equals(KNOWN_ADDRESS) ? "host.example.com" : ipAddress;
+        }
+
+        int getQueries(String ipAddress) {
+            AtomicInteger count = queries.get(ipAddress);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    static String get(CompletableFuture<String> hostName) throws Exception {
+        return hostName.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void Coalescing() throws Exception {
+        StubResolver stub = new StubResolver();
+        stub.release = new CountDownLatch(1);
+        HostNameResolver resolver = new HostNameResolver(stub, 4);
+        try {
+            ArrayList<CompletableFuture<String>> lookups = new ArrayList<>();
+            for (int q = 0; q < 10; q++) {
+                lookups.add(resolver.lookup(KNOWN_ADDRESS));
+            }
+            stub.release.countDown();
+            for (CompletableFuture<String> lookup : lookups) {
+                assertTrue("name", get(lookup).equals("host.example.com"));
+            }
+            assertTrue("cached", get(resolver.lookup(KNOWN_ADDRESS)).equals("host.example.com"));
+            assertTrue("queries", stub.getQueries(KNOWN_ADDRESS) == 1);
+            assertTrue("hits", resolver.hits.sum() == 10);
+        } finally {
+            resolver.shutdown();
+        }
+    }
+
+    @Test
+    public void TimeToLive() throws Exception {
+        StubResolver stub = new StubResolver();
+        HostNameResolver resolver = new HostNameResolver(stub, 4);
+        try {
+            long before = System.currentTimeMillis();
+            assertTrue("known", get(resolver.lookup(KNOWN_ADDRESS)) != null);
+            assertTrue("unknown", get(resolver.lookup(UNKNOWN_ADDRESS)) == null);
+            assertTrue("failing", get(resolver.lookup(FAILING_ADDRESS)) == null);
+            long after = System.currentTimeMillis();
+            assertTrue("failures", resolver.failures.sum() == 1);
+            long positive = resolver.entries.get(KNOWN_ADDRESS).expirationTime;
+            assertTrue("positive", positive >= before + HostNameResolver.POSITIVE_TTL &&
+                                   positive <= after + HostNameResolver.POSITIVE_TTL);
+            for (String ipAddress : new String[] {UNKNOWN_ADDRESS, FAILING_ADDRESS}) {
+                long negative = resolver.entries.get(ipAddress).expirationTime;
+                assertTrue("negative", negative >= before + HostNameResolver.NEGATIVE_TTL &&
+                                       negative <= after + HostNameResolver.NEGATIVE_TTL);
+            }
+            // Cached failures are not queried again until they expire.
+            assertTrue("cached", get(resolver.lookup(FAILING_ADDRESS)) == null);
+            assertTrue("queries", stub.getQueries(FAILING_ADDRESS) == 1);
+            resolver.entries.get(FAILING_ADDRESS).expirationTime = after - 1;
+            assertTrue("expired", get(resolver.lookup(FAILING_ADDRESS)) == null);
+            assertTrue("requeried", stub.getQueries(FAILING_ADDRESS) == 2);
+        } finally {
+            resolver.shutdown();
+        }
+    }
+
+    @Test
+    public void Overflow() throws Exception {
+        StubResolver stub = new StubResolver();
+        stub.release = new CountDownLatch(1);
+        HostNameResolver resolver = new HostNameResolver(stub, 1);
+        try {
+            // One running and a full queue.
+            ArrayList<CompletableFuture<String>> lookups = new ArrayList<>();
+            for (int q = 0; q <= HostNameResolver.QUEUE_SIZE; q++) {
+                lookups.add(resolver.lookup("10.0." + (q >> 8) + "." + (q & 255)));
+            }
+            CompletableFuture<String> dropped = resolver.lookup(KNOWN_ADDRESS);
+            assertTrue("dropped", dropped.isDone() && get(dropped) == null);
+            assertTrue("rejected", resolver.rejected.sum() == 1);
+            assertTrue("not cached", !resolver.entries.containsKey(KNOWN_ADDRESS));
+            stub.release.countDown();
+            for (CompletableFuture<String> lookup : lookups) {
+                get(lookup);
+            }
+            // Dropped look-ups are retried by the next enrollment.
+            assertTrue("retry", get(resolver.lookup(KNOWN_ADDRESS)).equals("host.example.com"));
+        } finally {
+            resolver.shutdown();
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ *  Copyright 2018-2021 WebPKI.org (http://webpki.org).
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.webpki.webapps.fwp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Replay store JUnit suite
+ */
+public class ReplayTest {
+
+    static final int NODES = 4;
+
+    static Random random = new Random(4711);
+
+    static byte[] randomDigest() {
+        byte[] digest = new byte[ReplayTable.DIGEST_LENGTH];
+        random.nextBytes(digest);
+        return digest;
+    }
+
+    // Digest with given key longs, making segments, slots and buckets predictable.
+    static byte[] digest(long k0, long k1, long k2, long k3) {
+        byte[] digest = new byte[ReplayTable.DIGEST_LENGTH];
+        ReplayTable.LONG_VIEW.set(digest, 0, k0);
+        ReplayTable.LONG_VIEW.set(digest, 8, k1);
+        ReplayTable.LONG_VIEW.set(digest, 16, k2);
+        ReplayTable.LONG_VIEW.set(digest, 24, k3);
+        return digest;
+    }
+
+    static long inOneMinute() {
+        return System.currentTimeMillis() + 60000;
+    }
+
+    /**
+     * Loopback issuer nodes, each with a local table and a partitioned view.
+     */
+    static class Cluster implements AutoCloseable {
+
+        ReplayNodeServer[] servers = new ReplayNodeServer[NODES];
+        PartitionedReplayStore[] stores = new PartitionedReplayStore[NODES];
+
+        Cluster(int replicas) throws Exception {
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            ReplayTable[] localStores = new ReplayTable[NODES];
+            ArrayList<String> nodeNames = new ArrayList<>();
+            for (int i = 0; i < NODES; i++) {
+                localStores[i] = new ReplayTable();
+                servers[i] = new ReplayNodeServer(localStores[i],
+                                                  new InetSocketAddress(loopback, 0),
+                                                  Set.of(loopback),
+                                                  NODES * 2);
+                nodeNames.add(loopback.getHostAddress() + ":" + servers[i].getPort());
+            }
+            for (int i = 0; i < NODES; i++) {
+                stores[i] = new PartitionedReplayStore(localStores[i],
+                                                       nodeNames,
+                                                       nodeNames.get(i),
+                                                       replicas);
+            }
+        }
+
+        void stop(int node) throws Exception {
+            stores[node].close();
+            servers[node].close();
+        }
+
+        @Override
+        public void close() throws Exception {
+            for (int i = 0; i < NODES; i++) {
+                stop(i);
+            }
+        }
+    }
+
+    @Test
+    public void PartitionedReplay() throws Exception {
+        try (Cluster cluster = new Cluster(1)) {
+            for (int q = 0; q < 200; q++) {
+                byte[] digest = randomDigest();
+                int first = q % NODES;
+                int second = (q + 1 + q % (NODES - 1)) % NODES;
+                assertFalse("new", cluster.stores[first].add(digest, inOneMinute()));
+                assertTrue("contains", cluster.stores[second].contains(digest));
+                assertTrue("replay", cluster.stores[second].add(digest, inOneMinute()));
+            }
+            assertFalse("unknown", cluster.stores[0].contains(randomDigest()));
+        }
+    }
+
+    @Test
+    public void PartitionedNodeDown() throws Exception {
+        try (Cluster cluster = new Cluster(2)) {
+            ArrayList<byte[]> before = new ArrayList<>();
+            for (int q = 0; q < 100; q++) {
+                byte[] digest = randomDigest();
+                assertFalse("new", cluster.stores[0].add(digest, inOneMinute()));
+                before.add(digest);
+            }
+            cluster.stop(NODES - 1);
+            // Every digest still has a live owner.
+            for (byte[] digest : before) {
+                assertTrue("replay before", cluster.stores[1].add(digest, inOneMinute()));
+            }
+            for (int q = 0; q < 100; q++) {
+                byte[] digest = randomDigest();
+                assertFalse("new", cluster.stores[q % 2].add(digest, inOneMinute()));
+                assertTrue("replay after", cluster.stores[2 - q % 2].add(digest, inOneMinute()));
+            }
+        }
+    }
+
+    @Test
+    public void NodeExpirationCap() throws Exception {
+        ReplayTable localStore = new ReplayTable();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (ReplayNodeServer server = new ReplayNodeServer(localStore,
+                                                            new InetSocketAddress(loopback, 0),
+                                                            Set.of(loopback),
+                                                            1)) {
+            byte[] digest = randomDigest();
+            server.process(ReplayNodeServer.OP_ADD, digest, Long.MAX_VALUE);
+            long now = System.currentTimeMillis();
+            localStore.expire(now + ReplayNodeServer.MAX_LIFETIME + 2 * ReplayTable.TICK_MILLIS);
+            assertFalse("capped", localStore.contains(digest));
+        }
+    }
+
+    @Test
+    public void TableResize() throws Exception {
+        ReplayTable table = new ReplayTable();
+        // All in segment 0 which is resized twice.
+        ArrayList<byte[]> digests = new ArrayList<>();
+        for (int q = 0; q < ReplayTable.INITIAL_CAPACITY * 3; q++) {
+            byte[] digest = digest(random.nextLong(), 0, q, 0);
+            assertFalse("new", table.add(digest, inOneMinute()));
+            digests.add(digest);
+        }
+        assertTrue("size", table.size() == digests.size());
+        for (byte[] digest : digests) {
+            assertTrue("contains", table.contains(digest));
+            assertTrue("replay", table.add(digest, inOneMinute()));
+        }
+        assertFalse("unknown", table.contains(digest(0, 0, -1, 0)));
+    }
+
+    @Test
+    public void TableDeletion() throws Exception {
+        ReplayTable table = new ReplayTable();
+        long now = System.currentTimeMillis();
+        // A single probe chain where every other entry expires early.
+        for (int q = 0; q < 20; q++) {
+            table.add(digest(5, 0, q, 0), now + (q % 2 == 0 ? 5000 : 500000));
+        }
+        assertTrue("removed", table.expire(now + 10000) == 10);
+        for (int q = 0; q < 20; q++) {
+            assertTrue("chain", table.contains(digest(5, 0, q, 0)) == (q % 2 == 1));
+        }
+        // Entries that wrapped around the end of the table.
+        int last = ReplayTable.INITIAL_CAPACITY - 1;
+        for (int q = 0; q < 4; q++) {
+            table.add(digest(last, 0, q, 0), now + (q < 2 ? 5000 : 500000));
+        }
+        table.expire(now + 20000);
+        assertTrue("wrapped", table.contains(digest(last, 0, 2, 0)) &&
+                              table.contains(digest(last, 0, 3, 0)));
+        assertTrue("size", table.size() == 12);
+    }
+
+    @Test
+    public void TableExpiry() throws Exception {
+        ReplayTable table = new ReplayTable();
+        long now = System.currentTimeMillis();
+        byte[] level0 = randomDigest();
+        byte[] level1 = randomDigest();
+        table.add(level0, now + 5000);
+        table.add(level1, now + 3600000);
+        assertTrue("level 0", table.expire(now + 10000) == 1);
+        assertFalse("level 0 removed", table.contains(level0));
+        // Catching up on an hour of ticks.
+        assertTrue("level 1 early", table.expire(now + 3600000 - 10000) == 0);
+        assertTrue("level 1 kept", table.contains(level1));
+        assertTrue("level 1", table.expire(now + 3600000 + 2 * ReplayTable.TICK_MILLIS) == 1);
+        assertFalse("level 1 removed", table.contains(level1));
+        assertTrue("empty", table.size() == 0);
+    }
+
+    @Test
+    public void MappedReopen() throws Exception {
+        Path file = Files.createTempFile("replay", ".bin");
+        try {
+            MappedReplayStore store = new MappedReplayStore(file, 1024);
+            ArrayList<byte[]> digests = new ArrayList<>();
+            for (int q = 0; q < 100; q++) {
+                byte[] digest = randomDigest();
+                assertFalse("new", store.add(digest, inOneMinute()));
+                digests.add(digest);
+            }
+            byte[] expired = randomDigest();
+            store.add(expired, System.currentTimeMillis() - 1);
+            store.force();
+            MappedReplayStore reopened = new MappedReplayStore(file, 1024);
+            for (byte[] digest : digests) {
+                assertTrue("contains", reopened.contains(digest));
+                assertTrue("replay", reopened.add(digest, inOneMinute()));
+            }
+            assertFalse("expired", reopened.contains(expired));
+            try {
+                new MappedReplayStore(file, 2048);
+                fail("Must not execute");
+            } catch (IOException e) {
+                assertTrue("geometry", e.getMessage().startsWith("Replay store file size mismatch"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void MappedStaleClaim() throws Exception {
+        Path file = Files.createTempFile("replay", ".bin");
+        try {
+            MappedReplayStore store = new MappedReplayStore(file, 1024);
+            // A writer of bucket 0 crashed in the middle of an addition.
+            long crashTime = System.currentTimeMillis() - MappedReplayStore.STALE_CLAIM_MILLIS - 1;
+            MappedReplayStore.LONG_VIEW.set(store.buffer,
+                                            store.slotOffset(0, 0),
+                                            MappedReplayStore.claim(crashTime,
+                                                                    MappedReplayStore.CLAIMED));
+            // The abandoned slot neither blocks nor hides anything and is reused.
+            byte[] first = digest(0, 0, 0, 0);
+            assertFalse("unknown", store.contains(first));
+            for (int q = 0; q < MappedReplayStore.BUCKET_SLOTS; q++) {
+                assertFalse("new", store.add(digest(q << 10, 0, q, 0), inOneMinute()));
+            }
+            assertTrue("reused", store.contains(first));
+            try {
+                store.add(digest(0, 0, -1, 0), inOneMinute());
+                fail("Must not execute");
+            } catch (IllegalStateException e) {
+                assertTrue("full", e.getMessage().equals("Replay store bucket full"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void BloomFront() throws Exception {
+        AtomicInteger exactLookups = new AtomicInteger();
+        ReplayTable table = new ReplayTable();
+        ReplayStore exactStore = new ReplayStore() {
+
+            @Override
+            public boolean add(byte[] digest, long expirationTime) {
+                return table.add(digest, expirationTime);
+            }
+
+            @Override
+            public boolean contains(byte[] digest) {
+                exactLookups.incrementAndGet();
+                return table.contains(digest);
+            }
+
+            @Override
+            public int expire(long now) {
+                return table.expire(now);
+            }
+
+        };
+        BloomReplayFront front = new BloomReplayFront(exactStore,
+                                                      IssuerServlet.AUTHORIZATION_MAX_AGE,
+                                                      IssuerServlet.AUTHORIZATION_MAX_FUTURE,
+                                                      BloomReplayFront.DEFAULT_SLICES,
+                                                      1048576,
+                                                      0.01);
+        ArrayList<byte[]> digests = new ArrayList<>();
+        for (int q = 0; q < 1000; q++) {
+            byte[] digest = randomDigest();
+            assertFalse("new", front.add(digest, inOneMinute()));
+            digests.add(digest);
+        }
+        // No false negatives.
+        for (byte[] digest : digests) {
+            assertTrue("contains", front.contains(digest));
+            assertTrue("replay", front.add(digest, inOneMinute()));
+        }
+        // Unknown digests rarely reach the exact store.
+        exactLookups.set(0);
+        for (int q = 0; q < 10000; q++) {
+            assertFalse("unknown", front.contains(randomDigest()));
+        }
+        assertTrue("filtered", exactLookups.get() < 200);
+        assertTrue("fill level", front.getFillLevel() > 0 && front.getFillLevel() < 0.5);
+        // Entries beyond the filter window make look-ups use the exact store.
+        byte[] distant = randomDigest();
+        front.add(distant, System.currentTimeMillis() + 3600000);
+        exactLookups.set(0);
+        assertTrue("distant", front.contains(distant));
+        assertFalse("unfiltered", front.contains(randomDigest()));
+        assertTrue("exact", exactLookups.get() == 2);
+    }
+
+    @Test
+    public void BloomBounded() throws Exception {
+        ReplayTable table = new ReplayTable(ReplayTable.SEGMENTS * 10);
+        BloomReplayFront front = new BloomReplayFront(table,
+                                                      IssuerServlet.AUTHORIZATION_MAX_AGE,
+                                                      IssuerServlet.AUTHORIZATION_MAX_FUTURE,
+                                                      BloomReplayFront.DEFAULT_SLICES,
+                                                      1048576,
+                                                      0.01);
+        long expirationTime = inOneMinute();
+        ArrayList<byte[]> digests = new ArrayList<>();
+        for (int q = 0; q < 5000; q++) {
+            byte[] digest = randomDigest();
+            assertFalse("new", front.add(digest, expirationTime));
+            digests.add(digest);
+        }
+        // The burst did not grow the table.
+        assertTrue("bounded", table.size() <= ReplayTable.SEGMENTS * 10);
+        assertTrue("overflows", front.overflows.sum() == digests.size() - table.size());
+        // No false negatives, neither for exact nor for filter-only digests.
+        for (byte[] digest : digests) {
+            assertTrue("contains", front.contains(digest));
+            assertTrue("replay", front.add(digest, expirationTime));
+        }
+        int falsePositives = 0;
+        for (int q = 0; q < 10000; q++) {
+            if (front.contains(randomDigest())) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives", falsePositives < 100);
+        // Room in the table must not make filter-only digests new again.
+        table.expire(expirationTime + 2 * ReplayTable.TICK_MILLIS);
+        assertTrue("empty", table.size() == 0);
+        for (byte[] digest : digests) {
+            assertTrue("still replay", front.add(digest, expirationTime));
+        }
+    }
+}